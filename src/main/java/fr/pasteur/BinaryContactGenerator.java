@@ -0,0 +1,694 @@
+package fr.pasteur;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.util.BufferPool;
+import fr.pasteur.util.Parallel;
+import fr.pasteur.util.ParallelGauss;
+import fr.pasteur.util.Planes;
+import fr.pasteur.util.RecursiveGaussian;
+import fr.pasteur.util.RunningMaxDilation;
+
+/**
+ * Generates the contact mask of two channels with bit-parallel binary
+ * operations, without computing the contact image.
+ * <p>
+ * A pixel of the grey contact image is strictly positive if both filtered
+ * and dilated channels are above their threshold. Since the max of values is
+ * above a threshold if one of them is, thresholding and dilation commute: the
+ * mask is the AND of the two filtered channels, thresholded then dilated.
+ * This generator thresholds each filtered channel into rows of packed 64-bit
+ * words, dilates them with word-wise shifts and ORs, then ANDs the two
+ * channels word by word. Each word operation processes 64 pixels at once.
+ * <p>
+ * The structuring element is the polygon of {@link RunningMaxDilation}, the
+ * one used by the detector and by
+ * {@link ContactImgGenerator.DilationMethod#RUNNING_MAX}. Its footprint is
+ * measured by dilating a single pixel. The channels are filtered with the
+ * selected {@link BlurMethod}. The result is then the same as the mask of
+ * {@link ContactImgGenerator} with the
+ * {@link ContactImgGenerator.DilationMethod#RUNNING_MAX} dilation and the
+ * same filter, for float images.
+ * For integer images, the grey mask also requires the rounded contact value
+ * to be at least 1, which can remove a few border pixels.
+ * <p>
+ * Images can be 1D, 2D or 3D.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class BinaryContactGenerator< T extends RealType< T > & NativeType< T >> implements Algorithm, MultiThreaded, Benchmark
+{
+
+	private static final String BASE_ERROR_MSG = "[BinaryContactGenerator] ";
+
+	/**
+	 * The minimal number of lines along Y of the slabs of output rows
+	 * dilated together.
+	 */
+	private static final int MIN_SLAB_HEIGHT = 16;
+
+	private final RandomAccessibleInterval< T > img1;
+
+	private final RandomAccessibleInterval< T > img2;
+
+	private final RandomAccessibleInterval< BitType > mask;
+
+	private final double threshold_C1;
+
+	private final double threshold_C2;
+
+	private final int contactSensitivity;
+
+	private final double sigma;
+
+	private int numThreads;
+
+	private BlurMethod blurMethod = BlurMethod.GAUSS3;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	/*
+	 * Geometry of the packed rows: one row per line along X, padded to whole
+	 * words.
+	 */
+
+	private int width;
+
+	private int nRows;
+
+	private int height;
+
+	private int depth;
+
+	private int nWords;
+
+	/**
+	 * Creates a binary contact mask generator.
+	 *
+	 * @param img1
+	 *            channel 1.
+	 * @param img2
+	 *            channel 2.
+	 * @param mask
+	 *            the contact mask to write to.
+	 * @param threshold_C1
+	 *            the threshold of channel 1.
+	 * @param threshold_C2
+	 *            the threshold of channel 2.
+	 * @param contactSensitivity
+	 *            the dilation radius.
+	 * @param sigma
+	 *            the gaussian filter sigma.
+	 */
+	public BinaryContactGenerator( final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< T > img2, final RandomAccessibleInterval< BitType > mask,
+			final double threshold_C1, final double threshold_C2, final int contactSensitivity, final double sigma )
+	{
+		this.img1 = img1;
+		this.img2 = img2;
+		this.mask = mask;
+		this.threshold_C1 = threshold_C1;
+		this.threshold_C2 = threshold_C2;
+		this.contactSensitivity = contactSensitivity;
+		this.sigma = sigma;
+		setNumThreads();
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( img1.numDimensions() > 3 )
+		{
+			errorMessage = BASE_ERROR_MSG + "Images must be 1D, 2D or 3D, got " + img1.numDimensions() + "D.";
+			return false;
+		}
+		for ( int d = 0; d < img1.numDimensions(); d++ )
+		{
+			if ( img1.dimension( d ) != img2.dimension( d ) || img1.dimension( d ) != mask.dimension( d ) )
+			{
+				errorMessage = BASE_ERROR_MSG + "Source and mask images do not have the same dimensions (for dimension " + d + ").";
+				return false;
+			}
+		}
+		if ( Intervals.numElements( img1 ) >= Integer.MAX_VALUE )
+		{
+			errorMessage = BASE_ERROR_MSG + "Images are too large.";
+			return false;
+		}
+		if ( contactSensitivity < 1 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The contact sensitivity must be greater than 0 (was " + contactSensitivity + ").";
+			return false;
+		}
+		if ( sigma <= 0 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The gaussian filter sigma is lower than or equal to 0 (σ = " + sigma + ").";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final int n = img1.numDimensions();
+		width = ( int ) img1.dimension( 0 );
+		height = n > 1 ? ( int ) img1.dimension( 1 ) : 1;
+		depth = n > 2 ? ( int ) img1.dimension( 2 ) : 1;
+		nRows = height * depth;
+		nWords = ( width + 63 ) >>> 6;
+
+		// Filter and threshold the two channels concurrently.
+		final long[][] packed = new long[ 2 ][];
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		Parallel.run( 2, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				try
+				{
+					packed[ index ] = index == 0 ? blurAndPack( img1, threshold_C1 ) : blurAndPack( img2, threshold_C2 );
+				}
+				catch ( final IncompatibleTypeException e )
+				{
+					errorMessage = BASE_ERROR_MSG + e.getMessage();
+					e.printStackTrace();
+					ok.set( false );
+				}
+			}
+		} );
+		if ( !ok.get() )
+		{
+			return false;
+		}
+
+		final long[] dilated1 = dilate( packed[ 0 ] );
+		final long[] dilated2 = dilate( packed[ 1 ] );
+		for ( int i = 0; i < dilated1.length; i++ )
+		{
+			dilated1[ i ] &= dilated2[ i ];
+		}
+		write( dilated1 );
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Filters a channel with a gaussian, and packs the pixels above the
+	 * threshold in rows of bits.
+	 */
+	private long[] blurAndPack( final RandomAccessibleInterval< T > source, final double threshold ) throws IncompatibleTypeException
+	{
+		final BufferPool pool = BufferPool.getShared();
+		final float[] blurred = pool.borrowFloats( width * nRows );
+		try
+		{
+			final RandomAccessibleInterval< FloatType > target = Views.translate( ArrayImgs.floats( blurred, Intervals.dimensionsAsLongArray( source ) ), Intervals.minAsLongArray( source ) );
+			blur( source, target );
+
+			final long[] packed = new long[ nRows * nWords ];
+			final AtomicInteger ai = new AtomicInteger( 0 );
+			Parallel.run( Math.min( numThreads, nRows ), new Parallel.Worker()
+			{
+				@Override
+				public void run( final int index )
+				{
+					for ( int row = ai.getAndIncrement(); row < nRows; row = ai.getAndIncrement() )
+					{
+						final int from = row * width;
+						final int to = row * nWords;
+						for ( int x = 0; x < width; x++ )
+						{
+							if ( blurred[ from + x ] > threshold )
+							{
+								packed[ to + ( x >>> 6 ) ] |= 1l << ( x & 63 );
+							}
+						}
+					}
+				}
+			} );
+			return packed;
+		}
+		finally
+		{
+			pool.release( blurred );
+		}
+	}
+
+	/**
+	 * Filters a channel with a gaussian, with the selected algorithm.
+	 * {@link Gauss3} runs in slabs on the shared executor of {@link Parallel}
+	 * (see {@link ParallelGauss}).
+	 */
+	private void blur( final RandomAccessibleInterval< T > source, final RandomAccessibleInterval< FloatType > target ) throws IncompatibleTypeException
+	{
+		final double[] sigmas = Util.getArrayFromValue( sigma, source.numDimensions() );
+		switch ( blurMethod )
+		{
+		case RECURSIVE:
+			RecursiveGaussian.gauss( sigmas, Views.extendMirrorDouble( source ), target );
+			break;
+		case GAUSS3:
+		default:
+			ParallelGauss.gauss( sigmas, Views.extendMirrorDouble( source ), target, numThreads );
+			break;
+		}
+	}
+
+	/**
+	 * Dilates packed rows by the polygon of {@link RunningMaxDilation}. Each
+	 * row is first dilated along X by every distinct row of the footprint,
+	 * with shifts and ORs. Footprint rows are processed by increasing size,
+	 * each starting from a smaller one it contains. The output row is then
+	 * the OR of the neighbour rows dilated along X by the footprint row at
+	 * their Y and Z offset. Only the dilations along X of the neighbours of
+	 * a slab of rows are kept at a time, not those of the whole frame.
+	 */
+	private long[] dilate( final long[] packed )
+	{
+		// { dy, dz, index of the footprint row }, and the X offsets of each distinct footprint row.
+		final List< int[] > offsets = new ArrayList< int[] >();
+		final List< int[] > shapes = new ArrayList< int[] >();
+		footprint( offsets, shapes );
+
+		// The shape each one is built from, -1 for none, and the X offsets to add to it.
+		final int[] bases = new int[ shapes.size() ];
+		final int[][] added = new int[ shapes.size() ][];
+		for ( int k = 0; k < shapes.size(); k++ )
+		{
+			bases[ k ] = -1;
+			for ( int j = k - 1; j >= 0; j-- )
+			{
+				if ( contains( shapes.get( k ), shapes.get( j ) ) )
+				{
+					bases[ k ] = j;
+					break;
+				}
+			}
+			final int[] base = bases[ k ] < 0 ? new int[ 0 ] : shapes.get( bases[ k ] );
+			final List< Integer > xs = new ArrayList< Integer >();
+			for ( final int x : shapes.get( k ) )
+			{
+				if ( Arrays.binarySearch( base, x ) < 0 )
+				{
+					xs.add( Integer.valueOf( x ) );
+				}
+			}
+			added[ k ] = new int[ xs.size() ];
+			for ( int i = 0; i < added[ k ].length; i++ )
+			{
+				added[ k ][ i ] = xs.get( i ).intValue();
+			}
+		}
+
+		/*
+		 * Output rows are processed in slabs of lines along Y, each slab
+		 * through all the Z planes. A worker keeps the dilations along X of
+		 * the rows the slab reads, for the planes within the Z extent of the
+		 * current plane, in a ring of planes.
+		 */
+		final int ey = maxOffset( offsets, 0 );
+		final int ez = maxOffset( offsets, 1 );
+		final int slabHeight = Math.min( height, Math.max( MIN_SLAB_HEIGHT, 4 * ey ) );
+		final int nSlabs = ( height + slabHeight - 1 ) / slabHeight;
+		final int ringSize = 2 * ez + 1;
+		final int windowHeight = Math.min( height, slabHeight + 2 * ey );
+
+		final long[] dilated = new long[ packed.length ];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Parallel.run( Math.min( numThreads, nSlabs ), new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				// Dilations along X by each footprint row.
+				final long[][] horizontal = new long[ shapes.size() ][ ringSize * windowHeight * nWords ];
+				for ( int slab = ai.getAndIncrement(); slab < nSlabs; slab = ai.getAndIncrement() )
+				{
+					final int y0 = slab * slabHeight;
+					final int y1 = Math.min( height, y0 + slabHeight );
+					final int wy0 = Math.max( 0, y0 - ey );
+					final int wy1 = Math.min( height, y1 + ey );
+					int next = 0;
+					for ( int z = 0; z < depth; z++ )
+					{
+						for ( ; next <= Math.min( depth - 1, z + ez ); next++ )
+						{
+							for ( int yy = wy0; yy < wy1; yy++ )
+							{
+								final int w = ( ( next % ringSize ) * windowHeight + yy - wy0 ) * nWords;
+								dilateRow( packed, ( next * height + yy ) * nWords, horizontal, w, bases, added );
+							}
+						}
+						for ( int y = y0; y < y1; y++ )
+						{
+							final int o = ( z * height + y ) * nWords;
+							for ( final int[] offset : offsets )
+							{
+								final int yy = y + offset[ 0 ];
+								final int zz = z + offset[ 1 ];
+								if ( yy < 0 || yy >= height || zz < 0 || zz >= depth )
+								{
+									continue;
+								}
+								final long[] source = horizontal[ offset[ 2 ] ];
+								final int so = ( ( zz % ringSize ) * windowHeight + yy - wy0 ) * nWords;
+								for ( int i = 0; i < nWords; i++ )
+								{
+									dilated[ o + i ] |= source[ so + i ];
+								}
+							}
+						}
+					}
+				}
+			}
+		} );
+		return dilated;
+	}
+
+	/**
+	 * Dilates a packed row along X by each footprint row, each built from
+	 * the one it contains.
+	 */
+	private void dilateRow( final long[] packed, final int o, final long[][] horizontal, final int w, final int[] bases, final int[][] added )
+	{
+		for ( int k = 0; k < horizontal.length; k++ )
+		{
+			if ( bases[ k ] >= 0 )
+			{
+				System.arraycopy( horizontal[ bases[ k ] ], w, horizontal[ k ], w, nWords );
+			}
+			else
+			{
+				Arrays.fill( horizontal[ k ], w, w + nWords, 0l );
+			}
+			for ( final int x : added[ k ] )
+			{
+				if ( x > 0 )
+				{
+					orShiftedDown( packed, o, horizontal[ k ], w, x );
+				}
+				else if ( x < 0 )
+				{
+					orShiftedUp( packed, o, horizontal[ k ], w, -x );
+				}
+				else
+				{
+					for ( int i = 0; i < nWords; i++ )
+					{
+						horizontal[ k ][ w + i ] |= packed[ o + i ];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the largest absolute Y (<code>index</code> 0) or Z
+	 * (<code>index</code> 1) offset of the footprint rows.
+	 */
+	private static final int maxOffset( final List< int[] > offsets, final int index )
+	{
+		int max = 0;
+		for ( final int[] offset : offsets )
+		{
+			max = Math.max( max, Math.abs( offset[ index ] ) );
+		}
+		return max;
+	}
+
+	/**
+	 * Measures the footprint of the {@link RunningMaxDilation} polygon, by
+	 * dilating a single pixel. Fills the list of the Y and Z offsets of its
+	 * rows, and the list of the distinct sorted X offsets of these rows,
+	 * ordered by increasing size.
+	 */
+	private void footprint( final List< int[] > offsets, final List< int[] > shapes )
+	{
+		final int n = img1.numDimensions();
+		final RunningMaxDilation dilation = new RunningMaxDilation( contactSensitivity, n );
+		final long[] extent = dilation.getExtent();
+		final int ex = ( int ) extent[ 0 ];
+		final int ey = n > 1 ? ( int ) extent[ 1 ] : 0;
+		final int ez = n > 2 ? ( int ) extent[ 2 ] : 0;
+		final int[] dims = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			dims[ d ] = 2 * ( int ) extent[ d ] + 1;
+		}
+		final int fw = 2 * ex + 1;
+		final int fh = 2 * ey + 1;
+		final int fd = 2 * ez + 1;
+		final float[] impulse = new float[ fw * fh * fd ];
+		impulse[ ( ez * fh + ey ) * fw + ex ] = 1f;
+		dilation.dilate( impulse, dims );
+
+		final List< int[] > rows = new ArrayList< int[] >();
+		for ( int z = 0; z < fd; z++ )
+		{
+			for ( int y = 0; y < fh; y++ )
+			{
+				final int o = ( z * fh + y ) * fw;
+				int count = 0;
+				for ( int x = 0; x < fw; x++ )
+				{
+					if ( impulse[ o + x ] > 0 )
+					{
+						count++;
+					}
+				}
+				if ( count == 0 )
+				{
+					continue;
+				}
+				final int[] xs = new int[ count ];
+				count = 0;
+				for ( int x = 0; x < fw; x++ )
+				{
+					if ( impulse[ o + x ] > 0 )
+					{
+						xs[ count++ ] = x - ex;
+					}
+				}
+				rows.add( new int[] { y - ey, z - ez } );
+				shapes.add( xs );
+			}
+		}
+
+		// Keep distinct shapes, by increasing size.
+		final List< int[] > distinct = new ArrayList< int[] >();
+		for ( final int[] xs : shapes )
+		{
+			if ( indexOf( distinct, xs ) < 0 )
+			{
+				distinct.add( xs );
+			}
+		}
+		Collections.sort( distinct, new Comparator< int[] >()
+		{
+			@Override
+			public int compare( final int[] a, final int[] b )
+			{
+				return a.length - b.length;
+			}
+		} );
+		for ( int i = 0; i < rows.size(); i++ )
+		{
+			offsets.add( new int[] { rows.get( i )[ 0 ], rows.get( i )[ 1 ], indexOf( distinct, shapes.get( i ) ) } );
+		}
+		shapes.clear();
+		shapes.addAll( distinct );
+	}
+
+	private static final int indexOf( final List< int[] > list, final int[] array )
+	{
+		for ( int i = 0; i < list.size(); i++ )
+		{
+			if ( Arrays.equals( list.get( i ), array ) )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns whether a sorted array contains all the values of another.
+	 */
+	private static final boolean contains( final int[] array, final int[] values )
+	{
+		for ( final int v : values )
+		{
+			if ( Arrays.binarySearch( array, v ) < 0 )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * ORs a packed row shifted towards larger X by <code>shift</code>
+	 * pixels in a target row.
+	 */
+	private void orShiftedUp( final long[] source, final int sourceOffset, final long[] target, final int targetOffset, final int shift )
+	{
+		final int q = shift >>> 6;
+		final int s = shift & 63;
+		for ( int i = nWords - 1; i >= q; i-- )
+		{
+			long v = source[ sourceOffset + i - q ] << s;
+			if ( s != 0 && i - q - 1 >= 0 )
+			{
+				v |= source[ sourceOffset + i - q - 1 ] >>> ( 64 - s );
+			}
+			target[ targetOffset + i ] |= v;
+		}
+		// Bits shifted beyond the row width are cleared.
+		final int tail = width & 63;
+		if ( tail != 0 )
+		{
+			target[ targetOffset + nWords - 1 ] &= ( 1l << tail ) - 1;
+		}
+	}
+
+	/**
+	 * ORs a packed row shifted towards smaller X by <code>shift</code>
+	 * pixels in a target row.
+	 */
+	private void orShiftedDown( final long[] source, final int sourceOffset, final long[] target, final int targetOffset, final int shift )
+	{
+		final int q = shift >>> 6;
+		final int s = shift & 63;
+		for ( int i = 0; i + q < nWords; i++ )
+		{
+			long v = source[ sourceOffset + i + q ] >>> s;
+			if ( s != 0 && i + q + 1 < nWords )
+			{
+				v |= source[ sourceOffset + i + q + 1 ] << ( 64 - s );
+			}
+			target[ targetOffset + i ] |= v;
+		}
+	}
+
+	/**
+	 * Writes packed rows in the mask, word by word if the mask is backed by
+	 * bit arrays.
+	 */
+	private void write( final long[] packed )
+	{
+		final Planes planes = Planes.of( mask );
+		if ( null != planes && planes.type() == Planes.PixelType.BIT )
+		{
+			for ( int row = 0; row < nRows; row++ )
+			{
+				final long index = ( long ) row * width;
+				final int plane = ( int ) ( index / planes.planeSize() );
+				final long bit = planes.offset( plane ) + index % planes.planeSize();
+				writeBits( packed, row * nWords, width, ( long[] ) planes.array( plane ), bit );
+			}
+			return;
+		}
+
+		final Cursor< BitType > cursor = Views.flatIterable( mask ).cursor();
+		for ( int row = 0; row < nRows; row++ )
+		{
+			final int o = row * nWords;
+			for ( int x = 0; x < width; x++ )
+			{
+				cursor.next().set( ( ( packed[ o + ( x >>> 6 ) ] >>> ( x & 63 ) ) & 1l ) != 0 );
+			}
+		}
+	}
+
+	/**
+	 * Copies <code>length</code> bits from whole words of a source to an
+	 * arbitrary bit position of a target.
+	 */
+	private static final void writeBits( final long[] source, final int sourceOffset, final int length, final long[] target, final long targetBit )
+	{
+		for ( int i = 0; 64 * i < length; i++ )
+		{
+			final int bits = Math.min( 64, length - 64 * i );
+			final long m = bits == 64 ? -1l : ( 1l << bits ) - 1;
+			final long word = source[ sourceOffset + i ] & m;
+			final long pos = targetBit + 64l * i;
+			final int wi = ( int ) ( pos >>> 6 );
+			final int sh = ( int ) ( pos & 63 );
+			target[ wi ] = ( target[ wi ] & ~( m << sh ) ) | ( word << sh );
+			if ( sh != 0 && sh + bits > 64 )
+			{
+				target[ wi + 1 ] = ( target[ wi + 1 ] & ~( m >>> ( 64 - sh ) ) ) | ( word >>> ( 64 - sh ) );
+			}
+		}
+	}
+
+	/**
+	 * Sets the algorithm used to filter the channels.
+	 *
+	 * @param blurMethod
+	 *            the gaussian filter algorithm.
+	 */
+	public void setBlurMethod( final BlurMethod blurMethod )
+	{
+		this.blurMethod = blurMethod;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
@@ -0,0 +1,390 @@
+package fr.pasteur;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_THRESHOLD;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_BINARY_MODE;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_BLUR_METHOD;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CHANNEL_1;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CHANNEL_2;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CONTACT_SENSITIVITY;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_DILATION_METHOD;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_PYRAMID_FACTOR;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_SIGMA_FILTER;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_THRESHOLD_1;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_THRESHOLD_2;
+import fiji.plugin.trackmate.Spot;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.ContactImgGenerator.ThresholdLookup;
+import fr.pasteur.trackmate.CellContactDetector;
+import fr.pasteur.trackmate.CellContactDetectorFactory;
+import fr.pasteur.trackmate.ComponentTable;
+import fr.pasteur.util.Parallel;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Headless command-line runner processing all the TIFF files of a folder.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java fr.pasteur.CCCTBatch settings.properties inputFolder [outputFolder] [filesInParallel]
+ * </pre>
+ *
+ * The settings file uses the keys of {@link CellContactDetectorFactory}, for
+ * instance <code>CHANNEL_1=2</code> or <code>THRESHOLD_C1=200</code>. Missing
+ * keys take their default value. The additional key
+ * <code>AUTO_THRESHOLDS=true</code> estimates the channel thresholds of each
+ * frame instead of using <code>THRESHOLD_C1</code> and
+ * <code>THRESHOLD_C2</code>. <code>BLUR_METHOD=RECURSIVE</code> selects the
+ * recursive gaussian filter (see {@link BlurMethod}), faster for large
+ * sigmas. <code>DILATION_METHOD=RUNNING_MAX</code> selects the running max
+ * dilation (see {@link DilationMethod}), faster for large contact
+ * sensitivities. With <code>BINARY_MODE=true</code>, only the contact masks and labels are
+ * written, and the spot quality is the contact size.
+ * <p>
+ * Files are processed concurrently, sharing the threads of the executor of
+ * {@link Parallel}. For each file, the contact images, masks and labels of
+ * each frame are written with {@link ContactStreamer} in a sub-folder named
+ * after the file. The spots of each frame are created from its labels in the
+ * same pass, as {@link CellContactDetector} would, and written in a CSV file.
+ * Files are opened as virtual stacks, so that only the frames being processed
+ * are in memory. No window is created.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class CCCTBatch< T extends RealType< T > & NativeType< T >>
+{
+
+	public static final String KEY_AUTO_THRESHOLDS = "AUTO_THRESHOLDS";
+
+	private static final String[] INTEGER_KEYS = new String[] { KEY_CHANNEL_1, KEY_CHANNEL_2, KEY_CONTACT_SENSITIVITY, KEY_TARGET_CHANNEL, KEY_PYRAMID_FACTOR };
+
+	private static final String[] DOUBLE_KEYS = new String[] { KEY_SIGMA_FILTER, KEY_THRESHOLD, KEY_THRESHOLD_1, KEY_THRESHOLD_2 };
+
+	private static final String[] BOOLEAN_KEYS = new String[] { KEY_BINARY_MODE };
+
+	private static final String[] STRING_KEYS = new String[] { KEY_BLUR_METHOD, KEY_DILATION_METHOD };
+
+	private final Map< String, Object > settings;
+
+	private final boolean autoThresholds;
+
+	private final File outputFolder;
+
+	private final int filesInParallel;
+
+	/**
+	 * Creates a batch runner.
+	 *
+	 * @param settings
+	 *            the detector settings.
+	 * @param autoThresholds
+	 *            whether to estimate the thresholds of each frame.
+	 * @param outputFolder
+	 *            the folder in which to write the results.
+	 * @param filesInParallel
+	 *            the maximal number of files processed concurrently.
+	 */
+	public CCCTBatch( final Map< String, Object > settings, final boolean autoThresholds, final File outputFolder, final int filesInParallel )
+	{
+		this.settings = settings;
+		this.autoThresholds = autoThresholds;
+		this.outputFolder = outputFolder;
+		this.filesInParallel = filesInParallel;
+	}
+
+	/**
+	 * Processes a list of files.
+	 *
+	 * @param files
+	 *            the files.
+	 * @return the number of files that could not be processed.
+	 */
+	public int process( final List< File > files )
+	{
+		final int nWorkers = Math.max( 1, Math.min( filesInParallel, files.size() ) );
+		final int threadsPerFile = Math.max( 1, Parallel.getParallelism() / nWorkers );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicInteger failures = new AtomicInteger( 0 );
+		Parallel.run( nWorkers, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				for ( int i = ai.getAndIncrement(); i < files.size(); i = ai.getAndIncrement() )
+				{
+					final File file = files.get( i );
+					final long start = System.currentTimeMillis();
+					final String error = processFile( file, threadsPerFile );
+					if ( null != error )
+					{
+						failures.incrementAndGet();
+						System.err.println( file.getName() + ": " + error );
+					}
+					else
+					{
+						System.out.println( file.getName() + ": done in " + ( System.currentTimeMillis() - start ) / 1000 + " s." );
+					}
+				}
+			}
+		} );
+		return failures.get();
+	}
+
+	/**
+	 * Processes a single file.
+	 *
+	 * @return an error message, or <code>null</code> if the file was
+	 *         processed.
+	 */
+	private String processFile( final File file, final int numThreads )
+	{
+		// Frames are read from disk as they are processed.
+		final ImagePlus imp = IJ.openVirtual( file.getAbsolutePath() );
+		if ( null == imp )
+		{
+			return "Could not open the file.";
+		}
+
+		try
+		{
+			// In ImgLib2, dimensions are 0-based.
+			final int channel1 = ( Integer ) settings.get( KEY_CHANNEL_1 ) - 1;
+			final int channel2 = ( Integer ) settings.get( KEY_CHANNEL_2 ) - 1;
+			final ThresholdLookup thresholdsC1;
+			final ThresholdLookup thresholdsC2;
+			if ( autoThresholds )
+			{
+				thresholdsC1 = ThresholdEstimator.lookup( imp, channel1 );
+				thresholdsC2 = ThresholdEstimator.lookup( imp, channel2 );
+			}
+			else
+			{
+				thresholdsC1 = constant( ( Double ) settings.get( KEY_THRESHOLD_1 ) );
+				thresholdsC2 = constant( ( Double ) settings.get( KEY_THRESHOLD_2 ) );
+			}
+
+			// No contact image in binary mode.
+			final boolean binaryMode = Boolean.TRUE.equals( settings.get( KEY_BINARY_MODE ) );
+			final ComponentTable componentTable = new ComponentTable();
+			final ContactStreamer< T > streamer = new ContactStreamer< T >( imp, channel1, channel2, thresholdsC1, thresholdsC2,
+					( Integer ) settings.get( KEY_CONTACT_SENSITIVITY ), ( Double ) settings.get( KEY_SIGMA_FILTER ),
+					new File( outputFolder, imp.getShortTitle() ), !binaryMode, true, true );
+			streamer.setNumThreads( numThreads );
+			streamer.setBlurMethod( CellContactDetectorFactory.getBlurMethod( settings ) );
+			streamer.setDilationMethod( CellContactDetectorFactory.getDilationMethod( settings ) );
+			streamer.setBinaryMode( binaryMode );
+			streamer.setComponentTable( componentTable );
+			if ( !streamer.checkInput() || !streamer.process() )
+			{
+				return streamer.getErrorMessage();
+			}
+
+			return writeSpots( imp, componentTable );
+		}
+		catch ( final InterruptedException e )
+		{
+			return "Interrupted while estimating thresholds.";
+		}
+		catch ( final ExecutionException e )
+		{
+			return "Could not estimate thresholds: " + e.getCause();
+		}
+		finally
+		{
+			ThresholdEstimator.clear( imp );
+		}
+	}
+
+	/**
+	 * Creates the spots of each frame from the components measured while
+	 * streaming, and writes them in a CSV file.
+	 */
+	private String writeSpots( final ImagePlus imp, final ComponentTable componentTable )
+	{
+		final int nFrames = imp.getNFrames();
+		final Calibration cal = imp.getCalibration();
+		final double[] calibration = new double[] { cal.pixelWidth, cal.pixelHeight, cal.pixelDepth };
+		final int numDimensions = imp.getNSlices() > 1 ? 3 : 2;
+		final double threshold = ( Double ) settings.get( KEY_THRESHOLD );
+
+		final File file = new File( outputFolder, imp.getShortTitle() + "_spots.csv" );
+		PrintWriter writer = null;
+		try
+		{
+			writer = new PrintWriter( new FileWriter( file ) );
+			writer.println( "FRAME,POSITION_X,POSITION_Y,POSITION_Z,RADIUS,QUALITY" );
+			for ( int frame = 0; frame < nFrames; frame++ )
+			{
+				for ( final Spot spot : CellContactDetector.createSpots( componentTable.get( frame ), threshold, calibration, numDimensions ) )
+				{
+					writer.println( String.format( Locale.US, "%d,%g,%g,%g,%g,%g", frame,
+							spot.getFeature( Spot.POSITION_X ), spot.getFeature( Spot.POSITION_Y ), spot.getFeature( Spot.POSITION_Z ),
+							spot.getFeature( Spot.RADIUS ), spot.getFeature( Spot.QUALITY ) ) );
+				}
+			}
+		}
+		catch ( final IOException e )
+		{
+			return "Could not write " + file + ": " + e.getMessage();
+		}
+		finally
+		{
+			if ( null != writer )
+			{
+				writer.close();
+			}
+		}
+		return null;
+	}
+
+	private static final ThresholdLookup constant( final double threshold )
+	{
+		return new ThresholdLookup()
+		{
+			@Override
+			public double getThreshold( final int frame )
+			{
+				return threshold;
+			}
+		};
+	}
+
+	/**
+	 * Reads detector settings from a properties file. Missing keys take their
+	 * default value.
+	 *
+	 * @param file
+	 *            the properties file.
+	 * @param properties
+	 *            the properties, filled from the file.
+	 * @return the settings.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static Map< String, Object > readSettings( final File file, final Properties properties ) throws IOException
+	{
+		final InputStream is = new FileInputStream( file );
+		try
+		{
+			properties.load( is );
+		}
+		finally
+		{
+			is.close();
+		}
+
+		final Map< String, Object > settings = new CellContactDetectorFactory().getDefaultSettings();
+		for ( final String key : INTEGER_KEYS )
+		{
+			final String value = properties.getProperty( key );
+			if ( null != value )
+			{
+				settings.put( key, Integer.valueOf( value.trim() ) );
+			}
+		}
+		for ( final String key : DOUBLE_KEYS )
+		{
+			final String value = properties.getProperty( key );
+			if ( null != value )
+			{
+				settings.put( key, Double.valueOf( value.trim() ) );
+			}
+		}
+		for ( final String key : BOOLEAN_KEYS )
+		{
+			final String value = properties.getProperty( key );
+			if ( null != value )
+			{
+				settings.put( key, Boolean.valueOf( value.trim() ) );
+			}
+		}
+		for ( final String key : STRING_KEYS )
+		{
+			final String value = properties.getProperty( key );
+			if ( null != value )
+			{
+				settings.put( key, value.trim().toUpperCase( Locale.US ) );
+			}
+		}
+		// Binary mode only implements the running max dilation.
+		if ( Boolean.TRUE.equals( settings.get( KEY_BINARY_MODE ) ) && null == properties.getProperty( KEY_DILATION_METHOD ) )
+		{
+			settings.put( KEY_DILATION_METHOD, DilationMethod.RUNNING_MAX.name() );
+		}
+		return settings;
+	}
+
+	public static < T extends RealType< T > & NativeType< T >> void main( final String[] args ) throws IOException
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		if ( args.length < 2 )
+		{
+			System.err.println( "Usage: CCCTBatch settings.properties inputFolder [outputFolder] [filesInParallel]" );
+			System.exit( 2 );
+		}
+
+		final Properties properties = new Properties();
+		final Map< String, Object > settings = readSettings( new File( args[ 0 ] ), properties );
+		final CellContactDetectorFactory< T > factory = new CellContactDetectorFactory< T >();
+		if ( !factory.checkSettings( settings ) )
+		{
+			System.err.println( factory.getErrorMessage() );
+			System.exit( 2 );
+		}
+		final boolean autoThresholds = Boolean.parseBoolean( properties.getProperty( KEY_AUTO_THRESHOLDS, "false" ) );
+
+		final File inputFolder = new File( args[ 1 ] );
+		final File outputFolder = args.length > 2 ? new File( args[ 2 ] ) : new File( inputFolder, "ccct" );
+		final int filesInParallel = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : Math.max( 1, Parallel.getParallelism() / 2 );
+
+		final File[] candidates = inputFolder.listFiles();
+		if ( null == candidates )
+		{
+			System.err.println( "Cannot list the files of " + inputFolder + "." );
+			System.exit( 2 );
+		}
+		Arrays.sort( candidates );
+		final List< File > files = new ArrayList< File >();
+		for ( final File file : candidates )
+		{
+			final String name = file.getName().toLowerCase( Locale.US );
+			if ( file.isFile() && ( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) ) )
+			{
+				files.add( file );
+			}
+		}
+		if ( !outputFolder.isDirectory() && !outputFolder.mkdirs() )
+		{
+			System.err.println( "Cannot create the output folder " + outputFolder + "." );
+			System.exit( 2 );
+		}
+
+		final CCCTBatch< T > batch = new CCCTBatch< T >( settings, autoThresholds, outputFolder, filesInParallel );
+		final int failures = batch.process( files );
+		System.out.println( ( files.size() - failures ) + " of " + files.size() + " files processed." );
+		System.exit( failures > 0 ? 1 : 0 );
+	}
+}
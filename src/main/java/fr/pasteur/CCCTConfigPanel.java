@@ -22,6 +22,7 @@ import net.imglib2.view.Views;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.util.TMUtils;
 import fr.pasteur.trackmate.CellContactConfigurationPanel;
+import fr.pasteur.trackmate.CellContactDetectorFactory;
 
 @SuppressWarnings( "deprecation" )
 class CCCTConfigPanel extends CellContactConfigurationPanel
@@ -93,6 +94,8 @@ class CCCTConfigPanel extends CellContactConfigurationPanel
 
 					final ContactImgGenerator generator = new ContactImgGenerator( im1, im2, out,
 							threshold_C1, threshold_C2, contactSensitivity, sigma );
+					generator.setDilationMethod( CellContactDetectorFactory.getDilationMethod( settings ) );
+					generator.setBlurMethod( CellContactDetectorFactory.getBlurMethod( settings ) );
 
 					if ( !generator.checkInput() || !generator.process() )
 					{
@@ -60,24 +60,46 @@ public class CCCTGui extends JFrame
 		final JPanel panelAnalyze = new JPanel();
 		tabbedPane.addTab( "Analyze", null, panelAnalyze, null );
 
+		final JCheckBox chckbxAutoThresholds = new JCheckBox( "Estimate thresholds for each frame." );
+		chckbxAutoThresholds.setFont( FONT );
+
 		final JCheckBox chckbxContactImage = new JCheckBox( "Show contact image." );
 		chckbxContactImage.setFont( FONT );
 		chckbxContactImage.setSelected( true );
 
+		final JCheckBox chckbxLazyContactImage = new JCheckBox( "Compute contact image on display." );
+		chckbxLazyContactImage.setFont( FONT );
+
+		chckbxContactImage.addItemListener( new ItemListener()
+		{
+			@Override
+			public void itemStateChanged( final ItemEvent e )
+			{
+				chckbxLazyContactImage.setEnabled( chckbxContactImage.isSelected() );
+			}
+		} );
+
 		final JCheckBox chckbxGenerateContactsMask = new JCheckBox( "Generate contact mask." );
 		chckbxGenerateContactsMask.setFont( FONT );
 
 		final JCheckBox chckbxGenerateLabelImage = new JCheckBox( "Generate label image." );
 		chckbxGenerateLabelImage.setFont( FONT );
 
+		final JCheckBox chckbxUniqueLabels = new JCheckBox( "Unique labels across frames." );
+		chckbxUniqueLabels.setFont( FONT );
+
 		final JCheckBox chckbxTrackLabels = new JCheckBox( "Track labels." );
 		chckbxTrackLabels.setFont( FONT );
 
+		final JCheckBox chckbxStreamToDisk = new JCheckBox( "Write results to disk frame by frame." );
+		chckbxStreamToDisk.setFont( FONT );
+
 		chckbxGenerateLabelImage.addItemListener( new ItemListener()
 		{
 			@Override
 			public void itemStateChanged( final ItemEvent e )
 			{
+				chckbxUniqueLabels.setEnabled( chckbxGenerateLabelImage.isSelected() );
 				chckbxTrackLabels.setEnabled( chckbxGenerateLabelImage.isSelected() );
 			}
 		} );
@@ -100,9 +122,13 @@ public class CCCTGui extends JFrame
 						{
 							ccctProcessor.process(
 									chckbxContactImage.isSelected(),
+									chckbxLazyContactImage.isSelected(),
 									chckbxGenerateContactsMask.isSelected(),
 									chckbxGenerateLabelImage.isSelected(),
-									chckbxTrackLabels.isSelected()
+									chckbxUniqueLabels.isSelected(),
+									chckbxTrackLabels.isSelected(),
+									chckbxAutoThresholds.isSelected(),
+									chckbxStreamToDisk.isSelected()
 									);
 						}
 						finally
@@ -126,10 +152,14 @@ public class CCCTGui extends JFrame
 								.addContainerGap()
 								.addGroup( gl_panelAnalyze.createParallelGroup( Alignment.LEADING )
 										.addComponent( progressBar, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
+										.addComponent( chckbxAutoThresholds, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
 										.addComponent( chckbxContactImage, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
+										.addComponent( chckbxLazyContactImage, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
+										.addComponent( chckbxUniqueLabels, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
 										.addComponent( chckbxTrackLabels, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
 										.addComponent( chckbxGenerateLabelImage, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
 										.addComponent( chckbxGenerateContactsMask, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
+										.addComponent( chckbxStreamToDisk, GroupLayout.DEFAULT_SIZE, 257, Short.MAX_VALUE )
 										.addComponent( btnGo, Alignment.TRAILING ) )
 								.addContainerGap() )
 				);
@@ -137,14 +167,22 @@ public class CCCTGui extends JFrame
 				gl_panelAnalyze.createParallelGroup( Alignment.LEADING )
 						.addGroup( gl_panelAnalyze.createSequentialGroup()
 								.addContainerGap()
+								.addComponent( chckbxAutoThresholds )
+								.addPreferredGap( ComponentPlacement.RELATED )
 								.addComponent( chckbxContactImage )
 								.addPreferredGap( ComponentPlacement.RELATED )
+								.addComponent( chckbxLazyContactImage )
+								.addPreferredGap( ComponentPlacement.RELATED )
 								.addComponent( chckbxGenerateContactsMask )
 								.addPreferredGap( ComponentPlacement.RELATED )
 								.addComponent( chckbxGenerateLabelImage )
 								.addPreferredGap( ComponentPlacement.RELATED )
+								.addComponent( chckbxUniqueLabels )
+								.addPreferredGap( ComponentPlacement.RELATED )
 								.addComponent( chckbxTrackLabels )
-								.addPreferredGap( ComponentPlacement.RELATED, 278, Short.MAX_VALUE )
+								.addPreferredGap( ComponentPlacement.RELATED )
+								.addComponent( chckbxStreamToDisk )
+								.addPreferredGap( ComponentPlacement.RELATED, 186, Short.MAX_VALUE )
 								.addComponent( btnGo, GroupLayout.PREFERRED_SIZE, 46, GroupLayout.PREFERRED_SIZE )
 								.addPreferredGap( ComponentPlacement.RELATED )
 								.addComponent( progressBar, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE )
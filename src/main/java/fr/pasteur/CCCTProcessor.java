@@ -2,5 +2,5 @@ package fr.pasteur;
 
 public interface CCCTProcessor
 {
-	public void process( boolean showContactImage, boolean contactMask, boolean contactLabels, boolean trackLabels );
+	public void process( boolean showContactImage, boolean lazyContactImage, boolean contactMask, boolean contactLabels, boolean uniqueLabels, boolean trackLabels, boolean autoThresholds, boolean streamToDisk );
 }
@@ -5,9 +5,19 @@ import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CHANNEL_2;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CONTACT_SENSITIVITY;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_SIGMA_FILTER;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_THRESHOLD_1;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_THRESHOLD_2;
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.gui.GuiUtils;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.ContactImgGenerator.ThresholdLookup;
 import fiji.plugin.trackmate.util.TMUtils;
-import fr.pasteur.util.Thresholder;
+import fr.pasteur.trackmate.CellContactDetectorFactory;
+import fr.pasteur.util.ConnectedComponents;
+import fr.pasteur.util.FramePrefetcher;
+import fr.pasteur.util.FramePrefetcher.Frame;
+import fr.pasteur.util.Parallel;
+import fr.pasteur.util.Planes;
 import ij.CompositeImage;
 import ij.IJ;
 import ij.ImageJ;
@@ -15,27 +25,27 @@ import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
 
+import java.awt.Color;
 import java.io.File;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.imagej.ImgPlus;
-import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreaded;
-import net.imglib2.algorithm.labeling.AllConnectedComponents;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.planar.PlanarImgFactory;
-import net.imglib2.labeling.NativeImgLabeling;
-import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 @SuppressWarnings( "deprecation" )
@@ -54,7 +64,7 @@ public class CCCT_< T extends RealType< T > & NativeType< T >> implements PlugIn
 
 	public CCCT_()
 	{
-		setNumThreads( 10 );
+		setNumThreads();
 	}
 
 	@Override
@@ -84,11 +94,8 @@ public class CCCT_< T extends RealType< T > & NativeType< T >> implements PlugIn
 	}
 
 	@Override
-	public void process( final boolean showContactImage, final boolean contactMask, final boolean contactLabels, final boolean trackLabels )
+	public void process( final boolean showContactImage, final boolean lazyContactImage, final boolean contactMask, final boolean contactLabels, final boolean uniqueLabels, final boolean trackLabels, final boolean autoThresholds, final boolean streamToDisk )
 	{
-		@SuppressWarnings( "unchecked" )
-		final ImgPlus< T > img = TMUtils.rawWraps( imp );
-
 		final Map< String, Object > settings = gui.getSettings();
 
 		// In ImgLib2, dimensions are 0-based.
@@ -97,7 +104,61 @@ public class CCCT_< T extends RealType< T > & NativeType< T >> implements PlugIn
 		final int contactSensitivity = ( Integer ) settings.get( KEY_CONTACT_SENSITIVITY );
 		final double sigma = ( Double ) settings.get( KEY_SIGMA_FILTER );
 		final double thresholdC1 = ( Double ) settings.get( KEY_THRESHOLD_1 );
-		final double thresholdC2 = ( Double ) settings.get( KEY_THRESHOLD_1 );
+		final double thresholdC2 = ( Double ) settings.get( KEY_THRESHOLD_2 );
+		final BlurMethod blurMethod = CellContactDetectorFactory.getBlurMethod( settings );
+		final DilationMethod dilationMethod = CellContactDetectorFactory.getDilationMethod( settings );
+
+		// Fixed thresholds, or estimated for each frame.
+		final ThresholdLookup thresholdsC1;
+		final ThresholdLookup thresholdsC2;
+		if ( autoThresholds )
+		{
+			gui.setProgressStatus( "Thresholds" );
+			try
+			{
+				thresholdsC1 = ThresholdEstimator.lookup( imp, channel1 );
+				thresholdsC2 = ThresholdEstimator.lookup( imp, channel2 );
+			}
+			catch ( final InterruptedException e )
+			{
+				e.printStackTrace();
+				return;
+			}
+			catch ( final ExecutionException e )
+			{
+				e.printStackTrace();
+				return;
+			}
+		}
+		else
+		{
+			thresholdsC1 = new ThresholdLookup()
+			{
+				@Override
+				public double getThreshold( final int frame )
+				{
+					return thresholdC1;
+				}
+			};
+			thresholdsC2 = new ThresholdLookup()
+			{
+				@Override
+				public double getThreshold( final int frame )
+				{
+					return thresholdC2;
+				}
+			};
+		}
+
+		if ( streamToDisk )
+		{
+			stream( showContactImage, contactMask, contactLabels, channel1, channel2, thresholdsC1, thresholdsC2, contactSensitivity, sigma, blurMethod, dilationMethod );
+			return;
+		}
+
+		// Streaming reads frames itself: only wrap the whole image otherwise.
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > img = TMUtils.rawWraps( imp );
 
 		final RandomAccessibleInterval< T > im1;
 		final RandomAccessibleInterval< T > im2;
@@ -114,9 +175,6 @@ public class CCCT_< T extends RealType< T > & NativeType< T >> implements PlugIn
 			im2 = Views.hyperSlice( img, cDim, channel2 );
 		}
 
-		final PlanarImgFactory< T > factory = new PlanarImgFactory< T >();
-		final Img< T > out = factory.create( im1, Util.getTypeFromInterval( img ) );
-
 		int timeDim = TMUtils.findTAxisIndex( img );
 		if ( timeDim >= 0 )
 		{
@@ -128,102 +186,360 @@ public class CCCT_< T extends RealType< T > & NativeType< T >> implements PlugIn
 		final int td = timeDim;
 		final int nFrames = imp.getNFrames();
 
+		// Split threads between frames and within frames.
+		final long framePixels = Intervals.numElements( im1 ) / Math.max( 1, nFrames );
+		final int[] split = Parallel.split( nFrames, framePixels );
+		final int frameWorkers = Math.min( numThreads, split[ 0 ] );
+		final int intraFrameThreads = split[ 1 ];
+
+		/*
+		 * Generate the contact image and the binary mask in the same pass. Only
+		 * store what is requested.
+		 */
+
+		if ( showContactImage && lazyContactImage )
 		{
-			gui.setProgressStatus( "Contact image" );
-			final AtomicInteger ai = new AtomicInteger( 0 );
-			final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-			for ( int i = 0; i < threads.length; i++ )
+			// Planes are computed when displayed, and cached in a quarter of the heap.
+			final ContactVirtualStack< T > stack = new ContactVirtualStack< T >( im1, im2, td, imp.getNSlices(), nFrames,
+					thresholdsC1, thresholdsC2, contactSensitivity, sigma, Runtime.getRuntime().maxMemory() / 4 );
+			stack.setBlurMethod( blurMethod );
+			stack.setDilationMethod( dilationMethod );
+			final ImagePlus contacts = new ImagePlus( "Contacts", stack );
+			contacts.setCalibration( imp.getCalibration() );
+			contacts.setDimensions( 1, imp.getNSlices(), nFrames );
+			contacts.setOpenAsHyperStack( true );
+			contacts.show();
+		}
+
+		final Img< T > out = ( showContactImage && !lazyContactImage ) ? new PlanarImgFactory< T >().create( im1, Util.getTypeFromInterval( img ) ) : null;
+		final Img< BitType > mask = ( contactMask || contactLabels ) ? new PlanarImgFactory< BitType >().create( im1, new BitType() ) : null;
+		if ( null == out && null == mask )
+		{
+			return;
+		}
+
+		/*
+		 * Pipeline: frames are read by the prefetcher, then contact image and
+		 * mask are computed by the frame workers. Each frame mask is then
+		 * passed through a bounded queue to the labeling stage, which labels
+		 * it while the next frames are still being computed. Label offsets
+		 * are applied in frame order, as soon as all previous frames are
+		 * labeled. The first error of any stage stops the pipeline: frame
+		 * workers stop taking frames, and labeling threads only drain the
+		 * queue, so that no stage waits forever on another.
+		 */
+
+		gui.setProgressStatus( contactLabels ? "Contacts and labels" : "Contact image" );
+		gui.setProgress( 0. );
+
+		// Without a time axis, the whole image is a single frame.
+		final int nStageFrames = td < 0 ? 1 : nFrames;
+		final Img< UnsignedIntType > lbl = contactLabels ? new PlanarImgFactory< UnsignedIntType >().create( mask, new UnsignedIntType() ) : null;
+		final BlockingQueue< Integer > masked = new ArrayBlockingQueue< Integer >( 2 * frameWorkers );
+		final AtomicReference< String > error = new AtomicReference< String >();
+		final Thread[] labelStage = contactLabels ? new Thread[ Math.min( frameWorkers, nStageFrames ) ] : new Thread[ 0 ];
+		if ( contactLabels )
+		{
+			final int[] nLabels = new int[ nStageFrames ];
+			final OffsetSequencer sequencer = new OffsetSequencer( nLabels, uniqueLabels );
+			final AtomicInteger labeled = new AtomicInteger( 0 );
+			for ( int i = 0; i < labelStage.length; i++ )
 			{
-				threads[ i ] = new Thread( "CCCT Thread Contact Image" )
+				labelStage[ i ] = new Thread( "CCCT labeling stage " + i )
 				{
 					@Override
 					public void run()
 					{
-						for ( int frame = ai.getAndIncrement(); frame < nFrames; frame = ai.getAndIncrement() )
+						try
+						{
+							// Take frames until the end marker, even after an error.
+							for ( int frame = masked.take(); frame >= 0; frame = masked.take() )
+							{
+								if ( null != error.get() )
+								{
+									continue;
+								}
+								try
+								{
+									nLabels[ frame ] = ConnectedComponents.label( frameOf( mask, td, frame ), frameOf( lbl, td, frame ), intraFrameThreads );
+									final int[] ready = sequencer.labeled( frame );
+									for ( int k = 0; k < ready.length; k += 2 )
+									{
+										offsetLabels( frameOf( lbl, td, ready[ k ] ), ready[ k + 1 ] );
+									}
+									gui.setProgress( ( double ) labeled.incrementAndGet() / nStageFrames );
+								}
+								catch ( final Throwable t )
+								{
+									error.compareAndSet( null, "Labeling frame " + ( frame + 1 ) + " failed: " + t );
+								}
+							}
+						}
+						catch ( final InterruptedException e )
 						{
+							error.compareAndSet( null, "Labeling was interrupted." );
+						}
+					}
+				};
+				labelStage[ i ].start();
+			}
+		}
+
+		/*
+		 * Frames are copied in contiguous buffers on an I/O thread, one frame
+		 * ahead of the workers.
+		 */
+		final FramePrefetcher< T > prefetcher = new FramePrefetcher< T >( im1, im2, td, nFrames, frameWorkers + 1 );
+		prefetcher.start();
+		final AtomicInteger done = new AtomicInteger( 0 );
+		try
+		{
+			Parallel.run( frameWorkers, new Parallel.Worker()
+			{
+				@Override
+				public void run( final int index )
+				{
+					try
+					{
+						for ( Frame< T > f = prefetcher.take(); null != f; f = prefetcher.take() )
+						{
+							if ( null != error.get() )
+							{
+								prefetcher.release( f );
+								return;
+							}
+							final int frame = f.index;
 							final ContactImgGenerator< T > algo = new ContactImgGenerator< T >(
-									Views.hyperSlice( im1, td, frame ),
-									Views.hyperSlice( im2, td, frame ),
-									Views.hyperSlice( out, out.numDimensions() - 1, frame ),
-									thresholdC1, thresholdC2, contactSensitivity, sigma );
+									f.channel1,
+									f.channel2,
+									( null == out || td < 0 ) ? out : Planes.hyperSliceLast( out, frame ),
+									thresholdsC1, thresholdsC2, frame, contactSensitivity, sigma );
+							if ( null != mask )
+							{
+								algo.setMask( frameOf( mask, td, frame ) );
+							}
+							algo.setDilationMethod( dilationMethod );
+							algo.setBlurMethod( blurMethod );
+							algo.setNumThreads( intraFrameThreads );
 
-							if ( !algo.checkInput() || !algo.process() )
+							final boolean ok = algo.checkInput() && algo.process();
+							prefetcher.release( f );
+							if ( !ok )
 							{
-								System.err.println( algo.getErrorMessage() );
+								error.compareAndSet( null, algo.getErrorMessage() );
 								return;
 							}
 
-							gui.setProgress( ( 1.0 + ai.get() ) / nFrames );
+							if ( contactLabels )
+							{
+								Parallel.put( masked, Integer.valueOf( frame ) );
+							}
+							else
+							{
+								gui.setProgress( ( double ) done.incrementAndGet() / nFrames );
+							}
 						}
 					}
-				};
+					catch ( final InterruptedException e )
+					{
+						error.compareAndSet( null, "Processing was interrupted." );
+					}
+					catch ( final Throwable t )
+					{
+						error.compareAndSet( null, "Processing failed: " + t );
+					}
+				}
+			} );
+		}
+		finally
+		{
+			prefetcher.stop();
+			try
+			{
+				// One end marker per labeling thread.
+				for ( int i = 0; i < labelStage.length; i++ )
+				{
+					masked.put( Integer.valueOf( -1 ) );
+				}
+				for ( final Thread thread : labelStage )
+				{
+					thread.join();
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				error.compareAndSet( null, "Processing was interrupted." );
 			}
-			SimpleMultiThreading.startAndJoin( threads );
+		}
+
+		// Do not show partial results.
+		if ( null != error.get() )
+		{
+			gui.setProgressStatus( "Failed" );
+			IJ.error( PLUGIN_NAME + " v" + PLUGIN_VERSION, error.get() );
+			return;
+		}
+
+		if ( null != out )
+		{
+			final ImagePlus contacts = ImageJFunctions.wrap( out, "Contacts" );
+			contacts.setCalibration( imp.getCalibration() );
+			contacts.setDimensions( 1, imp.getNSlices(), imp.getNFrames() );
+			contacts.show();
+		}
+
+		if ( contactMask )
+		{
+			final ImagePlus masks = ImageJFunctions.wrap( mask, "ContactMasks" );
+			masks.setCalibration( imp.getCalibration() );
+			masks.setDimensions( 1, imp.getNSlices(), imp.getNFrames() );
+			masks.show();
+		}
+
+		if ( contactLabels )
+		{
+			final ImagePlus labels = ImageJFunctions.wrap( lbl, "ContactLabels" );
+			labels.setCalibration( imp.getCalibration() );
+			labels.setDimensions( 1, imp.getNSlices(), imp.getNFrames() );
+			labels.show();
+		}
+	}
 
-			if ( showContactImage )
+	/**
+	 * Shifts the non-zero labels of a frame.
+	 */
+	private static final void offsetLabels( final RandomAccessibleInterval< UnsignedIntType > labels, final int offset )
+	{
+		if ( offset == 0 )
+		{
+			return;
+		}
+		for ( final UnsignedIntType label : Views.iterable( labels ) )
+		{
+			if ( label.getInteger() != 0 )
 			{
-				final ImagePlus contacts = ImageJFunctions.wrap( out, "Contacts" );
-				contacts.setCalibration( imp.getCalibration() );
-				contacts.setDimensions( 1, imp.getNSlices(), imp.getNFrames() );
-				contacts.show();
+				label.set( label.get() + offset );
 			}
 		}
-		/*
-		 * Generate binary mask.
+	}
+
+	/**
+	 * Computes the label offset of each frame as soon as all the previous
+	 * frames are labeled, so that labels are unique across frames.
+	 */
+	private static final class OffsetSequencer
+	{
+
+		private final int[] nLabels;
+
+		private final boolean unique;
+
+		private final boolean[] labeled;
+
+		private final int[] offsets;
+
+		private int next = 0;
+
+		private OffsetSequencer( final int[] nLabels, final boolean unique )
+		{
+			this.nLabels = nLabels;
+			this.unique = unique;
+			this.labeled = new boolean[ nLabels.length ];
+			this.offsets = new int[ nLabels.length ];
+		}
+
+		/**
+		 * Marks a frame as labeled, and returns the frames whose offset is now
+		 * known, as pairs of frame index and label offset.
 		 */
+		private synchronized int[] labeled( final int frame )
+		{
+			if ( !unique )
+			{
+				return new int[ 0 ];
+			}
+			labeled[ frame ] = true;
+			final int first = next;
+			while ( next < labeled.length && labeled[ next ] )
+			{
+				offsets[ next ] = next == 0 ? 0 : offsets[ next - 1 ] + nLabels[ next - 1 ];
+				next++;
+			}
+			final int[] ready = new int[ 2 * ( next - first ) ];
+			for ( int f = first; f < next; f++ )
+			{
+				ready[ 2 * ( f - first ) ] = f;
+				ready[ 2 * ( f - first ) + 1 ] = offsets[ f ];
+			}
+			return ready;
+		}
+	}
 
-		if ( contactMask || contactLabels )
+	/**
+	 * Processes the movie frame by frame, writing the results of each frame in
+	 * a folder chosen by the user instead of showing them.
+	 */
+	private void stream( final boolean contactImage, final boolean contactMask, final boolean contactLabels, final int channel1, final int channel2,
+			final ThresholdLookup thresholdsC1, final ThresholdLookup thresholdsC2, final int contactSensitivity, final double sigma, final BlurMethod blurMethod, final DilationMethod dilationMethod )
+	{
+		final String folder = IJ.getDirectory( "Choose a folder for the results" );
+		if ( null == folder )
 		{
-			final PlanarImgFactory< BitType > maskFactory = new PlanarImgFactory< BitType >();
-			final Img< BitType > mask = maskFactory.create( im1, new BitType() );
-			final T valTreshold = out.firstElement().createVariable();
-			valTreshold.setZero();
+			return;
+		}
 
-			gui.setProgressStatus( "Contact masks" );
-			final AtomicInteger ai = new AtomicInteger( 0 );
-			final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-			for ( int i = 0; i < threads.length; i++ )
+		gui.setProgressStatus( "Streaming to disk" );
+		gui.setProgress( 0. );
+		final ContactStreamer< T > streamer = new ContactStreamer< T >( imp, channel1, channel2, thresholdsC1, thresholdsC2, contactSensitivity, sigma,
+				new File( folder ), contactImage, contactMask, contactLabels );
+		streamer.setNumThreads( numThreads );
+		streamer.setBlurMethod( blurMethod );
+		streamer.setDilationMethod( dilationMethod );
+		streamer.setLogger( new Logger()
+		{
+			@Override
+			public void log( final String message, final Color color )
 			{
-				threads[ i ] = new Thread( "CCCT Thread Contact Mask" )
-				{
-					@Override
-					public void run()
-					{
-						for ( int frame = ai.getAndIncrement(); frame < nFrames; frame = ai.getAndIncrement() )
-						{
-							final IterableInterval< BitType > maskSlice = Views.hyperSlice( mask, mask.numDimensions() - 1, frame );
-							final IntervalView< T > slice = Views.hyperSlice( out, out.numDimensions() - 1, frame );
-							Thresholder.threshold( slice, maskSlice, valTreshold, true, 1 );
-							gui.setProgress( ( 1.0 + ai.get() ) / nFrames );
-						}
-					}
-				};
+				IJ.log( message );
 			}
-			SimpleMultiThreading.startAndJoin( threads );
 
-			if ( contactMask )
+			@Override
+			public void error( final String message )
 			{
-				final ImagePlus masks = ImageJFunctions.wrap( mask, "ContactMasks" );
-				masks.setCalibration( imp.getCalibration() );
-				masks.setDimensions( 1, imp.getNSlices(), imp.getNFrames() );
-				masks.show();
+				IJ.log( message );
 			}
 
-			if ( contactLabels )
+			@Override
+			public void setProgress( final double val )
 			{
-				gui.setProgressStatus( "Contact labels" );
-				gui.setProgress( 0. );
-				final Iterator< Integer > names = AllConnectedComponents.getIntegerNames( 0 );
-				final Img< UnsignedIntType > lbl = new PlanarImgFactory< UnsignedIntType >().create( mask, new UnsignedIntType() );
-				final NativeImgLabeling< Integer, UnsignedIntType > labeling = new NativeImgLabeling< Integer, UnsignedIntType >( lbl );
-				AllConnectedComponents.labelAllConnectedComponents( labeling, mask, names );
+				gui.setProgress( val );
+			}
 
-				final ImagePlus labels = ImageJFunctions.wrap( lbl, "ContactLabels" );
-				labels.setCalibration( imp.getCalibration() );
-				labels.setDimensions( 1, imp.getNSlices(), imp.getNFrames() );
-				labels.show();
+			@Override
+			public void setStatus( final String status )
+			{
+				gui.setProgressStatus( status );
 			}
+		} );
+		if ( !streamer.checkInput() || !streamer.process() )
+		{
+			IJ.error( PLUGIN_NAME + " v" + PLUGIN_VERSION, streamer.getErrorMessage() );
+			return;
+		}
+		gui.setProgressStatus( "Done in " + streamer.getProcessingTime() / 1000 + " s" );
+	}
+
+	/**
+	 * Returns the specified frame of an image whose last dimension is time,
+	 * or the whole image if it has no time axis.
+	 */
+	private static final < R > RandomAccessibleInterval< R > frameOf( final RandomAccessibleInterval< R > img, final int timeDim, final int frame )
+	{
+		if ( timeDim < 0 )
+		{
+			return img;
 		}
+		return Views.hyperSlice( img, img.numDimensions() - 1, frame );
 	}
 
 	public static < T extends RealType< T > & NativeType< T >> void main( final String[] args )
@@ -233,10 +549,15 @@ public class CCCT_< T extends RealType< T > & NativeType< T >> implements PlugIn
 		new CCCT_< T >().run( file.getAbsolutePath() );
 	}
 
+	/**
+	 * Sets the maximal number of frames processed concurrently to the
+	 * parallelism of the shared executor. The actual split between frame
+	 * and intra-frame parallelism is decided by {@link Parallel#split(int, long)}.
+	 */
 	@Override
 	public void setNumThreads()
 	{
-		this.numThreads = Runtime.getRuntime().availableProcessors();
+		this.numThreads = Parallel.getParallelism();
 	}
 
 	@Override
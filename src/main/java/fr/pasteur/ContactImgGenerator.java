@@ -1,33 +1,170 @@
 package fr.pasteur;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.Cursor;
-import net.imglib2.IterableInterval;
-import net.imglib2.RandomAccess;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.Algorithm;
 import net.imglib2.algorithm.Benchmark;
 import net.imglib2.algorithm.MultiThreaded;
-import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.algorithm.morphology.Dilation;
 import net.imglib2.algorithm.morphology.StructuringElements;
 import net.imglib2.algorithm.neighborhood.Shape;
-import net.imglib2.algorithm.stats.ComputeMinMax;
 import net.imglib2.exception.IncompatibleTypeException;
-import net.imglib2.histogram.Histogram1d;
-import net.imglib2.histogram.Real1dBinMapper;
 import net.imglib2.img.Img;
-import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
+import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
+import fr.pasteur.util.BufferPool;
+import fr.pasteur.util.Histogram;
+import fr.pasteur.util.Parallel;
+import fr.pasteur.util.ParallelGauss;
+import fr.pasteur.util.Planes;
+import fr.pasteur.util.RecursiveGaussian;
+import fr.pasteur.util.RunningMaxDilation;
 
+/**
+ * Generates the contact image of two channels.
+ * <p>
+ * Each channel is filtered by a gaussian, then dilated by a disk of radius
+ * <code>contactSensitivity</code>. The contact image value is then
+ * <code>t1 * t2 / ( t1 + t2 )</code> where <code>t1</code> and
+ * <code>t2</code> are the filtered channel values minus their threshold,
+ * clipped to 0.
+ * <p>
+ * The frame is processed tile by tile: blur, dilation and combination are
+ * fused for each tile, using small intermediate buffers expanded by the
+ * dilation radius. No full-frame intermediate image is created, and tile
+ * buffers are borrowed from a {@link BufferPool} so that processing many
+ * frames does not allocate new buffers for each frame. The blur and the
+ * dilation are computed again over the padding of each tile, so tiles are
+ * made at least {@link #MIN_TILE_TO_PADDING} times larger than their padding
+ * (see {@link #tileDimensions(Interval, int, long[])}). When the frame is
+ * too small for this, it is processed as a single tile.
+ * <p>
+ * The filtered and dilated channels are computed in <code>float</code>,
+ * whatever the type of the sources. Contact values of <code>double</code>
+ * sources are therefore computed with less precision, and those of integer
+ * sources are not rounded after the filter as when the filtered channels were
+ * stored in the type of the sources.
+ * <p>
+ * The dilation algorithm can be chosen with
+ * {@link #setDilationMethod(DilationMethod)}, and the gaussian filter
+ * algorithm with {@link #setBlurMethod(BlurMethod)}.
+ *
+ * <p>
+ * If the target is backed by primitive arrays of a common type (see
+ * {@link Planes}), contact values are written directly in these arrays.
+ * <p>
+ * Tiles are processed in parallel on the shared executor of {@link Parallel},
+ * with at most {@link #getNumThreads()} concurrent tasks. When this leaves
+ * threads of the executor idle, the two channels of each tile are processed
+ * as two concurrent tasks (see {@link #setConcurrentChannels(boolean)}).
+ * <p>
+ * The contact mask, true where the contact image is strictly positive, can be
+ * written in the same pass with {@link #setMask(RandomAccessibleInterval)}.
+ * The contact image itself is then optional.
+ *
+ * @author Jean-Yves Tinevez
+ */
 public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> implements Algorithm, MultiThreaded, Benchmark
 {
 	private static final String BASE_ERROR_MSG = "[ContactImgGenerator] ";
 
+	/**
+	 * Default number of pixels in a tile. The intermediate buffers of a tile
+	 * are meant to fit in the CPU cache, unless the padding of the tile
+	 * requires larger tiles.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 16384;
+
+	/**
+	 * Minimal ratio, along each dimension, of the tile size to the padding
+	 * added on both sides of the tile for the blur and the dilation. The
+	 * padded tile is then at most 25% larger than the tile along each
+	 * dimension.
+	 */
+	public static final int MIN_TILE_TO_PADDING = 4;
+
+	/**
+	 * The relative margin below a threshold that the raw max around a tile
+	 * must have for the tile to be skipped, to absorb the rounding of the
+	 * single-precision filter.
+	 */
+	public static final double SKIP_MARGIN = 1e-4;
+
+	/**
+	 * The algorithms available to dilate the filtered channels.
+	 */
+	public static enum DilationMethod
+	{
+		/**
+		 * Grey dilation by a disk, as implemented in ImgLib2. The cost grows
+		 * with the disk area. This is the reference footprint.
+		 */
+		DISK,
+		/**
+		 * Grey dilation by a polygon approximating the disk, with the
+		 * running max algorithm of {@link RunningMaxDilation}. The cost does
+		 * not depend on the disk radius.
+		 * <p>
+		 * The footprint differs from the one of {@link #DISK}: the polygon
+		 * reaches about the radius along the axes and the diagonals, but its
+		 * sides are straight, so it adds or misses pixels near the rim of the
+		 * disk, and it may reach one pixel further along an axis. Contacts can
+		 * therefore differ by about one pixel at their border.
+		 */
+		RUNNING_MAX;
+	}
+
+	/**
+	 * The algorithms available to filter the channels.
+	 */
+	public static enum BlurMethod
+	{
+		/**
+		 * Gaussian convolution, as implemented in ImgLib2. The cost grows
+		 * with sigma.
+		 */
+		GAUSS3,
+		/**
+		 * Recursive approximation of the gaussian filter, with
+		 * {@link RecursiveGaussian}. The cost does not depend on sigma, which
+		 * makes it faster for large sigmas.
+		 */
+		RECURSIVE;
+	}
+
+	/**
+	 * The threshold of a channel for each frame of a movie.
+	 */
+	public static interface ThresholdLookup
+	{
+		/**
+		 * Returns the threshold for the specified frame.
+		 *
+		 * @param frame
+		 *            the frame, 0-based.
+		 * @return the threshold.
+		 */
+		public double getThreshold( int frame );
+	}
+
 	private final RandomAccessibleInterval< T > img1;
 
 	private final RandomAccessibleInterval< T > img2;
@@ -38,7 +175,9 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 
 	private int numThreads;
 
-	private final IterableInterval< T > out;
+	private final RandomAccessibleInterval< T > out;
+
+	private RandomAccessibleInterval< BitType > mask;
 
 	private long processingTime;
 
@@ -48,7 +187,31 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 
 	private final double threshold_C2;
 
-	public ContactImgGenerator( final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< T > img2, final IterableInterval< T > out,
+	private int tileSize = DEFAULT_TILE_SIZE;
+
+	private DilationMethod dilationMethod = DilationMethod.DISK;
+
+	private BlurMethod blurMethod = BlurMethod.GAUSS3;
+
+	private BufferPool bufferPool = BufferPool.getShared();
+
+	private boolean concurrentChannels = true;
+
+	private boolean skipEmptyTiles = true;
+
+	/*
+	 * Set by prepareDilation().
+	 */
+
+	private double[] sigmas;
+
+	private List< Shape > strel;
+
+	private RunningMaxDilation runningMax;
+
+	private long[] halo;
+
+	public ContactImgGenerator( final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< T > img2, final RandomAccessibleInterval< T > out,
 			final double threshold_C1, final double threshold_C2, final int contactSensitivity, final double sigma )
 	{
 		this.img1 = img1;
@@ -61,6 +224,163 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 		setNumThreads();
 	}
 
+	/**
+	 * Creates a generator for one frame of a movie, whose channel thresholds
+	 * change over time.
+	 *
+	 * @param img1
+	 *            the frame of channel 1.
+	 * @param img2
+	 *            the frame of channel 2.
+	 * @param out
+	 *            the contact image to write to, can be <code>null</code> if
+	 *            a mask is set.
+	 * @param thresholds_C1
+	 *            the thresholds of channel 1.
+	 * @param thresholds_C2
+	 *            the thresholds of channel 2.
+	 * @param frame
+	 *            the frame, 0-based, to look the thresholds up for.
+	 * @param contactSensitivity
+	 *            the dilation radius.
+	 * @param sigma
+	 *            the gaussian filter sigma.
+	 */
+	public ContactImgGenerator( final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< T > img2, final RandomAccessibleInterval< T > out,
+			final ThresholdLookup thresholds_C1, final ThresholdLookup thresholds_C2, final int frame, final int contactSensitivity, final double sigma )
+	{
+		this( img1, img2, out, thresholds_C1.getThreshold( frame ), thresholds_C2.getThreshold( frame ), contactSensitivity, sigma );
+	}
+
+	/**
+	 * Sets the image the contact mask is written to, in the same pass as the
+	 * contact image. A pixel of the mask is true if the contact value, as
+	 * stored in the type of the source images, is strictly positive.
+	 *
+	 * @param mask
+	 *            the mask image, must have the same dimensions than the
+	 *            sources. If <code>null</code>, no mask is generated.
+	 */
+	public void setMask( final RandomAccessibleInterval< BitType > mask )
+	{
+		this.mask = mask;
+	}
+
+	/**
+	 * Sets the approximate number of pixels in a processing tile. Tiles can
+	 * be larger, so that they are large compared to their padding.
+	 *
+	 * @param tileSize
+	 *            the number of pixels in a tile, must be positive.
+	 */
+	public void setTileSize( final int tileSize )
+	{
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Sets the algorithm used to dilate the filtered channels.
+	 *
+	 * @param dilationMethod
+	 *            the dilation algorithm.
+	 */
+	public void setDilationMethod( final DilationMethod dilationMethod )
+	{
+		this.dilationMethod = dilationMethod;
+		this.halo = null;
+	}
+
+	/**
+	 * Sets the algorithm used to filter the channels.
+	 *
+	 * @param blurMethod
+	 *            the gaussian filter algorithm.
+	 */
+	public void setBlurMethod( final BlurMethod blurMethod )
+	{
+		this.blurMethod = blurMethod;
+	}
+
+	/**
+	 * Sets the pool the tile buffers are borrowed from. By default, the
+	 * shared pool is used.
+	 *
+	 * @param bufferPool
+	 *            the buffer pool.
+	 */
+	public void setBufferPool( final BufferPool bufferPool )
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Sets whether the two channels of a tile are filtered and dilated
+	 * concurrently, as two tasks of the shared executor. This is done only
+	 * when fewer tiles are processed concurrently than the executor has
+	 * threads, for instance with a single thread per frame. On by default.
+	 *
+	 * @param concurrentChannels
+	 *            whether to process the channels of a tile concurrently.
+	 */
+	public void setConcurrentChannels( final boolean concurrentChannels )
+	{
+		this.concurrentChannels = concurrentChannels;
+	}
+
+	/**
+	 * Sets whether tiles where no contact is possible are skipped. A tile is
+	 * skipped if, for one of the channels, no raw pixel within the reach of
+	 * the gaussian filter and of the dilation is above the channel threshold:
+	 * the filtered and dilated channel then cannot be above the threshold
+	 * either, and the contact value is 0 over the whole tile. The filtered
+	 * channels are computed in single precision, and rounding can bring the
+	 * filtered value of a flat region slightly above its raw value: the raw
+	 * maxima must therefore be below the thresholds by a relative margin of
+	 * {@link #SKIP_MARGIN}, much larger than this rounding, for the tile to be
+	 * skipped. The result is then the same, but sparse images are processed
+	 * much faster. With the {@link BlurMethod#RECURSIVE} filter, whose
+	 * response is truncated and slightly negative in places, it is the same
+	 * up to the approximation of the filter. On by default.
+	 *
+	 * @param skipEmptyTiles
+	 *            whether to skip tiles without possible contacts.
+	 */
+	public void setSkipEmptyTiles( final boolean skipEmptyTiles )
+	{
+		this.skipEmptyTiles = skipEmptyTiles;
+	}
+
+	/**
+	 * Returns how far, along each dimension, the dilation reads the filtered
+	 * channels from the pixel it is computed for.
+	 *
+	 * @return a new <code>long[]</code> array.
+	 */
+	public long[] getDilationExtent()
+	{
+		prepareDilation();
+		return halo.clone();
+	}
+
+	/**
+	 * Returns how far, along each dimension, the contact value of a pixel
+	 * depends on the sources: through the gaussian filter, then through the
+	 * dilation. The contact image computed over a crop of the sources is
+	 * therefore exact at least this far from the crop border.
+	 *
+	 * @return a new <code>long[]</code> array.
+	 */
+	public long[] getReach()
+	{
+		final long[] reach = getDilationExtent();
+		final int blurExtent = blurExtent();
+		for ( int d = 0; d < reach.length; d++ )
+		{
+			reach[ d ] += blurExtent;
+		}
+		return reach;
+	}
+
 	@Override
 	public boolean checkInput()
 	{
@@ -72,6 +392,23 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 						+ d + ", img1 = " + img1.dimension( d ) + " and img2 = " + img2.dimension( d ) + ".";
 				return false;
 			}
+			if ( null != out && img1.dimension( d ) != out.dimension( d ) )
+			{
+				errorMessage = BASE_ERROR_MSG + "Target image does not have the same dimensions as the source (for dimension "
+						+ d + ", img1 = " + img1.dimension( d ) + " and out = " + out.dimension( d ) + ".";
+				return false;
+			}
+			if ( null != mask && img1.dimension( d ) != mask.dimension( d ) )
+			{
+				errorMessage = BASE_ERROR_MSG + "Mask image does not have the same dimensions as the source (for dimension "
+						+ d + ", img1 = " + img1.dimension( d ) + " and mask = " + mask.dimension( d ) + ".";
+				return false;
+			}
+		}
+		if ( null == out && null == mask )
+		{
+			errorMessage = BASE_ERROR_MSG + "Both the target image and the mask image are null.";
+			return false;
 		}
 		if ( contactSensitivity < 1 )
 		{
@@ -83,6 +420,11 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 			errorMessage = BASE_ERROR_MSG + "The gaussian filter sigma is lower than or equal to 0 (σ = " + sigma + ").";
 			return false;
 		}
+		if ( tileSize < 1 )
+		{
+			errorMessage = BASE_ERROR_MSG + "The tile size must be greater than 0 (was " + tileSize + ").";
+			return false;
+		}
 		return true;
 	}
 
@@ -91,55 +433,766 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 	{
 		final long start = System.currentTimeMillis();
 
-		final double[] sigmas = Util.getArrayFromValue( sigma, img1.numDimensions() );
-		final ImgFactory< T > factory = Util.getArrayOrCellImgFactory( img1, Util.getTypeFromInterval( img1 ) );
+		final Planes outPlanes = null == out ? null : Planes.of( out );
+		final Planes maskPlanes = null == mask ? null : Planes.of( mask );
+		final double minMaskValue = minMaskValue();
+		prepareDilation();
+
+		final long[] tileDims = tileDimensions( img1, tileSize, getReach() );
+		final List< Interval > tiles = tiles( img1, tileDims );
+		final int tileBufferSize = ( int ) Intervals.numElements( tileDims );
+		final int haloBufferSize = haloBufferSize( tileDims );
+
+		final boolean[] active = skipEmptyTiles ? activeTiles( tiles, tileDims ) : null;
+
+		final int nWorkers = Math.min( numThreads, tiles.size() );
+		final boolean forkChannels = concurrentChannels && nWorkers < Parallel.getParallelism();
+
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Planes.PartialWords[] partialWords = partialWords( maskPlanes, nWorkers );
+		Parallel.run( nWorkers, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				// Per-worker buffers, reused for all the tiles it processes.
+				final float[] haloBuffer1 = bufferPool.borrowFloats( haloBufferSize );
+				final float[] haloBuffer2 = forkChannels ? bufferPool.borrowFloats( haloBufferSize ) : haloBuffer1;
+				final float[] dilated1 = bufferPool.borrowFloats( tileBufferSize );
+				final float[] dilated2 = bufferPool.borrowFloats( tileBufferSize );
+				try
+				{
+					for ( int t = ai.getAndIncrement(); t < tiles.size() && ok.get(); t = ai.getAndIncrement() )
+					{
+						final Interval tile = tiles.get( t );
+						if ( null != active && !active[ t ] )
+						{
+							// No contact possible: combine writes 0.
+							final int size = ( int ) Intervals.numElements( tile );
+							Arrays.fill( dilated1, 0, size, Float.NEGATIVE_INFINITY );
+							Arrays.fill( dilated2, 0, size, Float.NEGATIVE_INFINITY );
+						}
+						// The tile is combined once both channels cover it.
+						else if ( !blurAndDilate( tile, haloBuffer1, haloBuffer2, dilated1, dilated2, forkChannels ) )
+						{
+							ok.set( false );
+							return;
+						}
+						combine( tile, dilated1, dilated2, outPlanes, maskPlanes, minMaskValue, partialWords[ index ] );
+					}
+				}
+				finally
+				{
+					bufferPool.release( haloBuffer1 );
+					if ( haloBuffer2 != haloBuffer1 )
+					{
+						bufferPool.release( haloBuffer2 );
+					}
+					bufferPool.release( dilated1 );
+					bufferPool.release( dilated2 );
+				}
+			}
+		} );
+		applyPartialWords( partialWords );
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		return ok.get();
+	}
+
+	/**
+	 * Computes the first stage of the contact image for one channel: the
+	 * channel filtered by the gaussian, then dilated. Together with
+	 * {@link #combine(RandomAccessibleInterval, RandomAccessibleInterval)},
+	 * this gives the same result as {@link #process()}, and lets callers keep
+	 * the dilated channels to combine them again with other thresholds.
+	 *
+	 * @param channel
+	 *            the channel, 1 or 2.
+	 * @return a new image with the dimensions of the sources and a min at 0,
+	 *         or <code>null</code> if the computation failed.
+	 */
+	public Img< FloatType > dilatedChannel( final int channel )
+	{
+		final RandomAccessibleInterval< T > source = channel == 1 ? img1 : img2;
+		final long[] dims = Intervals.dimensionsAsLongArray( source );
+		final ArrayImg< FloatType, FloatArray > target = ArrayImgs.floats( dims );
+		final float[] targetArray = target.update( null ).getCurrentStorageArray();
+		final Interval targetInterval = Views.translate( target, Intervals.minAsLongArray( source ) );
+		prepareDilation();
+
+		final long[] tileDims = tileDimensions( source, tileSize, getReach() );
+		final List< Interval > tiles = tiles( source, tileDims );
+		final int tileBufferSize = ( int ) Intervals.numElements( tileDims );
+		final int haloBufferSize = haloBufferSize( tileDims );
+
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Parallel.run( Math.min( numThreads, tiles.size() ), new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				final float[] haloBuffer = bufferPool.borrowFloats( haloBufferSize );
+				final float[] dilated = bufferPool.borrowFloats( tileBufferSize );
+				try
+				{
+					for ( int t = ai.getAndIncrement(); t < tiles.size() && ok.get(); t = ai.getAndIncrement() )
+					{
+						final Interval tile = tiles.get( t );
+						blurAndDilate( source, tile, haloBuffer, dilated );
+						paste( dilated, tile, targetArray, targetInterval );
+					}
+				}
+				catch ( final IncompatibleTypeException e )
+				{
+					errorMessage = BASE_ERROR_MSG + e.getMessage();
+					e.printStackTrace();
+					ok.set( false );
+				}
+				finally
+				{
+					bufferPool.release( haloBuffer );
+					bufferPool.release( dilated );
+				}
+			}
+		} );
+		return ok.get() ? target : null;
+	}
+
+	/**
+	 * Computes the second stage of the contact image: combines two channels
+	 * already filtered and dilated by {@link #dilatedChannel(int)}, and writes
+	 * the contact image and the mask, if they are set.
+	 *
+	 * @param dilated1
+	 *            the dilated channel 1, with a min at 0.
+	 * @param dilated2
+	 *            the dilated channel 2, with a min at 0.
+	 * @return <code>true</code> if the computation succeeded.
+	 */
+	public boolean combine( final RandomAccessibleInterval< FloatType > dilated1, final RandomAccessibleInterval< FloatType > dilated2 )
+	{
+		final long start = System.currentTimeMillis();
+
+		final long[] min = Intervals.minAsLongArray( img1 );
+		final RandomAccessibleInterval< FloatType > source1 = Views.translate( dilated1, min );
+		final RandomAccessibleInterval< FloatType > source2 = Views.translate( dilated2, min );
+		final Planes outPlanes = null == out ? null : Planes.of( out );
+		final Planes maskPlanes = null == mask ? null : Planes.of( mask );
+		final double minMaskValue = minMaskValue();
 
-		final List< Shape > strel = StructuringElements.disk( contactSensitivity, img1.numDimensions() );
+		final long[] tileDims = tileDimensions( img1, tileSize, getReach() );
+		final List< Interval > tiles = tiles( img1, tileDims );
+		final int tileBufferSize = ( int ) Intervals.numElements( tileDims );
 
-		final Img< T > target1 = factory.create( img1, Util.getTypeFromInterval( img1 ) );
-		try
+		final int nWorkers = Math.min( numThreads, tiles.size() );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Planes.PartialWords[] partialWords = partialWords( maskPlanes, nWorkers );
+		Parallel.run( nWorkers, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				final float[] buffer1 = bufferPool.borrowFloats( tileBufferSize );
+				final float[] buffer2 = bufferPool.borrowFloats( tileBufferSize );
+				try
+				{
+					for ( int t = ai.getAndIncrement(); t < tiles.size(); t = ai.getAndIncrement() )
+					{
+						final Interval tile = tiles.get( t );
+						fill( source1, tile, buffer1 );
+						fill( source2, tile, buffer2 );
+						combine( tile, buffer1, buffer2, outPlanes, maskPlanes, minMaskValue, partialWords[ index ] );
+					}
+				}
+				finally
+				{
+					bufferPool.release( buffer1 );
+					bufferPool.release( buffer2 );
+				}
+			}
+		} );
+		applyPartialWords( partialWords );
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Returns one collector of partly written mask words per worker, or
+	 * empty collectors if the mask is not written through {@link Planes}.
+	 */
+	private static Planes.PartialWords[] partialWords( final Planes maskPlanes, final int nWorkers )
+	{
+		final Planes.PartialWords[] partialWords = new Planes.PartialWords[ nWorkers ];
+		if ( null != maskPlanes )
 		{
-			Gauss3.gauss( sigmas, Views.extendMirrorDouble( img1 ), target1, numThreads );
+			for ( int i = 0; i < nWorkers; i++ )
+			{
+				partialWords[ i ] = new Planes.PartialWords();
+			}
 		}
-		catch ( final IncompatibleTypeException e )
+		return partialWords;
+	}
+
+	/**
+	 * Writes the mask words collected by the workers, once they are done.
+	 */
+	private static void applyPartialWords( final Planes.PartialWords[] partialWords )
+	{
+		for ( final Planes.PartialWords pw : partialWords )
 		{
-			errorMessage = BASE_ERROR_MSG + e.getMessage();
-			e.printStackTrace();
-			return false;
+			if ( null != pw )
+			{
+				pw.apply();
+			}
 		}
-		Dilation.dilateInPlace( target1, target1, strel, numThreads );
+	}
 
-		final Img< T > target2 = factory.create( img1, Util.getTypeFromInterval( img1 ) );
-		try
+	/**
+	 * Integer types round contact values when storing them: the mask is true
+	 * for values that round to at least 1.
+	 */
+	private double minMaskValue()
+	{
+		return Util.getTypeFromInterval( img1 ) instanceof IntegerType ? 0.5 : Double.MIN_VALUE;
+	}
+
+	/**
+	 * Prepares the gaussian sigmas and the dilation structuring element or
+	 * algorithm, and the margin the dilation needs around a tile. Does nothing
+	 * if they are already prepared, so that the two channels can be computed
+	 * concurrently.
+	 */
+	private synchronized void prepareDilation()
+	{
+		if ( null != halo )
 		{
-			Gauss3.gauss( sigmas, Views.extendMirrorDouble( img2 ), target2, numThreads );
+			return;
 		}
-		catch ( final IncompatibleTypeException e )
+		final int n = img1.numDimensions();
+		sigmas = Util.getArrayFromValue( sigma, n );
+		switch ( dilationMethod )
 		{
-			errorMessage = BASE_ERROR_MSG + e.getMessage();
-			e.printStackTrace();
-			return false;
+		case RUNNING_MAX:
+			strel = null;
+			runningMax = new RunningMaxDilation( contactSensitivity, n );
+			halo = runningMax.getExtent();
+			break;
+		case DISK:
+		default:
+			strel = StructuringElements.disk( contactSensitivity, n );
+			runningMax = null;
+			halo = new long[ n ];
+			Arrays.fill( halo, contactSensitivity );
+			break;
 		}
-		Dilation.dilateInPlace( target2, target2, strel, numThreads );
+	}
 
-		final Cursor< T > oc = out.localizingCursor();
-		final RandomAccess< T > ra1 = target1.randomAccess( out );
-		final RandomAccess< T > ra2 = target2.randomAccess( out );
-		while ( oc.hasNext() )
+	/**
+	 * Returns how far the gaussian filter reads the source from the pixel it
+	 * is computed for.
+	 */
+	private int blurExtent()
+	{
+		return blurMethod == BlurMethod.RECURSIVE ? RecursiveGaussian.getMargin( sigma ) : Math.max( 2, ( int ) ( 3 * sigma + 0.5 ) + 1 );
+	}
+
+	/**
+	 * Returns for each tile whether a contact is possible in it: whether both
+	 * channels have a raw value above their threshold within the reach of the
+	 * filter and of the dilation around the tile. Tile maxima are computed
+	 * once, then propagated to the neighbour tiles within reach.
+	 */
+	private boolean[] activeTiles( final List< Interval > tiles, final long[] tileDims )
+	{
+		final int n = img1.numDimensions();
+		final int blurExtent = blurExtent();
+		final long[] nTiles = new long[ n ];
+		final int[] reach = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			nTiles[ d ] = ( img1.dimension( d ) + tileDims[ d ] - 1 ) / tileDims[ d ];
+			reach[ d ] = ( int ) ( ( halo[ d ] + blurExtent + tileDims[ d ] - 1 ) / tileDims[ d ] );
+		}
+
+		final double[] max1 = maxOverReach( tileMax( img1, tiles ), nTiles, reach );
+		final double[] max2 = maxOverReach( tileMax( img2, tiles ), nTiles, reach );
+		final boolean[] active = new boolean[ tiles.size() ];
+		for ( int t = 0; t < active.length; t++ )
 		{
-			oc.fwd();
-			ra1.setPosition( oc );
-			ra2.setPosition( oc );
+			active[ t ] = mayExceed( max1[ t ], threshold_C1 ) && mayExceed( max2[ t ], threshold_C2 );
+		}
+		return active;
+	}
+
+	/**
+	 * Returns whether a filtered value computed from raw values whose max is
+	 * specified can be above a threshold, given the rounding of the filter.
+	 */
+	private static final boolean mayExceed( final double max, final double threshold )
+	{
+		return max > threshold - SKIP_MARGIN * Math.max( Math.abs( max ), Math.abs( threshold ) );
+	}
 
-			final double t1 = Math.max( 0., ra1.get().getRealDouble() - threshold_C1 );
-			final double t2 = Math.max( 0., ra2.get().getRealDouble() - threshold_C2 );
+	/**
+	 * Returns the max of the raw source over each tile.
+	 */
+	private double[] tileMax( final RandomAccessibleInterval< T > source, final List< Interval > tiles )
+	{
+		final double[] max = new double[ tiles.size() ];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Parallel.run( Math.min( numThreads, tiles.size() ), new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				for ( int t = ai.getAndIncrement(); t < tiles.size(); t = ai.getAndIncrement() )
+				{
+					double m = Double.NEGATIVE_INFINITY;
+					for ( final T pixel : Views.interval( source, tiles.get( t ) ) )
+					{
+						final double v = pixel.getRealDouble();
+						if ( v > m )
+						{
+							m = v;
+						}
+					}
+					max[ t ] = m;
+				}
+			}
+		} );
+		return max;
+	}
 
-			oc.get().setReal( ( t1 * t2 ) / ( t1 + t2 ) );
+	/**
+	 * Max filter over the tile grid, separable, with the specified reach in
+	 * tiles along each dimension.
+	 */
+	private static final double[] maxOverReach( final double[] grid, final long[] nTiles, final int[] reach )
+	{
+		double[] source = grid;
+		long stride = 1;
+		for ( int d = 0; d < nTiles.length; d++ )
+		{
+			final double[] target = new double[ source.length ];
+			for ( int t = 0; t < source.length; t++ )
+			{
+				final long k = ( t / stride ) % nTiles[ d ];
+				final long from = Math.max( 0, k - reach[ d ] );
+				final long to = Math.min( nTiles[ d ] - 1, k + reach[ d ] );
+				double m = Double.NEGATIVE_INFINITY;
+				for ( long j = from; j <= to; j++ )
+				{
+					m = Math.max( m, source[ ( int ) ( t + ( j - k ) * stride ) ] );
+				}
+				target[ t ] = m;
+			}
+			source = target;
+			stride *= nTiles[ d ];
 		}
+		return source;
+	}
 
-		final long end = System.currentTimeMillis();
-		this.processingTime = end - start;
-		return true;
+	private int haloBufferSize( final long[] tileDims )
+	{
+		final long[] haloDims = new long[ tileDims.length ];
+		for ( int d = 0; d < tileDims.length; d++ )
+		{
+			haloDims[ d ] = tileDims[ d ] + 2 * halo[ d ];
+		}
+		return ( int ) Intervals.numElements( haloDims );
+	}
+
+	/**
+	 * Filters and dilates the two channels over a tile, one after the other
+	 * or concurrently. Concurrent branches need distinct halo buffers.
+	 */
+	private boolean blurAndDilate( final Interval tile, final float[] haloBuffer1, final float[] haloBuffer2, final float[] dilated1, final float[] dilated2, final boolean concurrently )
+	{
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		Parallel.run( concurrently ? 2 : 1, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				try
+				{
+					if ( !concurrently || index == 0 )
+					{
+						blurAndDilate( img1, tile, haloBuffer1, dilated1 );
+					}
+					if ( !concurrently || index == 1 )
+					{
+						blurAndDilate( img2, tile, haloBuffer2, dilated2 );
+					}
+				}
+				catch ( final IncompatibleTypeException e )
+				{
+					errorMessage = BASE_ERROR_MSG + e.getMessage();
+					e.printStackTrace();
+					ok.set( false );
+				}
+			}
+		} );
+		return ok.get();
+	}
+
+	/**
+	 * Filters and dilates the specified source over a tile, with the
+	 * dilation prepared by {@link #prepareDilation()}.
+	 */
+	private void blurAndDilate( final RandomAccessibleInterval< T > source, final Interval tile, final float[] haloBuffer, final float[] tileBuffer ) throws IncompatibleTypeException
+	{
+		if ( null == runningMax )
+		{
+			blurAndDilate( source, tile, sigmas, strel, haloBuffer, tileBuffer );
+		}
+		else
+		{
+			blurAndDilate( source, tile, sigmas, runningMax, halo, haloBuffer, tileBuffer );
+		}
+	}
+
+	/**
+	 * Filters the specified source over a tile. The gaussian filter is
+	 * computed over the tile expanded by the dilation radius, then dilated in
+	 * the tile buffer.
+	 */
+	private void blurAndDilate( final RandomAccessibleInterval< T > source, final Interval tile, final double[] sigmas, final List< Shape > strel, final float[] haloBuffer, final float[] tileBuffer ) throws IncompatibleTypeException
+	{
+		final Interval haloInterval = Intervals.intersect( Intervals.expand( tile, contactSensitivity ), source );
+		final ArrayImg< FloatType, FloatArray > blurred = ArrayImgs.floats( haloBuffer, Intervals.dimensionsAsLongArray( haloInterval ) );
+		final IntervalView< FloatType > blurredView = Views.translate( blurred, Intervals.minAsLongArray( haloInterval ) );
+		blur( source, sigmas, blurredView );
+
+		final ArrayImg< FloatType, FloatArray > dilated = ArrayImgs.floats( tileBuffer, Intervals.dimensionsAsLongArray( tile ) );
+		final IntervalView< FloatType > dilatedView = Views.translate( dilated, Intervals.minAsLongArray( tile ) );
+		// Outside of the source, dilation ignores pixels.
+		Dilation.dilate( Views.extendValue( blurredView, new FloatType( -Float.MAX_VALUE ) ), dilatedView, strel, 1 );
+	}
+
+	/**
+	 * Filters the specified source over a tile, using the running max
+	 * dilation. The buffer covers the tile expanded by the dilation extent,
+	 * even outside the source where it is filled with
+	 * {@link Float#NEGATIVE_INFINITY}, so that the sequential line dilations
+	 * are exact over the tile.
+	 */
+	private void blurAndDilate( final RandomAccessibleInterval< T > source, final Interval tile, final double[] sigmas, final RunningMaxDilation runningMax, final long[] halo, final float[] haloBuffer, final float[] tileBuffer ) throws IncompatibleTypeException
+	{
+		final Interval haloInterval = Intervals.expand( tile, halo );
+		final long[] haloDims = Intervals.dimensionsAsLongArray( haloInterval );
+		Arrays.fill( haloBuffer, 0, ( int ) Intervals.numElements( haloDims ), Float.NEGATIVE_INFINITY );
+
+		final ArrayImg< FloatType, FloatArray > blurred = ArrayImgs.floats( haloBuffer, haloDims );
+		final IntervalView< FloatType > blurredView = Views.translate( blurred, Intervals.minAsLongArray( haloInterval ) );
+		blur( source, sigmas, Views.interval( blurredView, Intervals.intersect( haloInterval, source ) ) );
+
+		final int[] dims = new int[ haloDims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			dims[ d ] = ( int ) haloDims[ d ];
+		}
+		runningMax.dilate( haloBuffer, dims );
+		copy( haloBuffer, haloInterval, tileBuffer, tile );
+	}
+
+	/**
+	 * Filters the source, with mirror boundaries, over the target interval.
+	 */
+	private void blur( final RandomAccessibleInterval< T > source, final double[] sigmas, final RandomAccessibleInterval< FloatType > target ) throws IncompatibleTypeException
+	{
+		switch ( blurMethod )
+		{
+		case RECURSIVE:
+			RecursiveGaussian.gauss( sigmas, Views.extendMirrorDouble( source ), target );
+			break;
+		case GAUSS3:
+		default:
+			// Tiles are already processed in parallel.
+			ParallelGauss.gauss( sigmas, Views.extendMirrorDouble( source ), target, 1 );
+			break;
+		}
+	}
+
+	/**
+	 * Copies the region of a flat buffer covering the target interval to a
+	 * flat target buffer. The target interval must be contained in the source
+	 * interval.
+	 */
+	private static final void copy( final float[] source, final Interval sourceInterval, final float[] target, final Interval targetInterval )
+	{
+		final int n = sourceInterval.numDimensions();
+		final long[] strides = new long[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; d++ )
+		{
+			strides[ d ] = strides[ d - 1 ] * sourceInterval.dimension( d - 1 );
+		}
+
+		final int rowLength = ( int ) targetInterval.dimension( 0 );
+		final long nRows = Intervals.numElements( targetInterval ) / rowLength;
+		final long[] pos = Intervals.minAsLongArray( targetInterval );
+		for ( int row = 0; row < nRows; row++ )
+		{
+			long index = 0;
+			for ( int d = 0; d < n; d++ )
+			{
+				index += ( pos[ d ] - sourceInterval.min( d ) ) * strides[ d ];
+			}
+			System.arraycopy( source, ( int ) index, target, row * rowLength, rowLength );
+
+			for ( int d = 1; d < n; d++ )
+			{
+				if ( ++pos[ d ] <= targetInterval.max( d ) )
+				{
+					break;
+				}
+				pos[ d ] = targetInterval.min( d );
+			}
+		}
+	}
+
+	/**
+	 * Copies a flat tile buffer in the region it covers of a larger flat
+	 * target buffer. The inverse of
+	 * {@link #copy(float[], Interval, float[], Interval)}.
+	 */
+	private static final void paste( final float[] source, final Interval sourceInterval, final float[] target, final Interval targetInterval )
+	{
+		final int n = targetInterval.numDimensions();
+		final long[] strides = new long[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; d++ )
+		{
+			strides[ d ] = strides[ d - 1 ] * targetInterval.dimension( d - 1 );
+		}
+
+		final int rowLength = ( int ) sourceInterval.dimension( 0 );
+		final long nRows = Intervals.numElements( sourceInterval ) / rowLength;
+		final long[] pos = Intervals.minAsLongArray( sourceInterval );
+		for ( int row = 0; row < nRows; row++ )
+		{
+			long index = 0;
+			for ( int d = 0; d < n; d++ )
+			{
+				index += ( pos[ d ] - targetInterval.min( d ) ) * strides[ d ];
+			}
+			System.arraycopy( source, row * rowLength, target, ( int ) index, rowLength );
+
+			for ( int d = 1; d < n; d++ )
+			{
+				if ( ++pos[ d ] <= sourceInterval.max( d ) )
+				{
+					break;
+				}
+				pos[ d ] = sourceInterval.min( d );
+			}
+		}
+	}
+
+	/**
+	 * Copies the values of an image over a tile in a flat buffer.
+	 */
+	private static final void fill( final RandomAccessibleInterval< FloatType > source, final Interval tile, final float[] buffer )
+	{
+		final Cursor< FloatType > cursor = Views.flatIterable( Views.interval( source, tile ) ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+		{
+			buffer[ i++ ] = cursor.next().get();
+		}
+	}
+
+	/**
+	 * Writes the contact values of a tile in the target image and the mask
+	 * image, from the dilated buffers of the two channels, laid out in flat
+	 * iteration order. Images backed by primitive arrays are written row by
+	 * row directly in these arrays; the mask is then written 64 pixels at a
+	 * time, and the words shared with other tiles are collected in the
+	 * specified collector of the worker (see
+	 * {@link Planes#setMaskRow(long, double[], int, double, Planes.PartialWords)}).
+	 * Other images are written through cursors.
+	 */
+	private void combine( final Interval tile, final float[] dilated1, final float[] dilated2, final Planes outPlanes, final Planes maskPlanes, final double minMaskValue, final Planes.PartialWords partialWords )
+	{
+		final Cursor< T > cursor = ( null == out || null != outPlanes ) ? null : Views.flatIterable( Views.interval( aligned( out ), tile ) ).cursor();
+		final Cursor< BitType > maskCursor = ( null == mask || null != maskPlanes ) ? null : Views.flatIterable( Views.interval( aligned( mask ), tile ) ).cursor();
+
+		final int n = tile.numDimensions();
+		final long[] strides = new long[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; d++ )
+		{
+			strides[ d ] = strides[ d - 1 ] * img1.dimension( d - 1 );
+		}
+
+		final int rowLength = ( int ) tile.dimension( 0 );
+		final double[] row = new double[ rowLength ];
+		final long nRows = Intervals.numElements( tile ) / rowLength;
+		final long[] pos = Intervals.minAsLongArray( tile );
+		int i = 0;
+		for ( long r = 0; r < nRows; r++ )
+		{
+			for ( int x = 0; x < rowLength; x++ )
+			{
+				row[ x ] = contact( dilated1[ i ], threshold_C1, dilated2[ i ], threshold_C2 );
+				i++;
+			}
+
+			if ( null != outPlanes )
+			{
+				outPlanes.setRow( flatIndex( pos, img1, strides ), row, rowLength );
+			}
+			else if ( null != cursor )
+			{
+				for ( int x = 0; x < rowLength; x++ )
+				{
+					cursor.next().setReal( row[ x ] );
+				}
+			}
+
+			if ( null != maskPlanes )
+			{
+				maskPlanes.setMaskRow( flatIndex( pos, img1, strides ), row, rowLength, minMaskValue, partialWords );
+			}
+			else if ( null != maskCursor )
+			{
+				for ( int x = 0; x < rowLength; x++ )
+				{
+					maskCursor.next().set( row[ x ] >= minMaskValue );
+				}
+			}
+
+			for ( int d = 1; d < n; d++ )
+			{
+				if ( ++pos[ d ] <= tile.max( d ) )
+				{
+					break;
+				}
+				pos[ d ] = tile.min( d );
+			}
+		}
+	}
+
+	/**
+	 * Returns a view of a target image with the same min as the sources, so
+	 * that tiles, in source coordinates, address the same pixels in both.
+	 */
+	private < R > RandomAccessibleInterval< R > aligned( final RandomAccessibleInterval< R > img )
+	{
+		final long[] offset = new long[ img.numDimensions() ];
+		for ( int d = 0; d < offset.length; d++ )
+		{
+			offset[ d ] = img1.min( d ) - img.min( d );
+		}
+		return Views.translate( img, offset );
+	}
+
+	/**
+	 * Returns the flat index of a position relative to the min of an
+	 * interval, with the specified strides. Target images backed by planes
+	 * are addressed relative to the min of the sources.
+	 */
+	private static final long flatIndex( final long[] pos, final Interval img, final long[] strides )
+	{
+		long index = 0;
+		for ( int d = 0; d < pos.length; d++ )
+		{
+			index += ( pos[ d ] - img.min( d ) ) * strides[ d ];
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the contact value for two filtered channel values.
+	 *
+	 * @param v1
+	 *            the filtered value of channel 1.
+	 * @param threshold1
+	 *            the threshold of channel 1.
+	 * @param v2
+	 *            the filtered value of channel 2.
+	 * @param threshold2
+	 *            the threshold of channel 2.
+	 * @return the contact value, strictly positive only if both values are
+	 *         above their threshold.
+	 */
+	public static final double contact( final double v1, final double threshold1, final double v2, final double threshold2 )
+	{
+		final double t1 = Math.max( 0., v1 - threshold1 );
+		final double t2 = Math.max( 0., v2 - threshold2 );
+		if ( t1 == 0. || t2 == 0. )
+		{
+			return 0.;
+		}
+		return ( t1 * t2 ) / ( t1 + t2 );
+	}
+
+	/**
+	 * Returns the dimensions of the tiles of the specified interval. Tiles
+	 * have about <code>tileSize</code> pixels, but are at least
+	 * {@link #MIN_TILE_TO_PADDING} times larger than the padding on both
+	 * sides along each dimension. Along a dimension too short for this, a
+	 * tile spans the whole interval. Along the others, the interval is split
+	 * in tiles of equal sizes, so that the last tile is not smaller. Along
+	 * dimension 0, sizes are rounded up to a multiple of 64, so that tiles
+	 * side by side do not share the words of a packed {@link BitType} row
+	 * when the row length is itself a multiple of 64.
+	 */
+	static final long[] tileDimensions( final Interval interval, final int tileSize, final long[] padding )
+	{
+		final int n = interval.numDimensions();
+		final long edge = Math.max( 1l, Math.round( Math.pow( tileSize, 1. / n ) ) );
+		final long[] dims = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final long minEdge = Math.max( edge, MIN_TILE_TO_PADDING * 2 * padding[ d ] );
+			final long nTiles = Math.max( 1l, interval.dimension( d ) / minEdge );
+			dims[ d ] = ( interval.dimension( d ) + nTiles - 1 ) / nTiles;
+		}
+		if ( dims[ 0 ] < interval.dimension( 0 ) )
+		{
+			dims[ 0 ] = Math.min( interval.dimension( 0 ), ( dims[ 0 ] + 63 ) & ~63l );
+		}
+		return dims;
+	}
+
+	/**
+	 * Splits the specified interval in tiles of the specified dimensions.
+	 * Tiles on the border of the interval can be smaller.
+	 */
+	static final List< Interval > tiles( final Interval interval, final long[] tileDims )
+	{
+		final int n = interval.numDimensions();
+		final long[] nTiles = new long[ n ];
+		long total = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			nTiles[ d ] = ( interval.dimension( d ) + tileDims[ d ] - 1 ) / tileDims[ d ];
+			total *= nTiles[ d ];
+		}
+
+		final List< Interval > tiles = new ArrayList< Interval >( ( int ) total );
+		for ( long t = 0; t < total; t++ )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			long index = t;
+			for ( int d = 0; d < n; d++ )
+			{
+				final long k = index % nTiles[ d ];
+				index /= nTiles[ d ];
+				min[ d ] = interval.min( d ) + k * tileDims[ d ];
+				max[ d ] = Math.min( interval.max( d ), min[ d ] + tileDims[ d ] - 1 );
+			}
+			tiles.add( new FinalInterval( min, max ) );
+		}
+		return tiles;
 	}
 
 	@Override
@@ -172,18 +1225,50 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 		return processingTime;
 	}
 
+	/**
+	 * Returns the Otsu threshold of an image, computed in parallel on the
+	 * shared executor.
+	 *
+	 * @param src
+	 *            the image.
+	 * @return the threshold, as a new variable of the image type.
+	 * @see #otsuTreshold(RandomAccessibleInterval, int)
+	 */
 	public static final < T extends RealType< T >> T otsuTreshold( final RandomAccessibleInterval<T> src )
 	{
+		return otsuTreshold( src, Parallel.getParallelism() );
+	}
 
-		final T min = Util.getTypeFromInterval( src ).createVariable();
-		final T max = Util.getTypeFromInterval( src ).createVariable();
-		ComputeMinMax.computeMinMax( src, min, max );
-
-		final Real1dBinMapper< T > mapper = new Real1dBinMapper< T >( min.getRealDouble(), max.getRealDouble(), 256l, false );
-		final Histogram1d< T > hist = new Histogram1d< T >( mapper );
-		hist.countData( Views.iterable( src ) );
+	/**
+	 * Returns the Otsu threshold of an image. The histogram of 8-bit and
+	 * 16-bit images has one bin per value, other types are binned in 256
+	 * bins (see {@link Histogram}).
+	 *
+	 * @param src
+	 *            the image.
+	 * @param numThreads
+	 *            the maximal number of concurrent tasks used to compute the
+	 *            histogram.
+	 * @return the threshold, as a new variable of the image type.
+	 */
+	public static final < T extends RealType< T >> T otsuTreshold( final RandomAccessibleInterval< T > src, final int numThreads )
+	{
+		final Histogram hist = Histogram.compute( src, 256, numThreads );
+		final T val = Util.getTypeFromInterval( src ).createVariable();
+		val.setReal( otsuThreshold( hist ) );
+		return val;
+	}
 
-		final long[] histogram = hist.toLongArray();
+	/**
+	 * Returns the Otsu threshold of a histogram.
+	 *
+	 * @param hist
+	 *            the histogram.
+	 * @return the value at the center of the threshold bin.
+	 */
+	public static final double otsuThreshold( final Histogram hist )
+	{
+		final long[] histogram = hist.counts();
 		// Otsu's threshold algorithm
 		// C++ code by Jordan Bevik <Jordan.Bevic@qtiworld.com>
 		// ported to ImageJ plugin by G.Landini
@@ -239,9 +1324,7 @@ public class ContactImgGenerator< T extends RealType< T > & NativeType< T >> imp
 		}
 		// kStar += 1; // Use QTI convention that intensity -> 1 if intensity >= k
 		// (the algorithm was developed for I-> 1 if I <= k.)
-		final T val = hist.firstDataValue().createVariable();
-		hist.getCenterValue( kStar, val );
-		return val;
+		return hist.center( kStar );
 	}
 
 }
@@ -0,0 +1,391 @@
+package fr.pasteur;
+
+import fiji.plugin.trackmate.Logger;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.ContactImgGenerator.ThresholdLookup;
+import fr.pasteur.trackmate.ComponentTable;
+import fr.pasteur.trackmate.ComponentTable.Components;
+import fr.pasteur.util.ComponentStatistics;
+import fr.pasteur.util.ConnectedComponents;
+import fr.pasteur.util.Parallel;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.util.Util;
+
+/**
+ * Processes a movie frame by frame, writing the results of each frame to disk
+ * as soon as they are computed.
+ * <p>
+ * The two channels of a frame are read from the {@link ImageStack} of the
+ * movie, which can be a virtual stack reading planes from disk. The contact
+ * image, the contact mask and the contact labels of the frame are then
+ * computed and saved as TIFF files in the output folder, one file per frame
+ * and per result. Only the frames being processed are kept in memory: at
+ * most {@link #getNumThreads()} frames are processed concurrently, so the
+ * memory used does not depend on the length of the movie.
+ * <p>
+ * Labels are numbered independently in each frame. The contact components
+ * of each frame can also be measured and stored in a {@link ComponentTable},
+ * to create spots in the same pass.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ContactStreamer< T extends RealType< T > & NativeType< T >> implements Algorithm, MultiThreaded, Benchmark
+{
+
+	private static final String BASE_ERROR_MSG = "[ContactStreamer] ";
+
+	private final ImagePlus imp;
+
+	private final int channel1;
+
+	private final int channel2;
+
+	private final ThresholdLookup thresholds1;
+
+	private final ThresholdLookup thresholds2;
+
+	private final int contactSensitivity;
+
+	private final double sigma;
+
+	private final File outputFolder;
+
+	private final boolean writeContacts;
+
+	private final boolean writeMask;
+
+	private final boolean writeLabels;
+
+	private BlurMethod blurMethod = BlurMethod.GAUSS3;
+
+	private DilationMethod dilationMethod = DilationMethod.DISK;
+
+	private ComponentTable componentTable;
+
+	private boolean binaryMode;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private int numThreads;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	/**
+	 * Creates a streaming processor.
+	 *
+	 * @param imp
+	 *            the movie.
+	 * @param channel1
+	 *            the first channel, 0-based.
+	 * @param channel2
+	 *            the second channel, 0-based.
+	 * @param thresholds1
+	 *            the thresholds of the first channel.
+	 * @param thresholds2
+	 *            the thresholds of the second channel.
+	 * @param contactSensitivity
+	 *            the dilation radius.
+	 * @param sigma
+	 *            the gaussian filter sigma.
+	 * @param outputFolder
+	 *            the folder in which to write the results.
+	 * @param writeContacts
+	 *            whether to write the contact image.
+	 * @param writeMask
+	 *            whether to write the contact mask.
+	 * @param writeLabels
+	 *            whether to write the contact labels.
+	 */
+	public ContactStreamer( final ImagePlus imp, final int channel1, final int channel2, final ThresholdLookup thresholds1, final ThresholdLookup thresholds2,
+			final int contactSensitivity, final double sigma, final File outputFolder, final boolean writeContacts, final boolean writeMask, final boolean writeLabels )
+	{
+		this.imp = imp;
+		this.channel1 = channel1;
+		this.channel2 = channel2;
+		this.thresholds1 = thresholds1;
+		this.thresholds2 = thresholds2;
+		this.contactSensitivity = contactSensitivity;
+		this.sigma = sigma;
+		this.outputFolder = outputFolder;
+		this.writeContacts = writeContacts;
+		this.writeMask = writeMask;
+		this.writeLabels = writeLabels;
+		setNumThreads();
+	}
+
+	/**
+	 * Sets the logger used to report progress.
+	 *
+	 * @param logger
+	 *            the logger.
+	 */
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets a table in which the contact components of each frame are stored,
+	 * measured over the contact image, so that spots can be created without
+	 * computing the frames again (see
+	 * {@link fr.pasteur.trackmate.CellContactDetector#createSpots(Components, double, double[], int)}
+	 * ).
+	 *
+	 * @param componentTable
+	 *            the table, or <code>null</code> not to measure components.
+	 */
+	public void setComponentTable( final ComponentTable componentTable )
+	{
+		this.componentTable = componentTable;
+	}
+
+	/**
+	 * Sets whether only the contact mask is computed, with
+	 * {@link BinaryContactGenerator}. The contact image cannot be written in
+	 * binary mode, and components are measured over the mask, so that their
+	 * quality is their size.
+	 *
+	 * @param binaryMode
+	 *            whether to use the binary mode.
+	 */
+	public void setBinaryMode( final boolean binaryMode )
+	{
+		this.binaryMode = binaryMode;
+	}
+
+	/**
+	 * Sets the algorithm used to filter the channels.
+	 *
+	 * @param blurMethod
+	 *            the gaussian filter algorithm.
+	 */
+	public void setBlurMethod( final BlurMethod blurMethod )
+	{
+		this.blurMethod = blurMethod;
+	}
+
+	/**
+	 * Sets the algorithm used to dilate the filtered channels. Not used in
+	 * binary mode, which always dilates as
+	 * {@link DilationMethod#RUNNING_MAX}.
+	 *
+	 * @param dilationMethod
+	 *            the dilation algorithm.
+	 */
+	public void setDilationMethod( final DilationMethod dilationMethod )
+	{
+		this.dilationMethod = dilationMethod;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( !writeContacts && !writeMask && !writeLabels )
+		{
+			errorMessage = BASE_ERROR_MSG + "Nothing to write.";
+			return false;
+		}
+		if ( binaryMode && writeContacts )
+		{
+			errorMessage = BASE_ERROR_MSG + "The contact image is not computed in binary mode.";
+			return false;
+		}
+		if ( channel1 < 0 || channel1 >= imp.getNChannels() || channel2 < 0 || channel2 >= imp.getNChannels() )
+		{
+			errorMessage = BASE_ERROR_MSG + "Channels " + ( channel1 + 1 ) + " and " + ( channel2 + 1 ) + " do not exist in an image with " + imp.getNChannels() + " channels.";
+			return false;
+		}
+		if ( !outputFolder.isDirectory() && !outputFolder.mkdirs() )
+		{
+			errorMessage = BASE_ERROR_MSG + "Cannot create the output folder " + outputFolder + ".";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final int nFrames = imp.getNFrames();
+		final long framePixels = ( long ) imp.getWidth() * imp.getHeight() * imp.getNSlices();
+		final int[] split = Parallel.split( nFrames, framePixels );
+		final int frameWorkers = Math.max( 1, Math.min( numThreads, split[ 0 ] ) );
+		final int intraFrameThreads = split[ 1 ];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicInteger done = new AtomicInteger( 0 );
+		// The first error stops the remaining frames.
+		final AtomicReference< String > error = new AtomicReference< String >();
+		Parallel.run( frameWorkers, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				for ( int frame = ai.getAndIncrement(); frame < nFrames && null == error.get(); frame = ai.getAndIncrement() )
+				{
+					final String frameError = processFrame( frame, intraFrameThreads );
+					if ( null != frameError )
+					{
+						error.compareAndSet( null, frameError );
+						return;
+					}
+					logger.setProgress( ( double ) done.incrementAndGet() / nFrames );
+				}
+			}
+		} );
+
+		processingTime = System.currentTimeMillis() - start;
+		errorMessage = error.get();
+		return null == errorMessage;
+	}
+
+	/**
+	 * Processes and writes a frame.
+	 *
+	 * @return an error message, or <code>null</code> if the frame was
+	 *         processed.
+	 */
+	private String processFrame( final int frame, final int intraFrameThreads )
+	{
+		final Img< T > frame1 = readFrame( imp, channel1, frame );
+		final Img< T > frame2 = readFrame( imp, channel2, frame );
+
+		final boolean measure = null != componentTable;
+		final Img< T > out = ( writeContacts || ( measure && !binaryMode ) ) ? new PlanarImgFactory< T >().create( frame1, Util.getTypeFromInterval( frame1 ) ) : null;
+		final Img< BitType > mask = ( writeMask || writeLabels || measure ) ? new PlanarImgFactory< BitType >().create( frame1, new BitType() ) : null;
+
+		if ( binaryMode )
+		{
+			final BinaryContactGenerator< T > algo = new BinaryContactGenerator< T >( frame1, frame2, mask,
+					thresholds1.getThreshold( frame ), thresholds2.getThreshold( frame ), contactSensitivity, sigma );
+			algo.setNumThreads( intraFrameThreads );
+			algo.setBlurMethod( blurMethod );
+			if ( !algo.checkInput() || !algo.process() )
+			{
+				return algo.getErrorMessage();
+			}
+		}
+		else
+		{
+			final ContactImgGenerator< T > algo = new ContactImgGenerator< T >( frame1, frame2, out, thresholds1, thresholds2, frame, contactSensitivity, sigma );
+			if ( null != mask )
+			{
+				algo.setMask( mask );
+			}
+			algo.setDilationMethod( dilationMethod );
+			algo.setBlurMethod( blurMethod );
+			algo.setNumThreads( intraFrameThreads );
+			if ( !algo.checkInput() || !algo.process() )
+			{
+				return algo.getErrorMessage();
+			}
+		}
+
+		if ( writeContacts && !write( ImageJFunctions.wrap( out, "Contacts" ), "Contacts", frame ) )
+		{
+			return BASE_ERROR_MSG + "Could not write the contacts of frame " + ( frame + 1 ) + ".";
+		}
+		if ( writeMask && !write( ImageJFunctions.wrap( mask, "ContactMasks" ), "ContactMasks", frame ) )
+		{
+			return BASE_ERROR_MSG + "Could not write the contact mask of frame " + ( frame + 1 ) + ".";
+		}
+		if ( writeLabels || measure )
+		{
+			final Img< UnsignedIntType > lbl = new PlanarImgFactory< UnsignedIntType >().create( mask, new UnsignedIntType() );
+			final int nLabels = ConnectedComponents.label( mask, lbl, intraFrameThreads );
+			if ( measure )
+			{
+				final Calibration cal = imp.getCalibration();
+				final double[] calibration = new double[] { cal.pixelWidth, cal.pixelHeight, cal.pixelDepth };
+				final ComponentStatistics stats = binaryMode ? ComponentStatistics.compute( lbl, nLabels, mask ) : ComponentStatistics.compute( lbl, nLabels, out );
+				componentTable.put( frame, new Components( stats, calibration ) );
+			}
+			if ( writeLabels && !write( ImageJFunctions.wrap( lbl, "ContactLabels" ), "ContactLabels", frame ) )
+			{
+				return BASE_ERROR_MSG + "Could not write the contact labels of frame " + ( frame + 1 ) + ".";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the planes of one channel of a frame from the movie stack. Reads
+	 * are serialized, because virtual stacks are not all safe for concurrent
+	 * reads.
+	 */
+	@SuppressWarnings( "unchecked" )
+	static final < T extends RealType< T > & NativeType< T >> Img< T > readFrame( final ImagePlus imp, final int channel, final int frame )
+	{
+		final ImageStack stack = new ImageStack( imp.getWidth(), imp.getHeight() );
+		synchronized ( imp )
+		{
+			final ImageStack source = imp.getStack();
+			for ( int z = 0; z < imp.getNSlices(); z++ )
+			{
+				stack.addSlice( source.getProcessor( imp.getStackIndex( channel + 1, z + 1, frame + 1 ) ) );
+			}
+		}
+		return ( Img< T > ) ImageJFunctions.wrapReal( new ImagePlus( imp.getShortTitle(), stack ) );
+	}
+
+	private boolean write( final ImagePlus result, final String name, final int frame )
+	{
+		result.setCalibration( imp.getCalibration() );
+		result.setDimensions( 1, imp.getNSlices(), 1 );
+		final File file = new File( outputFolder, String.format( "%s_%s_t%04d.tif", imp.getShortTitle(), name, frame + 1 ) );
+		return IJ.saveAsTiff( result, file.getAbsolutePath() );
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Parallel.getParallelism();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
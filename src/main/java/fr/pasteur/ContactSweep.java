@@ -0,0 +1,447 @@
+package fr.pasteur;
+
+import ij.measure.ResultsTable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.util.ComponentStatistics;
+import fr.pasteur.util.ConnectedComponents;
+import fr.pasteur.util.Parallel;
+import fr.pasteur.util.ParallelGauss;
+import fr.pasteur.util.Planes;
+import fr.pasteur.util.RecursiveGaussian;
+import fr.pasteur.util.RunningMaxDilation;
+
+/**
+ * Counts the contacts of two channels over a grid of parameters, to calibrate
+ * them on a new sample.
+ * <p>
+ * Contacts are computed as by {@link ContactImgGenerator} with the
+ * {@link ContactImgGenerator.DilationMethod#RUNNING_MAX} dilation, for each
+ * combination of sigma, contact sensitivity and channel thresholds.
+ * Intermediate results are shared between combinations: each channel is
+ * filtered once per sigma, the dilation for a contact sensitivity is built
+ * from the dilation for the previous, smaller one (see
+ * {@link RunningMaxDilation#increment(RunningMaxDilation)}), and each pair of
+ * thresholds only redoes the combination of the two channels, the labeling
+ * and the measurements. Threshold pairs are processed in parallel.
+ * <p>
+ * The results are a {@link ResultsTable} with one row per combination,
+ * which can be saved as a CSV file with {@link ResultsTable#saveAs(String)}.
+ * Areas are in pixels.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ContactSweep< T extends RealType< T > & NativeType< T >> implements Algorithm, MultiThreaded, Benchmark
+{
+
+	private static final String BASE_ERROR_MSG = "[ContactSweep] ";
+
+	public static final String SIGMA = "SIGMA";
+
+	public static final String CONTACT_SENSITIVITY = "CONTACT_SENSITIVITY";
+
+	public static final String THRESHOLD_C1 = "THRESHOLD_C1";
+
+	public static final String THRESHOLD_C2 = "THRESHOLD_C2";
+
+	public static final String N_CONTACTS = "N_CONTACTS";
+
+	public static final String TOTAL_AREA = "TOTAL_AREA";
+
+	public static final String MEAN_AREA = "MEAN_AREA";
+
+	public static final String MAX_AREA = "MAX_AREA";
+
+	private final RandomAccessibleInterval< T > img1;
+
+	private final RandomAccessibleInterval< T > img2;
+
+	private final double[] sigmas;
+
+	private final int[] contactSensitivities;
+
+	private final double[] thresholds1;
+
+	private final double[] thresholds2;
+
+	private BlurMethod blurMethod = BlurMethod.GAUSS3;
+
+	private ResultsTable results;
+
+	private int numThreads;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	/**
+	 * Creates a sweep over all the combinations of the specified parameters.
+	 *
+	 * @param img1
+	 *            channel 1, a single frame.
+	 * @param img2
+	 *            channel 2, a single frame.
+	 * @param sigmas
+	 *            the gaussian filter sigmas.
+	 * @param contactSensitivities
+	 *            the dilation radii.
+	 * @param thresholds1
+	 *            the thresholds of channel 1.
+	 * @param thresholds2
+	 *            the thresholds of channel 2.
+	 */
+	public ContactSweep( final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< T > img2, final double[] sigmas, final int[] contactSensitivities, final double[] thresholds1, final double[] thresholds2 )
+	{
+		this.img1 = img1;
+		this.img2 = img2;
+		this.sigmas = sigmas;
+		this.contactSensitivities = contactSensitivities;
+		this.thresholds1 = thresholds1;
+		this.thresholds2 = thresholds2;
+		setNumThreads();
+	}
+
+	/**
+	 * Sets the algorithm used to filter the channels.
+	 *
+	 * @param blurMethod
+	 *            the gaussian filter algorithm.
+	 */
+	public void setBlurMethod( final BlurMethod blurMethod )
+	{
+		this.blurMethod = blurMethod;
+	}
+
+	/**
+	 * Returns the results of the last sweep: the parameters, the number of
+	 * contacts, and their total, mean and max areas, for each combination of
+	 * parameters.
+	 *
+	 * @return the results table, or <code>null</code> if the sweep was not
+	 *         run.
+	 */
+	public ResultsTable getResults()
+	{
+		return results;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		for ( int d = 0; d < img1.numDimensions(); d++ )
+		{
+			if ( img1.dimension( d ) != img2.dimension( d ) )
+			{
+				errorMessage = BASE_ERROR_MSG + "Source images do not have the same dimensions (for dimension "
+						+ d + ", img1 = " + img1.dimension( d ) + " and img2 = " + img2.dimension( d ) + ".";
+				return false;
+			}
+		}
+		if ( sigmas.length == 0 || contactSensitivities.length == 0 || thresholds1.length == 0 || thresholds2.length == 0 )
+		{
+			errorMessage = BASE_ERROR_MSG + "Each parameter needs at least one value.";
+			return false;
+		}
+		for ( final double sigma : sigmas )
+		{
+			if ( sigma <= 0 )
+			{
+				errorMessage = BASE_ERROR_MSG + "The gaussian filter sigma is lower than or equal to 0 (σ = " + sigma + ").";
+				return false;
+			}
+		}
+		for ( final int contactSensitivity : contactSensitivities )
+		{
+			if ( contactSensitivity < 1 )
+			{
+				errorMessage = BASE_ERROR_MSG + "The contact sensitivity is lower than 1 (" + contactSensitivity + ").";
+				return false;
+			}
+		}
+		if ( Intervals.numElements( Intervals.expand( img1, new RunningMaxDilation( max( contactSensitivities ), img1.numDimensions() ).getExtent() ) ) >= Integer.MAX_VALUE )
+		{
+			errorMessage = BASE_ERROR_MSG + "The image is too large for a sweep.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		final int n = img1.numDimensions();
+
+		// Radii in increasing order, without duplicates.
+		final int[] radii = contactSensitivities.clone();
+		Arrays.sort( radii );
+
+		/*
+		 * The filtered and dilated channels are stored with a margin large
+		 * enough for the largest dilation, filled with -infinity, so that the
+		 * sequential line dilations are exact over the image.
+		 */
+
+		final long[] extent = new RunningMaxDilation( radii[ radii.length - 1 ], n ).getExtent();
+		final Interval paddedInterval = Intervals.expand( img1, extent );
+		final long[] paddedDims = Intervals.dimensionsAsLongArray( paddedInterval );
+		final int[] paddedSize = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			paddedSize[ d ] = ( int ) paddedDims[ d ];
+		}
+		final int nPadded = ( int ) Intervals.numElements( paddedInterval );
+		final float[] blurred1 = new float[ nPadded ];
+		final float[] blurred2 = new float[ nPadded ];
+		final float[] dilated1 = new float[ nPadded ];
+		final float[] dilated2 = new float[ nPadded ];
+		final int nPixels = ( int ) Intervals.numElements( img1 );
+		final float[] values1 = new float[ nPixels ];
+		final float[] values2 = new float[ nPixels ];
+
+		results = new ResultsTable();
+		for ( final double sigma : sigmas )
+		{
+			try
+			{
+				blur( img1, sigma, blurred1, paddedInterval );
+				blur( img2, sigma, blurred2, paddedInterval );
+			}
+			catch ( final IncompatibleTypeException e )
+			{
+				errorMessage = BASE_ERROR_MSG + e.getMessage();
+				e.printStackTrace();
+				return false;
+			}
+
+			RunningMaxDilation previous = null;
+			for ( int i = 0; i < radii.length; i++ )
+			{
+				if ( i > 0 && radii[ i ] == radii[ i - 1 ] )
+				{
+					continue;
+				}
+				final RunningMaxDilation dilation = new RunningMaxDilation( radii[ i ], n );
+				final RunningMaxDilation increment = null == previous ? null : dilation.increment( previous );
+				if ( null == increment )
+				{
+					System.arraycopy( blurred1, 0, dilated1, 0, nPadded );
+					System.arraycopy( blurred2, 0, dilated2, 0, nPadded );
+				}
+				dilate( null == increment ? dilation : increment, dilated1, dilated2, paddedSize );
+				previous = dilation;
+
+				crop( dilated1, paddedSize, extent, values1 );
+				crop( dilated2, paddedSize, extent, values2 );
+				sweepThresholds( sigma, radii[ i ], values1, values2 );
+			}
+		}
+
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	/**
+	 * Filters a channel in the image part of a padded buffer. The margin is
+	 * filled with -infinity.
+	 */
+	private void blur( final RandomAccessibleInterval< T > source, final double sigma, final float[] buffer, final Interval paddedInterval ) throws IncompatibleTypeException
+	{
+		Arrays.fill( buffer, Float.NEGATIVE_INFINITY );
+		final RandomAccessibleInterval< FloatType > target = Views.interval(
+				Views.translate( ArrayImgs.floats( buffer, Intervals.dimensionsAsLongArray( paddedInterval ) ), Intervals.minAsLongArray( paddedInterval ) ),
+				source );
+		final double[] s = Util.getArrayFromValue( sigma, source.numDimensions() );
+		switch ( blurMethod )
+		{
+		case RECURSIVE:
+			RecursiveGaussian.gauss( s, Views.extendMirrorDouble( source ), target );
+			break;
+		case GAUSS3:
+		default:
+			ParallelGauss.gauss( s, Views.extendMirrorDouble( source ), target, numThreads );
+			break;
+		}
+	}
+
+	/**
+	 * Dilates the two channels concurrently.
+	 */
+	private static final void dilate( final RunningMaxDilation dilation, final float[] data1, final float[] data2, final int[] dims )
+	{
+		Parallel.run( 2, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				dilation.dilate( index == 0 ? data1 : data2, dims );
+			}
+		} );
+	}
+
+	/**
+	 * Combines, labels and measures the contacts for all the threshold
+	 * pairs, and adds one row per pair to the results.
+	 */
+	private void sweepThresholds( final double sigma, final int contactSensitivity, final float[] values1, final float[] values2 )
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( img1 );
+		final double minValue = Util.getTypeFromInterval( img1 ) instanceof IntegerType ? 0.5 : Double.MIN_VALUE;
+		final int nPairs = thresholds1.length * thresholds2.length;
+		final double[][] rows = new double[ nPairs ][];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Parallel.run( Math.max( 1, Math.min( numThreads, nPairs ) ), new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				final Img< BitType > mask = ArrayImgs.bits( dims );
+				final Planes maskPlanes = Planes.of( mask );
+				final Img< UnsignedIntType > labels = ArrayImgs.unsignedInts( dims );
+				final int rowLength = ( int ) dims[ 0 ];
+				final double[] row = new double[ rowLength ];
+				for ( int pair = ai.getAndIncrement(); pair < nPairs; pair = ai.getAndIncrement() )
+				{
+					final double threshold1 = thresholds1[ pair / thresholds2.length ];
+					final double threshold2 = thresholds2[ pair % thresholds2.length ];
+
+					// Combine, one packed mask row at a time.
+					for ( int start = 0; start < values1.length; start += rowLength )
+					{
+						for ( int x = 0; x < rowLength; x++ )
+						{
+							row[ x ] = ContactImgGenerator.contact( values1[ start + x ], threshold1, values2[ start + x ], threshold2 );
+						}
+						maskPlanes.setMaskRow( start, row, rowLength, minValue );
+					}
+
+					// Label and measure.
+					final int nLabels = ConnectedComponents.label( mask, labels, 1 );
+					final ComponentStatistics stats = ComponentStatistics.compute( labels, nLabels, mask );
+					long total = 0;
+					long max = 0;
+					for ( int label = 1; label <= nLabels; label++ )
+					{
+						total += stats.size( label );
+						max = Math.max( max, stats.size( label ) );
+					}
+					rows[ pair ] = new double[] { threshold1, threshold2, nLabels, total, nLabels > 0 ? ( double ) total / nLabels : 0, max };
+				}
+			}
+		} );
+
+		for ( final double[] row : rows )
+		{
+			results.incrementCounter();
+			results.addValue( SIGMA, sigma );
+			results.addValue( CONTACT_SENSITIVITY, contactSensitivity );
+			results.addValue( THRESHOLD_C1, row[ 0 ] );
+			results.addValue( THRESHOLD_C2, row[ 1 ] );
+			results.addValue( N_CONTACTS, row[ 2 ] );
+			results.addValue( TOTAL_AREA, row[ 3 ] );
+			results.addValue( MEAN_AREA, row[ 4 ] );
+			results.addValue( MAX_AREA, row[ 5 ] );
+		}
+	}
+
+	/**
+	 * Copies the image part of a padded buffer, with the specified margin
+	 * along each dimension, to a flat target.
+	 */
+	private static final void crop( final float[] padded, final int[] paddedDims, final long[] margin, final float[] target )
+	{
+		final int n = paddedDims.length;
+		final int[] dims = new int[ n ];
+		final int[] strides = new int[ n ];
+		int stride = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			dims[ d ] = paddedDims[ d ] - 2 * ( int ) margin[ d ];
+			strides[ d ] = stride;
+			stride *= paddedDims[ d ];
+		}
+
+		final int rowLength = dims[ 0 ];
+		final int nRows = target.length / rowLength;
+		final int[] pos = new int[ n ];
+		for ( int row = 0; row < nRows; row++ )
+		{
+			int index = 0;
+			for ( int d = 0; d < n; d++ )
+			{
+				index += ( pos[ d ] + ( int ) margin[ d ] ) * strides[ d ];
+			}
+			System.arraycopy( padded, index, target, row * rowLength, rowLength );
+
+			for ( int d = 1; d < n; d++ )
+			{
+				if ( ++pos[ d ] < dims[ d ] )
+				{
+					break;
+				}
+				pos[ d ] = 0;
+			}
+		}
+	}
+
+	private static final int max( final int[] values )
+	{
+		int max = 0;
+		for ( final int value : values )
+		{
+			max = Math.max( max, value );
+		}
+		return max;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Parallel.getParallelism();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
@@ -0,0 +1,285 @@
+package fr.pasteur;
+
+import ij.IJ;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.ContactImgGenerator.ThresholdLookup;
+import fr.pasteur.util.Parallel;
+import fr.pasteur.util.Planes;
+
+/**
+ * A virtual stack showing the contact image of a movie, computed lazily.
+ * <p>
+ * The contact image of a frame is computed by a {@link ContactImgGenerator}
+ * the first time one of its planes is displayed or read. Computed frames are
+ * kept in a least-recently-used cache, whose total size is bounded by a
+ * memory budget. Scrolling through a long movie therefore only computes the
+ * frames that are looked at.
+ * <p>
+ * The stack has one channel, and the slices and frames of the source movie.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ContactVirtualStack< T extends RealType< T > & NativeType< T >> extends VirtualStack
+{
+
+	private final RandomAccessibleInterval< T > im1;
+
+	private final RandomAccessibleInterval< T > im2;
+
+	private final int timeDim;
+
+	private final int nSlices;
+
+	private final int nFrames;
+
+	private final ThresholdLookup thresholds1;
+
+	private final ThresholdLookup thresholds2;
+
+	private final int contactSensitivity;
+
+	private final double sigma;
+
+	private final long memoryBudget;
+
+	private BlurMethod blurMethod = BlurMethod.GAUSS3;
+
+	private DilationMethod dilationMethod = DilationMethod.DISK;
+
+	private final LinkedHashMap< Integer, Img< T > > cache = new LinkedHashMap< Integer, Img< T > >( 16, 0.75f, true );
+
+	private long cachedBytes;
+
+	/**
+	 * Creates a lazy contact image stack.
+	 *
+	 * @param im1
+	 *            channel 1 of the movie.
+	 * @param im2
+	 *            channel 2 of the movie.
+	 * @param timeDim
+	 *            the index of the time dimension in the channels, or -1 if
+	 *            they have no time dimension.
+	 * @param nSlices
+	 *            the number of Z slices.
+	 * @param nFrames
+	 *            the number of frames.
+	 * @param thresholds1
+	 *            the thresholds of channel 1.
+	 * @param thresholds2
+	 *            the thresholds of channel 2.
+	 * @param contactSensitivity
+	 *            the dilation radius.
+	 * @param sigma
+	 *            the gaussian filter sigma.
+	 * @param memoryBudget
+	 *            the maximal number of bytes of computed frames kept in
+	 *            memory. The last computed frame is always kept.
+	 */
+	public ContactVirtualStack( final RandomAccessibleInterval< T > im1, final RandomAccessibleInterval< T > im2, final int timeDim, final int nSlices, final int nFrames,
+			final ThresholdLookup thresholds1, final ThresholdLookup thresholds2, final int contactSensitivity, final double sigma, final long memoryBudget )
+	{
+		super( ( int ) im1.dimension( 0 ), ( int ) im1.dimension( 1 ), null, null );
+		this.im1 = im1;
+		this.im2 = im2;
+		this.timeDim = timeDim;
+		this.nSlices = nSlices;
+		this.nFrames = nFrames;
+		this.thresholds1 = thresholds1;
+		this.thresholds2 = thresholds2;
+		this.contactSensitivity = contactSensitivity;
+		this.sigma = sigma;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets the algorithm used to filter the channels, and empties the cache.
+	 *
+	 * @param blurMethod
+	 *            the gaussian filter algorithm.
+	 */
+	public synchronized void setBlurMethod( final BlurMethod blurMethod )
+	{
+		this.blurMethod = blurMethod;
+		clearCache();
+	}
+
+	/**
+	 * Sets the algorithm used to dilate the filtered channels, and empties the
+	 * cache.
+	 *
+	 * @param dilationMethod
+	 *            the dilation algorithm.
+	 */
+	public synchronized void setDilationMethod( final DilationMethod dilationMethod )
+	{
+		this.dilationMethod = dilationMethod;
+		clearCache();
+	}
+
+	@Override
+	public int getSize()
+	{
+		return nSlices * nFrames;
+	}
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		return "Contacts t" + ( ( n - 1 ) / nSlices + 1 ) + " z" + ( ( n - 1 ) % nSlices + 1 );
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		return getProcessor( n ).getPixels();
+	}
+
+	@Override
+	public void setPixels( final Object pixels, final int n )
+	{}
+
+	@Override
+	public void deleteSlice( final int n )
+	{}
+
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		final int frame = ( n - 1 ) / nSlices;
+		final int z = ( n - 1 ) % nSlices;
+		final Img< T > contacts = getFrame( frame );
+		final int width = getWidth();
+		final int height = getHeight();
+
+		final Planes planes = Planes.of( contacts );
+		if ( null != planes )
+		{
+			switch ( planes.type() )
+			{
+			case UNSIGNED_BYTE:
+				return new ByteProcessor( width, height, ( byte[] ) planes.array( z ), null );
+			case UNSIGNED_SHORT:
+				return new ShortProcessor( width, height, ( short[] ) planes.array( z ), null );
+			case FLOAT:
+				return new FloatProcessor( width, height, ( float[] ) planes.array( z ) );
+			default:
+				break;
+			}
+		}
+
+		// Other types are shown as float.
+		final RandomAccessibleInterval< T > plane = contacts.numDimensions() > 2 ? Views.hyperSlice( contacts, 2, z ) : contacts;
+		final float[] pixels = new float[ width * height ];
+		final Cursor< T > cursor = Views.flatIterable( plane ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+		{
+			pixels[ i++ ] = cursor.next().getRealFloat();
+		}
+		return new FloatProcessor( width, height, pixels );
+	}
+
+	/**
+	 * Empties the cache of computed frames.
+	 */
+	public synchronized void clearCache()
+	{
+		cache.clear();
+		cachedBytes = 0;
+	}
+
+	/**
+	 * Returns the contact image of a frame, computing it if it is not in the
+	 * cache. If the computation fails, the error is logged and an empty image
+	 * is returned, but not cached.
+	 */
+	private synchronized Img< T > getFrame( final int frame )
+	{
+		final Integer key = Integer.valueOf( frame );
+		Img< T > contacts = cache.get( key );
+		if ( null != contacts )
+		{
+			return contacts;
+		}
+
+		final RandomAccessibleInterval< T > frame1 = timeDim < 0 ? im1 : Views.hyperSlice( im1, timeDim, frame );
+		final RandomAccessibleInterval< T > frame2 = timeDim < 0 ? im2 : Views.hyperSlice( im2, timeDim, frame );
+		contacts = new PlanarImgFactory< T >().create( frame1, Util.getTypeFromInterval( frame1 ) );
+		final ContactImgGenerator< T > generator = new ContactImgGenerator< T >( frame1, frame2, contacts, thresholds1, thresholds2, frame, contactSensitivity, sigma );
+		generator.setDilationMethod( dilationMethod );
+		generator.setBlurMethod( blurMethod );
+		generator.setNumThreads( Parallel.getParallelism() );
+		if ( !generator.checkInput() || !generator.process() )
+		{
+			// Do not cache the failed frame, so that it is computed again.
+			IJ.log( CCCT_.PLUGIN_NAME + " v" + CCCT_.PLUGIN_VERSION + ": could not compute the contacts of frame " + ( frame + 1 ) + ". " + generator.getErrorMessage() );
+			return contacts;
+		}
+
+		cache.put( key, contacts );
+		cachedBytes += bytes( contacts );
+		evict();
+		return contacts;
+	}
+
+	/**
+	 * Removes the least recently used frames until the cache fits in the
+	 * memory budget, keeping at least the most recent one.
+	 */
+	private void evict()
+	{
+		final Iterator< Map.Entry< Integer, Img< T > > > it = cache.entrySet().iterator();
+		while ( cachedBytes > memoryBudget && cache.size() > 1 && it.hasNext() )
+		{
+			cachedBytes -= bytes( it.next().getValue() );
+			it.remove();
+		}
+	}
+
+	private static final long bytes( final Img< ? > img )
+	{
+		final Planes planes = Planes.of( img );
+		final long bytesPerPixel;
+		if ( null == planes )
+		{
+			bytesPerPixel = 8;
+		}
+		else
+		{
+			switch ( planes.type() )
+			{
+			case UNSIGNED_BYTE:
+				bytesPerPixel = 1;
+				break;
+			case UNSIGNED_SHORT:
+				bytesPerPixel = 2;
+				break;
+			default:
+				bytesPerPixel = 4;
+				break;
+			}
+		}
+		return bytesPerPixel * Intervals.numElements( img );
+	}
+}
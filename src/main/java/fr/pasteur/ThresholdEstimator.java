@@ -0,0 +1,201 @@
+package fr.pasteur;
+
+import ij.ImagePlus;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import fr.pasteur.ContactImgGenerator.ThresholdLookup;
+import fr.pasteur.util.Histogram;
+import fr.pasteur.util.ImageWatcher;
+import fr.pasteur.util.Parallel;
+
+/**
+ * Estimates the Otsu threshold of a channel for every frame of a movie, in a
+ * background job on the shared executor of {@link Parallel}.
+ * <p>
+ * Frames are processed in parallel. Each frame is subsampled on a regular
+ * grid so that at most {@link #MAX_SAMPLES} pixels are used for its
+ * histogram. Results are cached per image and channel, so that estimating
+ * the threshold of another frame, or running the analysis after the
+ * estimation, does not compute them again. Failed estimations are not
+ * cached, and the results of an image are dropped when it is closed or
+ * modified.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ThresholdEstimator
+{
+
+	/**
+	 * Maximal number of pixels sampled in a frame to estimate its threshold.
+	 */
+	public static final long MAX_SAMPLES = 1 << 20;
+
+	private static final ConcurrentMap< String, Future< double[] > > CACHE = new ConcurrentHashMap< String, Future< double[] > >();
+
+	static
+	{
+		ImageWatcher.addListener( new ImageWatcher.Listener()
+		{
+			@Override
+			public void imageChanged( final ImagePlus imp )
+			{
+				clear( imp );
+			}
+		} );
+	}
+
+	private ThresholdEstimator()
+	{}
+
+	/**
+	 * Returns the per-frame thresholds of a channel, computing them in the
+	 * background if they are not in the cache.
+	 *
+	 * @param imp
+	 *            the movie.
+	 * @param channel
+	 *            the channel, 0-based.
+	 * @return a future holding one threshold per frame.
+	 */
+	public static Future< double[] > estimate( final ImagePlus imp, final int channel )
+	{
+		final String key = imp.getID() + "_" + channel;
+		final Future< double[] > cached = CACHE.get( key );
+		if ( null != cached )
+		{
+			return cached;
+		}
+		final FutureTask< double[] > job = new FutureTask< double[] >( new Callable< double[] >()
+		{
+			@Override
+			public double[] call() throws Exception
+			{
+				return compute( imp, channel );
+			}
+		} )
+		{
+			@Override
+			protected void done()
+			{
+				// Do not keep failed or cancelled estimations.
+				try
+				{
+					get();
+				}
+				catch ( final Exception e )
+				{
+					CACHE.remove( key, this );
+				}
+			}
+		};
+		final Future< double[] > previous = CACHE.putIfAbsent( key, job );
+		if ( null != previous )
+		{
+			return previous;
+		}
+		ImageWatcher.watch( imp );
+		Parallel.getExecutor().execute( job );
+		return job;
+	}
+
+	/**
+	 * Returns the per-frame thresholds of a channel as a lookup, waiting for
+	 * their estimation if needed.
+	 *
+	 * @param imp
+	 *            the movie.
+	 * @param channel
+	 *            the channel, 0-based.
+	 * @return the threshold lookup.
+	 * @throws ExecutionException
+	 *             if the estimation failed.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public static ThresholdLookup lookup( final ImagePlus imp, final int channel ) throws InterruptedException, ExecutionException
+	{
+		final double[] thresholds = estimate( imp, channel ).get();
+		return new ThresholdLookup()
+		{
+			@Override
+			public double getThreshold( final int frame )
+			{
+				return thresholds[ Math.min( frame, thresholds.length - 1 ) ];
+			}
+		};
+	}
+
+	/**
+	 * Removes the thresholds of an image from the cache. This is done
+	 * automatically when the image is closed or modified (see
+	 * {@link ImageWatcher}).
+	 *
+	 * @param imp
+	 *            the image.
+	 */
+	public static void clear( final ImagePlus imp )
+	{
+		final String prefix = imp.getID() + "_";
+		for ( final String key : CACHE.keySet() )
+		{
+			if ( key.startsWith( prefix ) )
+			{
+				CACHE.remove( key );
+			}
+		}
+	}
+
+	/**
+	 * Computes the thresholds of all the frames. Frames are read one by one
+	 * from the stack of the movie, so that a virtual stack is not loaded at
+	 * once.
+	 */
+	@SuppressWarnings( "rawtypes" )
+	private static double[] compute( final ImagePlus imp, final int channel )
+	{
+		final int nFrames = imp.getNFrames();
+		final double[] thresholds = new double[ nFrames ];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Parallel.run( Math.min( nFrames, Parallel.getParallelism() ), new Parallel.Worker()
+		{
+			@SuppressWarnings( "unchecked" )
+			@Override
+			public void run( final int index )
+			{
+				for ( int frame = ai.getAndIncrement(); frame < nFrames; frame = ai.getAndIncrement() )
+				{
+					final RandomAccessibleInterval slice = ContactStreamer.readFrame( imp, channel, frame );
+					final Histogram hist = Histogram.compute( subsample( slice ), 256, 1 );
+					thresholds[ frame ] = ContactImgGenerator.otsuThreshold( hist );
+				}
+			}
+		} );
+		return thresholds;
+	}
+
+	/**
+	 * Subsamples a frame with the same step along all dimensions, so that it
+	 * has at most {@link #MAX_SAMPLES} pixels.
+	 */
+	private static < T extends RealType< T >> RandomAccessibleInterval< T > subsample( final RandomAccessibleInterval< T > frame )
+	{
+		final long size = Intervals.numElements( frame );
+		if ( size <= MAX_SAMPLES )
+		{
+			return frame;
+		}
+		final long step = ( long ) Math.ceil( Math.pow( ( double ) size / MAX_SAMPLES, 1. / frame.numDimensions() ) );
+		return Views.subsample( frame, step );
+	}
+}
@@ -4,9 +4,13 @@ import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_THRESHOLD;
 import static fiji.plugin.trackmate.gui.TrackMateWizard.BIG_FONT;
 import static fiji.plugin.trackmate.gui.TrackMateWizard.FONT;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_BINARY_MODE;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_BLUR_METHOD;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CHANNEL_1;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CHANNEL_2;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_CONTACT_SENSITIVITY;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_DILATION_METHOD;
+import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_PYRAMID_FACTOR;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_SIGMA_FILTER;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_THRESHOLD_1;
 import static fr.pasteur.trackmate.CellContactDetectorFactory.KEY_THRESHOLD_2;
@@ -21,10 +25,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JSlider;
@@ -33,10 +39,6 @@ import javax.swing.SwingConstants;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
-import net.imagej.ImgPlus;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
@@ -45,8 +47,9 @@ import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.gui.ConfigurationPanel;
 import fiji.plugin.trackmate.util.JLabelLogger;
-import fiji.plugin.trackmate.util.TMUtils;
-import fr.pasteur.ContactImgGenerator;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.ThresholdEstimator;
 
 @SuppressWarnings( "deprecation" )
 public class CellContactConfigurationPanel extends ConfigurationPanel
@@ -69,6 +72,8 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 
 	protected final JFormattedTextField jtfThreshold;
 
+	private final DilatedChannelCache dilatedCache = new DilatedChannelCache();
+
 	private final Logger localLogger;
 
 	private final JFormattedTextField jtfThresholdC1;
@@ -81,6 +86,17 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 
 	protected final JLabel lblThreshold;
 
+	private final JCheckBox chckbxBinaryMode;
+
+	private final JCheckBox chckbxRecursiveBlur;
+
+	private final JCheckBox chckbxRunningMax;
+
+	/**
+	 * The pyramid factor has no widget, and is kept from the settings.
+	 */
+	private Object pyramidFactor;
+
 	public CellContactConfigurationPanel( final ImagePlus imp, final Model model )
 	{
 		this.imp = imp == null ? NewImage.createByteImage( "Blank", 50, 50, 3, NewImage.FILL_BLACK ) : imp;
@@ -157,6 +173,29 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 		jtfThreshold.setHorizontalAlignment( SwingConstants.CENTER );
 		jtfThreshold.setFont( FONT );
 
+		chckbxBinaryMode = new JCheckBox( "Binary mode (contact mask only)." );
+		chckbxBinaryMode.setFont( FONT );
+		chckbxBinaryMode.setSelected( Boolean.TRUE.equals( defaultSettings.get( KEY_BINARY_MODE ) ) );
+
+		chckbxRecursiveBlur = new JCheckBox( "Recursive gaussian filter (faster for large sigmas)." );
+		chckbxRecursiveBlur.setFont( FONT );
+		chckbxRecursiveBlur.setSelected( CellContactDetectorFactory.getBlurMethod( defaultSettings ) == BlurMethod.RECURSIVE );
+
+		chckbxRunningMax = new JCheckBox( "Running max dilation (faster for large sensitivities)." );
+		chckbxRunningMax.setFont( FONT );
+		chckbxRunningMax.setSelected( CellContactDetectorFactory.getDilationMethod( defaultSettings ) == DilationMethod.RUNNING_MAX );
+
+		// Binary mode only implements the running max dilation.
+		chckbxBinaryMode.addActionListener( new ActionListener()
+		{
+			@Override
+			public void actionPerformed( final ActionEvent e )
+			{
+				updateRunningMax();
+			}
+		} );
+		updateRunningMax();
+
 		btnPreview = new JButton( "Preview" );
 		btnPreview.setFont( FONT );
 		btnPreview.addActionListener( new ActionListener()
@@ -240,6 +279,9 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 												.addContainerGap() )
 										.addComponent( btnThresholdC1, Alignment.LEADING )
 										.addComponent( btnThresholdC2, Alignment.LEADING )
+										.addComponent( chckbxBinaryMode, Alignment.LEADING )
+										.addComponent( chckbxRecursiveBlur, Alignment.LEADING )
+										.addComponent( chckbxRunningMax, Alignment.LEADING )
 										.addGroup( groupLayout.createSequentialGroup()
 												.addGroup( groupLayout.createParallelGroup( Alignment.LEADING )
 														.addGroup( groupLayout.createSequentialGroup()
@@ -312,51 +354,55 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 										.addComponent( lblThreshold )
 										.addComponent( jtfThreshold, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE )
 										.addComponent( lblPixels ) )
+								.addPreferredGap( ComponentPlacement.RELATED )
+								.addComponent( chckbxBinaryMode )
+								.addPreferredGap( ComponentPlacement.RELATED )
+								.addComponent( chckbxRecursiveBlur )
+								.addPreferredGap( ComponentPlacement.RELATED )
+								.addComponent( chckbxRunningMax )
 								.addGap( 18 )
 								.addGroup( groupLayout.createParallelGroup( Alignment.BASELINE )
 										.addComponent( btnPreview )
 										.addComponent( labelLogger, GroupLayout.PREFERRED_SIZE, 29, GroupLayout.PREFERRED_SIZE ) )
-								.addGap( 93 ) )
+								.addGap( 70 ) )
 				);
 		setLayout( groupLayout );
 	}
 
+	/**
+	 * Selects and locks the running max dilation in binary mode.
+	 */
+	private void updateRunningMax()
+	{
+		if ( chckbxBinaryMode.isSelected() )
+		{
+			chckbxRunningMax.setSelected( true );
+		}
+		chckbxRunningMax.setEnabled( !chckbxBinaryMode.isSelected() );
+	}
+
 	private void estimateThreshold( final int channel, final JFormattedTextField target, final JButton source )
 	{
 		source.setEnabled( false );
 		new Thread( "CCCT Threshold estimator thread" )
 		{
-			@SuppressWarnings( { "rawtypes", "unchecked" } )
 			@Override
 			public void run()
 			{
 				try
 				{
+					// Estimates all frames in the background, or reuses them.
 					final int frame = imp.getFrame() - 1;
-					final ImgPlus img = TMUtils.rawWraps( imp );
-					RandomAccessibleInterval slice;
-
-					final int cDim = TMUtils.findCAxisIndex( img );
-					if ( cDim < 0 )
-					{
-						slice = img;
-					}
-					else
-					{
-						slice = Views.hyperSlice( img, cDim, channel );
-					}
-
-					int timeDim = TMUtils.findTAxisIndex( img );
-					if ( timeDim >= 0 )
-					{
-						if ( cDim >= 0 && timeDim > cDim )
-						{
-							timeDim--;
-						}
-						slice = Views.hyperSlice( slice, timeDim, frame );
-					}
-					final RealType threshold = ContactImgGenerator.otsuTreshold( slice );
-					target.setValue( Double.valueOf( threshold.getRealDouble() ) );
+					final double[] thresholds = ThresholdEstimator.estimate( imp, channel ).get();
+					target.setValue( Double.valueOf( thresholds[ Math.min( frame, thresholds.length - 1 ) ] ) );
+				}
+				catch ( final InterruptedException e )
+				{
+					e.printStackTrace();
+				}
+				catch ( final ExecutionException e )
+				{
+					e.printStackTrace();
 				}
 				finally
 				{
@@ -377,6 +423,11 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 		jtfContactSensitivity.setValue( settings.get( KEY_CONTACT_SENSITIVITY ) );
 		jtfSigma.setValue( settings.get( KEY_SIGMA_FILTER ) );
 		jtfThreshold.setValue( settings.get( KEY_THRESHOLD ) );
+		chckbxBinaryMode.setSelected( Boolean.TRUE.equals( settings.get( KEY_BINARY_MODE ) ) );
+		chckbxRecursiveBlur.setSelected( CellContactDetectorFactory.getBlurMethod( settings ) == BlurMethod.RECURSIVE );
+		chckbxRunningMax.setSelected( CellContactDetectorFactory.getDilationMethod( settings ) == DilationMethod.RUNNING_MAX );
+		updateRunningMax();
+		pyramidFactor = settings.get( KEY_PYRAMID_FACTOR );
 	}
 
 	@Override
@@ -412,6 +463,13 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 		settings.put( KEY_THRESHOLD_1, threshold_C1 );
 		settings.put( KEY_THRESHOLD_2, threshold_C2 );
 		settings.put( KEY_THRESHOLD, threshold );
+		settings.put( KEY_BINARY_MODE, Boolean.valueOf( chckbxBinaryMode.isSelected() ) );
+		settings.put( KEY_BLUR_METHOD, ( chckbxRecursiveBlur.isSelected() ? BlurMethod.RECURSIVE : BlurMethod.GAUSS3 ).name() );
+		settings.put( KEY_DILATION_METHOD, ( chckbxRunningMax.isSelected() ? DilationMethod.RUNNING_MAX : DilationMethod.DISK ).name() );
+		if ( null != pyramidFactor )
+		{
+			settings.put( KEY_PYRAMID_FACTOR, pyramidFactor );
+		}
 		// Add a dummy target channel
 		settings.put( KEY_TARGET_CHANNEL, 1 );
 		return settings;
@@ -432,7 +490,11 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 				settings.tstart = frame;
 				settings.tend = frame;
 
-				settings.detectorFactory = new CellContactDetectorFactory();
+				// Reuse the dilated channels while only thresholds change.
+				final CellContactDetectorFactory factory = new CellContactDetectorFactory();
+				factory.setDilatedChannelCache( dilatedCache );
+				factory.setImage( imp );
+				settings.detectorFactory = factory;
 				settings.detectorSettings = getSettings();
 
 				final TrackMate trackmate = new TrackMate( settings );
@@ -472,5 +534,7 @@ public class CellContactConfigurationPanel extends ConfigurationPanel
 
 	@Override
 	public void clean()
-	{}
+	{
+		dilatedCache.clear();
+	}
 }
@@ -1,29 +1,37 @@
 package fr.pasteur.trackmate;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.Benchmark;
 import net.imglib2.algorithm.MultiThreaded;
-import net.imglib2.algorithm.labeling.AllConnectedComponents;
 import net.imglib2.img.Img;
-import net.imglib2.img.ImgFactory;
-import net.imglib2.img.planar.PlanarImgFactory;
-import net.imglib2.labeling.NativeImgLabeling;
-import net.imglib2.roi.IterableRegionOfInterest;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.detection.SpotDetector;
+import fr.pasteur.BinaryContactGenerator;
 import fr.pasteur.ContactImgGenerator;
-import fr.pasteur.util.Thresholder;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.trackmate.ComponentTable.Components;
+import fr.pasteur.util.BufferPool;
+import fr.pasteur.util.ComponentStatistics;
+import fr.pasteur.util.ConnectedComponents;
+import fr.pasteur.util.Parallel;
 
 @SuppressWarnings( "deprecation" )
 public class CellContactDetector< T extends RealType< T > & NativeType< T >> implements SpotDetector< T >, MultiThreaded, Benchmark
@@ -55,6 +63,26 @@ public class CellContactDetector< T extends RealType< T > & NativeType< T >> imp
 
 	private final double threshold_C2;
 
+	private DilatedChannelCache dilatedCache;
+
+	private Object image;
+
+	private ComponentTable componentTable;
+
+	private int frame;
+
+	private int channel1;
+
+	private int channel2;
+
+	private boolean binaryMode;
+
+	private BlurMethod blurMethod = BlurMethod.GAUSS3;
+
+	private DilationMethod dilationMethod = DilationMethod.DISK;
+
+	private int pyramidFactor = 1;
+
 	public CellContactDetector( final RandomAccessibleInterval< T > im1, final RandomAccessibleInterval< T > im2, final double threshold_C1, final double threshold_C2, final int contactSensitivity, final double sigma, final double threshold, final double[] calibration )
 	{
 		this.im1 = im1;
@@ -67,6 +95,109 @@ public class CellContactDetector< T extends RealType< T > & NativeType< T >> imp
 		this.calibration = calibration;
 	}
 
+	/**
+	 * Sets a cache of dilated channels. The filtered and dilated channels are
+	 * then taken from the cache, or stored in it after being computed, and
+	 * only the combination of the channels and the labeling are computed.
+	 *
+	 * @param dilatedCache
+	 *            the cache.
+	 * @param image
+	 *            identifies the image in the cache, for instance its ImageJ
+	 *            ID.
+	 * @param frame
+	 *            the frame processed by this detector.
+	 * @param channel1
+	 *            the index of the first channel in the image.
+	 * @param channel2
+	 *            the index of the second channel in the image.
+	 */
+	public void setDilatedChannelCache( final DilatedChannelCache dilatedCache, final Object image, final int frame, final int channel1, final int channel2 )
+	{
+		this.dilatedCache = dilatedCache;
+		this.image = image;
+		this.frame = frame;
+		this.channel1 = channel1;
+		this.channel2 = channel2;
+	}
+
+	/**
+	 * Sets a table of the components found in each frame. If the table
+	 * already has the components of the frame, they are only filtered by
+	 * size. Otherwise, the components found by this detector are stored in
+	 * it.
+	 *
+	 * @param componentTable
+	 *            the component table.
+	 * @param frame
+	 *            the frame processed by this detector.
+	 */
+	public void setComponentTable( final ComponentTable componentTable, final int frame )
+	{
+		this.componentTable = componentTable;
+		this.frame = frame;
+	}
+
+	/**
+	 * Sets whether only the contact mask is computed, with
+	 * {@link BinaryContactGenerator}. The quality of spots is then their size
+	 * in pixels instead of their summed contact value. The dilated channel
+	 * cache is not used in binary mode.
+	 *
+	 * @param binaryMode
+	 *            whether to use the binary mode.
+	 */
+	public void setBinaryMode( final boolean binaryMode )
+	{
+		this.binaryMode = binaryMode;
+	}
+
+	/**
+	 * Sets the algorithm used to filter the channels.
+	 *
+	 * @param blurMethod
+	 *            the gaussian filter algorithm.
+	 */
+	public void setBlurMethod( final BlurMethod blurMethod )
+	{
+		this.blurMethod = blurMethod;
+	}
+
+	/**
+	 * Sets the algorithm used to dilate the filtered channels. Not used in
+	 * binary mode, which always dilates as
+	 * {@link DilationMethod#RUNNING_MAX}.
+	 *
+	 * @param dilationMethod
+	 *            the dilation algorithm.
+	 */
+	public void setDilationMethod( final DilationMethod dilationMethod )
+	{
+		this.dilationMethod = dilationMethod;
+	}
+
+	/**
+	 * Sets the downsampling factor of the pyramid mode. With a factor larger
+	 * than 1, the contact mask is first computed on the frame downsampled by
+	 * this factor, with the sigma and the contact sensitivity scaled
+	 * accordingly. The contact image is then computed at full resolution
+	 * only around the contacts found, and is 0 elsewhere.
+	 * <p>
+	 * Frames are downsampled by taking the max over blocks of pixels, so that
+	 * small contacts are not averaged out, and the regions around coarse
+	 * contacts are padded and grown until they cover the full-resolution
+	 * contacts they contain. Spots are exact, but a contact too small or too
+	 * dim to be found on the downsampled frame is missed. The dilated channel
+	 * cache and the binary mode do not use the pyramid.
+	 *
+	 * @param pyramidFactor
+	 *            the downsampling factor, 1 to disable the pyramid mode.
+	 */
+	public void setPyramidFactor( final int pyramidFactor )
+	{
+		this.pyramidFactor = pyramidFactor;
+	}
+
 	@Override
 	public List< Spot > getResult()
 	{
@@ -104,82 +235,410 @@ public class CellContactDetector< T extends RealType< T > & NativeType< T >> imp
 	{
 		final long start = System.currentTimeMillis();
 
-		final ImgFactory< T > factory = Util.getArrayOrCellImgFactory( im1, Util.getTypeFromInterval( im1 ) );
-		final Img< T > out = factory.create( im1, Util.getTypeFromInterval( im1 ) );
-		
+		final Components cached = null == componentTable ? null : componentTable.get( frame );
+		if ( null != cached )
+		{
+			createSpots( cached );
+			this.processingTime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		final BufferPool pool = BufferPool.getShared();
+		if ( binaryMode )
+		{
+			final Img< BitType > mask = pool.borrowImg( im1, new BitType() );
+			try
+			{
+				if ( !processBinary( mask ) )
+				{
+					return false;
+				}
+			}
+			finally
+			{
+				pool.release( mask );
+			}
+			this.processingTime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		final Img< T > out = pool.borrowImg( im1, Util.getTypeFromInterval( im1 ) );
+		final Img< BitType > mask = pool.borrowImg( im1, new BitType() );
+		try
+		{
+			if ( !process( out, mask ) )
+			{
+				return false;
+			}
+		}
+		finally
+		{
+			pool.release( out );
+			pool.release( mask );
+		}
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Computes the spots using the specified scratch images for the contact
+	 * image and the contact mask.
+	 */
+	private boolean process( final Img< T > out, final Img< BitType > mask )
+	{
 		final ContactImgGenerator< T > generator = new ContactImgGenerator< T >( im1, im2, out, threshold_C1, threshold_C2, contactSensitivity, sigma );
+		generator.setMask( mask );
 		generator.setNumThreads( numThreads );
-		if ( !generator.checkInput() || !generator.process() )
+		generator.setDilationMethod( dilationMethod );
+		generator.setBlurMethod( blurMethod );
+		if ( !generator.checkInput() )
 		{
 			errorMessage = BASE_ERROR_MSG + generator.getErrorMessage();
 			return false;
 		}
-		
-		
+		if ( pyramidFactor > 1 && null == dilatedCache )
+		{
+			if ( !processPyramid( generator, out, mask ) )
+			{
+				return false;
+			}
+		}
+		else if ( null == dilatedCache )
+		{
+			if ( !generator.process() )
+			{
+				errorMessage = BASE_ERROR_MSG + generator.getErrorMessage();
+				return false;
+			}
+		}
+		else
+		{
+			// The two channels are computed concurrently if not cached.
+			final List< Img< FloatType > > dilated = new ArrayList< Img< FloatType > >( 2 );
+			dilated.add( null );
+			dilated.add( null );
+			Parallel.run( 2, new Parallel.Worker()
+			{
+				@Override
+				public void run( final int index )
+				{
+					dilated.set( index, dilatedChannel( generator, index + 1, index == 0 ? channel1 : channel2 ) );
+				}
+			} );
+			if ( null == dilated.get( 0 ) || null == dilated.get( 1 ) )
+			{
+				errorMessage = BASE_ERROR_MSG + generator.getErrorMessage();
+				return false;
+			}
+			generator.combine( dilated.get( 0 ), dilated.get( 1 ) );
+		}
+
 		/*
-		 * Generate binary mask.
+		 * Find connected components.
 		 */
 
-		final ImgFactory< BitType > maskFactory = Util.getArrayOrCellImgFactory( im1, new BitType() );
-		final Img< BitType > mask = maskFactory.create( im1, new BitType() );
-		final T valTreshold = out.firstElement().createVariable();
-		valTreshold.setZero();
-		Thresholder.threshold( out, mask, valTreshold, true, numThreads );
+		final Img< UnsignedIntType > lbl = BufferPool.getShared().borrowImg( mask, new UnsignedIntType() );
+		try
+		{
+			final int nLabels = ConnectedComponents.label( mask, lbl, numThreads );
+			createSpots( out, lbl, nLabels );
+		}
+		finally
+		{
+			BufferPool.getShared().release( lbl );
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the contact image and the contact mask in the pyramid mode.
+	 * The specified generator is configured for the full-resolution frame.
+	 */
+	private boolean processPyramid( final ContactImgGenerator< T > generator, final Img< T > out, final Img< BitType > mask )
+	{
+		final int n = im1.numDimensions();
+		final int factor = pyramidFactor;
 
 		/*
-		 * Find connected components.
+		 * Contact mask of the downsampled frame.
 		 */
 
-		final Iterator< Integer > names = AllConnectedComponents.getIntegerNames( 0 );
-		final Img< UnsignedIntType > lbl = new PlanarImgFactory< UnsignedIntType >().create( mask, new UnsignedIntType() );
-		final NativeImgLabeling< Integer, UnsignedIntType > labeling = new NativeImgLabeling< Integer, UnsignedIntType >( lbl );
-		AllConnectedComponents.labelAllConnectedComponents( labeling, mask, names );
+		final long[] coarseDims = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			coarseDims[ d ] = ( im1.dimension( d ) + factor - 1 ) / factor;
+		}
+		final Img< FloatType > coarse1 = ArrayImgs.floats( coarseDims );
+		final Img< FloatType > coarse2 = ArrayImgs.floats( coarseDims );
+		downsample( im1, coarse1, factor );
+		downsample( im2, coarse2, factor );
+
+		final int coarseSensitivity = ( contactSensitivity + factor - 1 ) / factor;
+		final Img< BitType > coarseMask = ArrayImgs.bits( coarseDims );
+		final ContactImgGenerator< FloatType > coarseGenerator = new ContactImgGenerator< FloatType >( coarse1, coarse2, null, threshold_C1, threshold_C2, coarseSensitivity, sigma / factor );
+		coarseGenerator.setMask( coarseMask );
+		coarseGenerator.setNumThreads( numThreads );
+		coarseGenerator.setDilationMethod( dilationMethod );
+		coarseGenerator.setBlurMethod( blurMethod );
+		if ( !coarseGenerator.checkInput() || !coarseGenerator.process() )
+		{
+			errorMessage = BASE_ERROR_MSG + coarseGenerator.getErrorMessage();
+			return false;
+		}
+
+		final Img< UnsignedIntType > coarseLabels = ArrayImgs.unsignedInts( coarseDims );
+		final int nCoarse = ConnectedComponents.label( coarseMask, coarseLabels, numThreads );
+		final ComponentStatistics coarseStats = ComponentStatistics.compute( coarseLabels, nCoarse, coarseMask );
 
 		/*
-		 * Loop over connected components and generate spots.
+		 * Full resolution around each coarse contact. The core of a region
+		 * covers the coarse contact, padded by the full-resolution contact
+		 * sensitivity and by one coarse pixel. It is computed over the core
+		 * expanded by the reach of the filter and of the dilation, so that
+		 * it is exact over the core. While the contact mask touches a side of
+		 * the core inside the frame, a contact may extend past it: the core
+		 * is grown on this side and the region computed again.
 		 */
 
-		final Collection< Integer > labels = labeling.getLabels();
-		spots = new ArrayList< Spot >( labels.size() );
-		for ( final Integer label : labels )
+		clear( out );
+		clear( mask );
+		final long[] pad = generator.getDilationExtent();
+		final long[] reach = generator.getReach();
+		final T type = Util.getTypeFromInterval( out );
+		for ( int label = 1; label <= nCoarse; label++ )
 		{
-			final long size = labeling.getArea( label );
-			if ( size < threshold )
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			for ( int d = 0; d < n; d++ )
 			{
-				continue;
+				min[ d ] = coarseStats.min( label, d ) * factor - pad[ d ] - factor;
+				max[ d ] = ( coarseStats.max( label, d ) + 1 ) * factor - 1 + pad[ d ] + factor;
 			}
+			Interval core = Intervals.intersect( new FinalInterval( min, max ), im1 );
+			while ( true )
+			{
+				// Region sizes are arbitrary, so they are not pooled.
+				final Interval region = Intervals.intersect( Intervals.expand( core, reach ), im1 );
+				final Img< T > regionOut = new ArrayImgFactory< T >().create( region, type );
+				final Img< BitType > regionMask = ArrayImgs.bits( Intervals.dimensionsAsLongArray( region ) );
+				final ContactImgGenerator< T > regionGenerator = new ContactImgGenerator< T >(
+						Views.zeroMin( Views.interval( im1, region ) ), Views.zeroMin( Views.interval( im2, region ) ),
+						regionOut, threshold_C1, threshold_C2, contactSensitivity, sigma );
+				regionGenerator.setMask( regionMask );
+				regionGenerator.setNumThreads( numThreads );
+				regionGenerator.setDilationMethod( dilationMethod );
+				regionGenerator.setBlurMethod( blurMethod );
+				if ( !regionGenerator.checkInput() || !regionGenerator.process() )
+				{
+					errorMessage = BASE_ERROR_MSG + regionGenerator.getErrorMessage();
+					return false;
+				}
+
+				final Interval grown = grow( regionMask, region, core, pad, factor );
+				if ( null != grown )
+				{
+					core = grown;
+					continue;
+				}
+				copy( regionOut, region, out, core );
+				copy( regionMask, region, mask, core );
+				break;
+			}
+		}
+		return true;
+	}
 
+	/**
+	 * Returns the core grown on each side the contact mask touches inside the
+	 * frame, by the padding and one coarse pixel, or <code>null</code> if the
+	 * mask does not touch any side of the core inside the frame.
+	 */
+	private Interval grow( final Img< BitType > regionMask, final Interval region, final Interval core, final long[] pad, final int factor )
+	{
+		final int n = core.numDimensions();
+		final RandomAccessibleInterval< BitType > coreMask = Views.interval( Views.translate( regionMask, Intervals.minAsLongArray( region ) ), core );
+		final long[] min = Intervals.minAsLongArray( core );
+		final long[] max = Intervals.maxAsLongArray( core );
+		boolean grown = false;
+		for ( int d = 0; d < n; d++ )
+		{
+			if ( core.min( d ) > im1.min( d ) && any( Views.hyperSlice( coreMask, d, core.min( d ) ) ) )
+			{
+				min[ d ] = Math.max( im1.min( d ), min[ d ] - pad[ d ] - factor );
+				grown = true;
+			}
+			if ( core.max( d ) < im1.max( d ) && any( Views.hyperSlice( coreMask, d, core.max( d ) ) ) )
+			{
+				max[ d ] = Math.min( im1.max( d ), max[ d ] + pad[ d ] + factor );
+				grown = true;
+			}
+		}
+		return grown ? new FinalInterval( min, max ) : null;
+	}
 
-			final IterableRegionOfInterest roi = labeling.getIterableRegionOfInterest( label );
-			final Cursor< T > cursor = roi.getIterableIntervalOverROI( out ).cursor();
-			final double[] lpos = new double[ im1.numDimensions() ];
-			final double[] pos = new double[] { 0., 0., 0. };
-			double x = 0.;
-			double y = 0.;
-			double z = 0.;
-			double quality = 0.;
-			while ( cursor.hasNext() )
+	private static final boolean any( final RandomAccessibleInterval< BitType > mask )
+	{
+		for ( final BitType pixel : Views.iterable( mask ) )
+		{
+			if ( pixel.get() )
 			{
-				cursor.fwd();
-				cursor.localize( lpos );
-				System.arraycopy( lpos, 0, pos, 0, lpos.length );
-				x += pos[ 0 ] * calibration[ 0 ];
-				y += pos[ 1 ] * calibration[ 1 ];
-				z += pos[ 2 ] * calibration[ 2 ];
-				quality += cursor.get().getRealDouble();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Downsamples a frame by taking the max over blocks of pixels.
+	 */
+	private static final < R extends RealType< R >> void downsample( final RandomAccessibleInterval< R > source, final Img< FloatType > target, final int factor )
+	{
+		for ( final FloatType pixel : target )
+		{
+			pixel.set( Float.NEGATIVE_INFINITY );
+		}
+		final int n = source.numDimensions();
+		final Cursor< R > cursor = Views.flatIterable( source ).localizingCursor();
+		final RandomAccess< FloatType > ra = target.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			for ( int d = 0; d < n; d++ )
+			{
+				ra.setPosition( ( cursor.getLongPosition( d ) - source.min( d ) ) / factor, d );
+			}
+			final float value = cursor.get().getRealFloat();
+			if ( value > ra.get().get() )
+			{
+				ra.get().set( value );
+			}
+		}
+	}
+
+	/**
+	 * Copies the core part of an image computed over a region to the
+	 * full-frame image.
+	 */
+	private static final < R extends RealType< R >> void copy( final Img< R > source, final Interval region, final Img< R > target, final Interval core )
+	{
+		final Cursor< R > in = Views.flatIterable( Views.interval( Views.translate( source, Intervals.minAsLongArray( region ) ), core ) ).cursor();
+		final Cursor< R > out = Views.flatIterable( Views.interval( target, core ) ).cursor();
+		while ( in.hasNext() )
+		{
+			out.next().set( in.next() );
+		}
+	}
+
+	private static final < R extends RealType< R >> void clear( final Img< R > img )
+	{
+		for ( final R pixel : img )
+		{
+			pixel.setZero();
+		}
+	}
+
+	/**
+	 * Computes the spots from the contact mask only, using the specified
+	 * scratch image for the mask.
+	 */
+	private boolean processBinary( final Img< BitType > mask )
+	{
+		final BinaryContactGenerator< T > generator = new BinaryContactGenerator< T >( im1, im2, mask, threshold_C1, threshold_C2, contactSensitivity, sigma );
+		generator.setNumThreads( numThreads );
+		generator.setBlurMethod( blurMethod );
+		if ( !generator.checkInput() || !generator.process() )
+		{
+			errorMessage = BASE_ERROR_MSG + generator.getErrorMessage();
+			return false;
+		}
+
+		final Img< UnsignedIntType > lbl = BufferPool.getShared().borrowImg( mask, new UnsignedIntType() );
+		try
+		{
+			final int nLabels = ConnectedComponents.label( mask, lbl, numThreads );
+			// Summing the mask gives the contact size as quality.
+			createSpots( mask, lbl, nLabels );
+		}
+		finally
+		{
+			BufferPool.getShared().release( lbl );
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the dilated channel from the cache, computing it if needed.
+	 */
+	private Img< FloatType > dilatedChannel( final ContactImgGenerator< T > generator, final int index, final int channel )
+	{
+		Img< FloatType > dilated = dilatedCache.get( image, frame, channel, blurMethod, sigma, dilationMethod, contactSensitivity );
+		if ( null == dilated )
+		{
+			dilated = generator.dilatedChannel( index );
+			if ( null != dilated )
+			{
+				dilatedCache.put( image, frame, channel, blurMethod, sigma, dilationMethod, contactSensitivity, dilated );
+			}
+		}
+		return dilated;
+	}
+
+	/**
+	 * Measures the connected components and creates the spots.
+	 */
+	private < R extends RealType< R >> void createSpots( final Img< R > values, final Img< UnsignedIntType > lbl, final int nLabels )
+	{
+		final ComponentStatistics stats = ComponentStatistics.compute( lbl, nLabels, values );
+		final Components components = new Components( stats, calibration );
+		if ( null != componentTable )
+		{
+			componentTable.put( frame, components );
+		}
+		createSpots( components );
+	}
+
+	/**
+	 * Creates one spot per component at least as large as the size
+	 * threshold.
+	 */
+	private void createSpots( final Components components )
+	{
+		spots = createSpots( components, threshold, calibration, im1.numDimensions() );
+	}
+
+	/**
+	 * Creates one spot per component at least as large as a size threshold.
+	 *
+	 * @param components
+	 *            the components of a frame.
+	 * @param threshold
+	 *            the minimal component size, in pixels.
+	 * @param calibration
+	 *            the pixel sizes along X, Y and Z.
+	 * @param numDimensions
+	 *            the number of dimensions of the frame.
+	 * @return a new list of spots.
+	 */
+	public static final List< Spot > createSpots( final Components components, final double threshold, final double[] calibration, final int numDimensions )
+	{
+		final List< Spot > spots = new ArrayList< Spot >( components.size() );
+		for ( int i = 0; i < components.size(); i++ )
+		{
+			final long size = components.size( i );
+			if ( size < threshold )
+			{
+				continue;
 			}
-			// Spot position is the mean position of all pixels from the region.
-			x /= size;
-			y /= size;
-			z /= size;
 
 			double volume = size;
-			for ( int d = 0; d < im1.numDimensions(); d++ )
+			for ( int d = 0; d < numDimensions; d++ )
 			{
 				volume *= calibration[ d ];
 			}
 			final double radius;
-			switch ( im1.numDimensions() )
+			switch ( numDimensions )
 			{
 			case 1:
 				radius = volume / 2;
@@ -192,13 +651,11 @@ public class CellContactDetector< T extends RealType< T > & NativeType< T >> imp
 				radius = Math.pow( 3. * volume / 4. / Math.PI, 1. / 3. );
 			}
 
-			final Spot spot = new Spot( x, y, z, radius, quality );
+			// Spot position is the mean position of all pixels from the region.
+			final Spot spot = new Spot( components.x( i ), components.y( i ), components.z( i ), radius, components.quality( i ) );
 			spots.add( spot );
 		}
-
-		final long end = System.currentTimeMillis();
-		this.processingTime = end - start;
-		return true;
+		return spots;
 	}
 
 	@Override
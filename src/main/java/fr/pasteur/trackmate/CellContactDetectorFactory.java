@@ -2,17 +2,24 @@ package fr.pasteur.trackmate;
 
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_THRESHOLD;
+import static fiji.plugin.trackmate.io.IOUtils.readBooleanAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readDoubleAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readIntegerAttribute;
+import static fiji.plugin.trackmate.io.IOUtils.readStringAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.writeAttribute;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
+import ij.ImagePlus;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.swing.ImageIcon;
 
@@ -32,6 +39,9 @@ import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.gui.ConfigurationPanel;
 import fiji.plugin.trackmate.util.TMUtils;
 import fr.pasteur.CCCT_;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.util.ImageWatcher;
 
 @SuppressWarnings( "deprecation" )
 @Plugin( type = SpotDetectorFactory.class )
@@ -62,6 +72,16 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 			+ "size a contact must have "
 			+ "to be accounted for. "
 			+ "<p>"
+			+ "In <tt>Binary mode</tt>, only the contact mask is computed, "
+			+ "which is much faster. The contacts found are the same, but the "
+			+ "spot quality is then the contact size. "
+			+ "<p>"
+			+ "The <tt>Recursive gaussian filter</tt> is faster for large sigmas. "
+			+ "<p>"
+			+ "With a <tt>Pyramid factor</tt> of 2 or 4, contacts are first "
+			+ "searched in the downsampled image, then computed at full resolution "
+			+ "only around them. "
+			+ "<p>"
 			+ "Jean-Yves Tinevez - 2015 <br/>"
 			+ "Version " + CCCT_.PLUGIN_VERSION
 			+ "</html>";
@@ -96,12 +116,84 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 
 	public static final String KEY_THRESHOLD_2 = "THRESHOLD_C2";
 
+	/**
+	 * The key identifying the parameter that selects the binary mode. In
+	 * binary mode, only the contact mask is computed, with bit-parallel
+	 * operations (see {@link fr.pasteur.BinaryContactGenerator}), and the
+	 * quality of a spot is its size in pixels. Expected values are
+	 * {@link Boolean}s. Optional, <code>false</code> if absent.
+	 */
+	public static final String KEY_BINARY_MODE = "BINARY_MODE";
+
+	/**
+	 * The key identifying the parameter that sets the downsampling factor of
+	 * the pyramid mode (see
+	 * {@link CellContactDetector#setPyramidFactor(int)}). Expected values are
+	 * {@link Integer}s, 1, 2 or 4. Optional, 1 (no pyramid) if absent.
+	 */
+	public static final String KEY_PYRAMID_FACTOR = "PYRAMID_FACTOR";
+
+	/**
+	 * The key identifying the parameter that selects the gaussian filter
+	 * algorithm (see {@link BlurMethod}). Expected values are the
+	 * {@link String} names of {@link BlurMethod} constants. Optional,
+	 * {@link BlurMethod#GAUSS3} if absent.
+	 */
+	public static final String KEY_BLUR_METHOD = "BLUR_METHOD";
+
+	/**
+	 * The key identifying the parameter that selects the dilation algorithm
+	 * (see {@link DilationMethod}). Expected values are the {@link String}
+	 * names of {@link DilationMethod} constants. Optional,
+	 * {@link DilationMethod#DISK} if absent, except in binary mode which
+	 * requires {@link DilationMethod#RUNNING_MAX}.
+	 */
+	public static final String KEY_DILATION_METHOD = "DILATION_METHOD";
+
+	/**
+	 * Maximal number of component tables kept by {@link #COMPONENT_TABLES}.
+	 */
+	private static final int MAX_COMPONENT_TABLES = 8;
+
+	/**
+	 * The component tables of the last detections, keyed by image and by all
+	 * the settings but the minimal contact size. The image is identified by
+	 * its ID if it is known (see {@link #setImage(ImagePlus)}), by the
+	 * {@link ImgPlus} instance otherwise.
+	 */
+	private static final Map< List< Object >, ComponentTable > COMPONENT_TABLES = new LinkedHashMap< List< Object >, ComponentTable >( 2 * MAX_COMPONENT_TABLES, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Entry< List< Object >, ComponentTable > eldest )
+		{
+			return size() > MAX_COMPONENT_TABLES;
+		}
+	};
+
+	static
+	{
+		ImageWatcher.addListener( new ImageWatcher.Listener()
+		{
+			@Override
+			public void imageChanged( final ImagePlus imp )
+			{
+				clearComponentTables( imp );
+			}
+		} );
+	}
+
 	private ImgPlus< T > img;
 
+	private ImagePlus imp;
+
 	private Map< String, Object > settings;
 
 	private String errorMessage;
 
+	private DilatedChannelCache dilatedCache;
+
 	@Override
 	public String getInfoText()
 	{
@@ -181,12 +273,159 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 		final double threshold_C2 = ( Double ) settings.get( KEY_THRESHOLD_2 );
 		final CellContactDetector< T > detector = new CellContactDetector< T >( im1, im2, threshold_C1, threshold_C2, contactSize, sigma, threshold, calibration );
 		detector.setNumThreads( 1 );
+		detector.setBinaryMode( Boolean.TRUE.equals( settings.get( KEY_BINARY_MODE ) ) );
+		if ( null != settings.get( KEY_PYRAMID_FACTOR ) )
+		{
+			detector.setPyramidFactor( ( Integer ) settings.get( KEY_PYRAMID_FACTOR ) );
+		}
+		detector.setBlurMethod( getBlurMethod( settings ) );
+		detector.setDilationMethod( getDilationMethod( settings ) );
+		detector.setComponentTable( getComponentTable(), frame );
+		if ( null != dilatedCache )
+		{
+			detector.setDilatedChannelCache( dilatedCache, imageKey(), frame, channel1, channel2 );
+		}
 		return detector;
 	}
 
+	/**
+	 * Returns what identifies the current image in the caches: its ImageJ ID
+	 * if known, the image itself otherwise.
+	 */
+	private Object imageKey()
+	{
+		return null == imp ? img : Integer.valueOf( imp.getID() );
+	}
+
+	/**
+	 * Returns the component table for the current image and settings. The
+	 * pyramid factor is not part of the key when the detector does not use
+	 * the pyramid, that is with the dilated channel cache or in binary mode.
+	 */
+	private ComponentTable getComponentTable()
+	{
+		final boolean pyramid = null == dilatedCache && !Boolean.TRUE.equals( settings.get( KEY_BINARY_MODE ) );
+		final List< Object > key = new ArrayList< Object >();
+		key.add( imageKey() );
+		for ( final String k : new String[] { KEY_CHANNEL_1, KEY_CHANNEL_2, KEY_CONTACT_SENSITIVITY, KEY_SIGMA_FILTER, KEY_THRESHOLD_1, KEY_THRESHOLD_2, KEY_BINARY_MODE, KEY_BLUR_METHOD, KEY_DILATION_METHOD } )
+		{
+			key.add( settings.get( k ) );
+		}
+		key.add( pyramid ? settings.get( KEY_PYRAMID_FACTOR ) : null );
+		synchronized ( COMPONENT_TABLES )
+		{
+			ComponentTable table = COMPONENT_TABLES.get( key );
+			if ( null == table )
+			{
+				table = new ComponentTable();
+				COMPONENT_TABLES.put( key, table );
+				if ( null != imp )
+				{
+					ImageWatcher.watch( imp );
+				}
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Returns the gaussian filter algorithm selected by detector settings.
+	 *
+	 * @param settings
+	 *            the settings, checked by {@link #checkSettings(Map)}.
+	 * @return the algorithm, {@link BlurMethod#GAUSS3} if not set.
+	 */
+	public static BlurMethod getBlurMethod( final Map< String, Object > settings )
+	{
+		final Object blurMethod = settings.get( KEY_BLUR_METHOD );
+		return null == blurMethod ? BlurMethod.GAUSS3 : BlurMethod.valueOf( ( String ) blurMethod );
+	}
+
+	/**
+	 * Returns the dilation algorithm selected by detector settings.
+	 *
+	 * @param settings
+	 *            the settings, checked by {@link #checkSettings(Map)}.
+	 * @return the algorithm, if not set {@link DilationMethod#RUNNING_MAX} in
+	 *         binary mode and {@link DilationMethod#DISK} otherwise.
+	 */
+	public static DilationMethod getDilationMethod( final Map< String, Object > settings )
+	{
+		final Object dilationMethod = settings.get( KEY_DILATION_METHOD );
+		if ( null == dilationMethod )
+		{
+			return Boolean.TRUE.equals( settings.get( KEY_BINARY_MODE ) ) ? DilationMethod.RUNNING_MAX : DilationMethod.DISK;
+		}
+		return DilationMethod.valueOf( ( String ) dilationMethod );
+	}
+
+	/**
+	 * Empties the tables of the components found by previous detections.
+	 */
+	public static void clearComponentTables()
+	{
+		synchronized ( COMPONENT_TABLES )
+		{
+			COMPONENT_TABLES.clear();
+		}
+	}
+
+	/**
+	 * Empties the tables of the components found by previous detections in
+	 * an image. This is done automatically when the image is closed or
+	 * modified (see {@link ImageWatcher}).
+	 *
+	 * @param imp
+	 *            the image.
+	 */
+	public static void clearComponentTables( final ImagePlus imp )
+	{
+		final Integer id = Integer.valueOf( imp.getID() );
+		synchronized ( COMPONENT_TABLES )
+		{
+			final Iterator< List< Object > > it = COMPONENT_TABLES.keySet().iterator();
+			while ( it.hasNext() )
+			{
+				if ( id.equals( it.next().get( 0 ) ) )
+				{
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the image the detectors of this factory work on, so that the
+	 * components they find can be reused by later detections on the same
+	 * image, and dropped when it changes. The {@link ImgPlus} given to
+	 * {@link #setTarget(ImgPlus, Map)} is a new wrapper at each run, and does
+	 * not identify the image.
+	 *
+	 * @param imp
+	 *            the image, or <code>null</code> if unknown.
+	 */
+	public void setImage( final ImagePlus imp )
+	{
+		this.imp = imp;
+	}
+
+	/**
+	 * Sets a cache of dilated channels for the detectors created by this
+	 * factory, so that detecting again the same frames with different
+	 * thresholds only combines the channels again. Used for previews.
+	 *
+	 * @param dilatedCache
+	 *            the cache, or <code>null</code> to compute everything.
+	 */
+	public void setDilatedChannelCache( final DilatedChannelCache dilatedCache )
+	{
+		this.dilatedCache = dilatedCache;
+	}
+
 	@Override
 	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
+		setImage( settings.imp );
 		return new CellContactConfigurationPanel( settings.imp, model );
 	}
 
@@ -222,6 +461,23 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 
 		}
 
+		if ( settings.containsKey( KEY_BINARY_MODE ) )
+		{
+			ok = ok && writeAttribute( settings, element, KEY_BINARY_MODE, Boolean.class, errorHolder );
+		}
+		if ( settings.containsKey( KEY_PYRAMID_FACTOR ) )
+		{
+			ok = ok && writeAttribute( settings, element, KEY_PYRAMID_FACTOR, Integer.class, errorHolder );
+		}
+		if ( settings.containsKey( KEY_BLUR_METHOD ) )
+		{
+			ok = ok && writeAttribute( settings, element, KEY_BLUR_METHOD, String.class, errorHolder );
+		}
+		if ( settings.containsKey( KEY_DILATION_METHOD ) )
+		{
+			ok = ok && writeAttribute( settings, element, KEY_DILATION_METHOD, String.class, errorHolder );
+		}
+
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -243,6 +499,22 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 		ok = ok & readDoubleAttribute( element, settings, KEY_THRESHOLD, errorHolder );
 		ok = ok & readDoubleAttribute( element, settings, KEY_THRESHOLD_1, errorHolder );
 		ok = ok & readDoubleAttribute( element, settings, KEY_THRESHOLD_2, errorHolder );
+		if ( null != element.getAttributeValue( KEY_BINARY_MODE ) )
+		{
+			ok = ok & readBooleanAttribute( element, settings, KEY_BINARY_MODE, errorHolder );
+		}
+		if ( null != element.getAttributeValue( KEY_PYRAMID_FACTOR ) )
+		{
+			ok = ok & readIntegerAttribute( element, settings, KEY_PYRAMID_FACTOR, errorHolder );
+		}
+		if ( null != element.getAttributeValue( KEY_BLUR_METHOD ) )
+		{
+			ok = ok & readStringAttribute( element, settings, KEY_BLUR_METHOD, errorHolder );
+		}
+		if ( null != element.getAttributeValue( KEY_DILATION_METHOD ) )
+		{
+			ok = ok & readStringAttribute( element, settings, KEY_DILATION_METHOD, errorHolder );
+		}
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -262,6 +534,10 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 		settings.put( KEY_THRESHOLD, Double.valueOf( 5. ) );
 		settings.put( KEY_THRESHOLD_1, Double.valueOf( 200. ) );
 		settings.put( KEY_THRESHOLD_2, Double.valueOf( 200. ) );
+		settings.put( KEY_BINARY_MODE, Boolean.FALSE );
+		settings.put( KEY_PYRAMID_FACTOR, Integer.valueOf( 1 ) );
+		settings.put( KEY_BLUR_METHOD, BlurMethod.GAUSS3.name() );
+		settings.put( KEY_DILATION_METHOD, DilationMethod.DISK.name() );
 		settings.put( KEY_TARGET_CHANNEL, Integer.valueOf( 1 ) ); // dummy
 		return settings;
 	}
@@ -288,7 +564,28 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 		mandatoryKeys.add( KEY_THRESHOLD );
 		mandatoryKeys.add( KEY_THRESHOLD_1 );
 		mandatoryKeys.add( KEY_THRESHOLD_2 );
-		ok = ok & checkMapKeys( settings, mandatoryKeys, null, errorHolder );
+		if ( settings.containsKey( KEY_BINARY_MODE ) )
+		{
+			ok = ok & checkParameter( settings, KEY_BINARY_MODE, Boolean.class, errorHolder );
+		}
+		if ( settings.containsKey( KEY_PYRAMID_FACTOR ) )
+		{
+			ok = ok & checkParameter( settings, KEY_PYRAMID_FACTOR, Integer.class, errorHolder );
+		}
+		if ( settings.containsKey( KEY_BLUR_METHOD ) )
+		{
+			ok = ok & checkParameter( settings, KEY_BLUR_METHOD, String.class, errorHolder );
+		}
+		if ( settings.containsKey( KEY_DILATION_METHOD ) )
+		{
+			ok = ok & checkParameter( settings, KEY_DILATION_METHOD, String.class, errorHolder );
+		}
+		final List< String > optionalKeys = new ArrayList< String >();
+		optionalKeys.add( KEY_BINARY_MODE );
+		optionalKeys.add( KEY_PYRAMID_FACTOR );
+		optionalKeys.add( KEY_BLUR_METHOD );
+		optionalKeys.add( KEY_DILATION_METHOD );
+		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		
 		if (ok)
 		{
@@ -299,6 +596,42 @@ public class CellContactDetectorFactory< T extends RealType< T > & NativeType< T
 				errorHolder.append( "Target channels should not be equal.\n" );
 				ok = false;
 			}
+			final Integer pyramidFactor = ( Integer ) settings.get( KEY_PYRAMID_FACTOR );
+			if ( pyramidFactor != null && pyramidFactor != 1 && pyramidFactor != 2 && pyramidFactor != 4 )
+			{
+				errorHolder.append( "The pyramid factor should be 1, 2 or 4, was " + pyramidFactor + ".\n" );
+				ok = false;
+			}
+			final String blurMethod = ( String ) settings.get( KEY_BLUR_METHOD );
+			if ( blurMethod != null )
+			{
+				try
+				{
+					BlurMethod.valueOf( blurMethod );
+				}
+				catch ( final IllegalArgumentException e )
+				{
+					errorHolder.append( "Unknown blur method: " + blurMethod + ".\n" );
+					ok = false;
+				}
+			}
+			final String dilationMethod = ( String ) settings.get( KEY_DILATION_METHOD );
+			if ( dilationMethod != null )
+			{
+				try
+				{
+					if ( DilationMethod.valueOf( dilationMethod ) != DilationMethod.RUNNING_MAX && Boolean.TRUE.equals( settings.get( KEY_BINARY_MODE ) ) )
+					{
+						errorHolder.append( "Binary mode requires the " + DilationMethod.RUNNING_MAX + " dilation method.\n" );
+						ok = false;
+					}
+				}
+				catch ( final IllegalArgumentException e )
+				{
+					errorHolder.append( "Unknown dilation method: " + dilationMethod + ".\n" );
+					ok = false;
+				}
+			}
 		}
 		
 		if ( !ok )
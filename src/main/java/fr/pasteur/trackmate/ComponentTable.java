@@ -0,0 +1,125 @@
+package fr.pasteur.trackmate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import fr.pasteur.util.ComponentStatistics;
+
+/**
+ * The contact components found in each frame of a movie, before they are
+ * filtered by size. Detection can be run again with another minimal contact
+ * size by filtering this table, without computing the contacts again.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ComponentTable
+{
+
+	private final ConcurrentMap< Integer, Components > frames = new ConcurrentHashMap< Integer, Components >();
+
+	/**
+	 * Returns the components of a frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the components, or <code>null</code> if the frame is not in the
+	 *         table.
+	 */
+	public Components get( final int frame )
+	{
+		return frames.get( Integer.valueOf( frame ) );
+	}
+
+	/**
+	 * Stores the components of a frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param components
+	 *            the components.
+	 */
+	public void put( final int frame, final Components components )
+	{
+		frames.put( Integer.valueOf( frame ), components );
+	}
+
+	/**
+	 * Size, calibrated mean position and quality of all the components of a
+	 * frame, stored in primitive arrays.
+	 */
+	public static final class Components
+	{
+		private final long[] size;
+
+		private final double[] x;
+
+		private final double[] y;
+
+		private final double[] z;
+
+		private final double[] quality;
+
+		/**
+		 * Creates the table of the components measured in a frame.
+		 *
+		 * @param stats
+		 *            the component statistics.
+		 * @param calibration
+		 *            the pixel sizes along X, Y and Z.
+		 */
+		public Components( final ComponentStatistics stats, final double[] calibration )
+		{
+			final int n = stats.numLabels();
+			this.size = new long[ n ];
+			this.x = new double[ n ];
+			this.y = new double[ n ];
+			this.z = new double[ n ];
+			this.quality = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				final int label = i + 1;
+				size[ i ] = stats.size( label );
+				x[ i ] = stats.mean( label, 0 ) * calibration[ 0 ];
+				y[ i ] = stats.mean( label, 1 ) * calibration[ 1 ];
+				z[ i ] = stats.mean( label, 2 ) * calibration[ 2 ];
+				quality[ i ] = stats.sum( label );
+			}
+		}
+
+		public int size()
+		{
+			return size.length;
+		}
+
+		/**
+		 * Returns the number of pixels of a component.
+		 */
+		public long size( final int i )
+		{
+			return size[ i ];
+		}
+
+		public double x( final int i )
+		{
+			return x[ i ];
+		}
+
+		public double y( final int i )
+		{
+			return y[ i ];
+		}
+
+		public double z( final int i )
+		{
+			return z[ i ];
+		}
+
+		/**
+		 * Returns the sum of the contact image values over a component.
+		 */
+		public double quality( final int i )
+		{
+			return quality[ i ];
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package fr.pasteur.trackmate;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+
+/**
+ * A small least-recently-used cache of filtered and dilated channels, as
+ * computed by {@link fr.pasteur.ContactImgGenerator#dilatedChannel(int)}.
+ * <p>
+ * Entries are keyed by image, frame, channel, filter algorithm, filter sigma,
+ * dilation algorithm and contact sensitivity, so that changing only the
+ * thresholds reuses them.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DilatedChannelCache
+{
+
+	private static final int DEFAULT_CAPACITY = 4;
+
+	private final Map< List< Object >, Img< FloatType > > cache;
+
+	/**
+	 * Creates a cache that keeps the 4 most recently used channels.
+	 */
+	public DilatedChannelCache()
+	{
+		this( DEFAULT_CAPACITY );
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param capacity
+	 *            the maximal number of channels kept in the cache.
+	 */
+	public DilatedChannelCache( final int capacity )
+	{
+		this.cache = new LinkedHashMap< List< Object >, Img< FloatType > >( 2 * capacity, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Entry< List< Object >, Img< FloatType > > eldest )
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns a cached dilated channel.
+	 *
+	 * @param image
+	 *            identifies the image, for instance its ImageJ ID.
+	 * @return the dilated channel, or <code>null</code> if it is not in the
+	 *         cache.
+	 */
+	public synchronized Img< FloatType > get( final Object image, final int frame, final int channel, final BlurMethod blurMethod, final double sigma, final DilationMethod dilationMethod, final int contactSensitivity )
+	{
+		return cache.get( key( image, frame, channel, blurMethod, sigma, dilationMethod, contactSensitivity ) );
+	}
+
+	/**
+	 * Stores a dilated channel in the cache.
+	 *
+	 * @param image
+	 *            identifies the image, for instance its ImageJ ID.
+	 */
+	public synchronized void put( final Object image, final int frame, final int channel, final BlurMethod blurMethod, final double sigma, final DilationMethod dilationMethod, final int contactSensitivity, final Img< FloatType > dilated )
+	{
+		cache.put( key( image, frame, channel, blurMethod, sigma, dilationMethod, contactSensitivity ), dilated );
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public synchronized void clear()
+	{
+		cache.clear();
+	}
+
+	private static final List< Object > key( final Object image, final int frame, final int channel, final BlurMethod blurMethod, final double sigma, final DilationMethod dilationMethod, final int contactSensitivity )
+	{
+		return Arrays.< Object > asList( image, frame, channel, blurMethod, sigma, dilationMethod, contactSensitivity );
+	}
+}
@@ -0,0 +1,230 @@
+package fr.pasteur.util;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import net.imglib2.Dimensions;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * A pool of scratch buffers and images, keyed by their dimensions and type,
+ * that worker threads can borrow and return so that processing many frames
+ * does not allocate new memory for each frame.
+ * <p>
+ * Borrowed buffers and images are not cleared: their content is undefined and
+ * callers must overwrite it. Pooled objects are softly referenced, so that
+ * the garbage collector can reclaim them when memory runs low. The queue of
+ * a kind of objects is removed when it is found empty, and at most
+ * {@link #MAX_KEYS} kinds are kept, so that the dimensions of past images do
+ * not accumulate.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class BufferPool
+{
+
+	/**
+	 * The maximal number of kinds of objects, distinct dimensions and type,
+	 * kept in a pool.
+	 */
+	public static final int MAX_KEYS = 64;
+
+	private static final BufferPool SHARED = new BufferPool();
+
+	private final ConcurrentMap< Key, ConcurrentLinkedQueue< SoftReference< Object > > > pool = new ConcurrentHashMap< Key, ConcurrentLinkedQueue< SoftReference< Object > > >();
+
+	private final int maxPerKey;
+
+	/**
+	 * Creates a pool that keeps at most twice the number of processors objects
+	 * of each kind.
+	 */
+	public BufferPool()
+	{
+		this( 2 * Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param maxPerKey
+	 *            the maximal number of returned objects of the same
+	 *            dimensions and type kept in the pool.
+	 */
+	public BufferPool( final int maxPerKey )
+	{
+		this.maxPerKey = maxPerKey;
+	}
+
+	/**
+	 * Returns the pool shared by all the processors of this plugin.
+	 *
+	 * @return the shared pool.
+	 */
+	public static BufferPool getShared()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * Borrows a <code>float[]</code> array of the specified length.
+	 *
+	 * @param length
+	 *            the array length.
+	 * @return an array, with undefined content.
+	 */
+	public float[] borrowFloats( final int length )
+	{
+		final Object o = poll( new Key( float[].class, new long[] { length } ) );
+		if ( null != o )
+		{
+			return ( float[] ) o;
+		}
+		return new float[ length ];
+	}
+
+	/**
+	 * Returns a <code>float[]</code> array to the pool.
+	 *
+	 * @param array
+	 *            the array to return. Must not be used anymore by the caller.
+	 */
+	public void release( final float[] array )
+	{
+		offer( new Key( float[].class, new long[] { array.length } ), array );
+	}
+
+	/**
+	 * Borrows an image of the specified dimensions and type.
+	 *
+	 * @param dimensions
+	 *            the image dimensions.
+	 * @param type
+	 *            the image type.
+	 * @return an image, with a min at 0 and undefined content.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < T extends NativeType< T >> Img< T > borrowImg( final Dimensions dimensions, final T type )
+	{
+		final Object o = poll( new Key( type.getClass(), Intervals.dimensionsAsLongArray( dimensions ) ) );
+		if ( null != o )
+		{
+			return ( Img< T > ) o;
+		}
+		return Util.getArrayOrCellImgFactory( dimensions, type ).create( dimensions, type );
+	}
+
+	/**
+	 * Returns an image borrowed with
+	 * {@link #borrowImg(Dimensions, NativeType)} to the pool.
+	 *
+	 * @param img
+	 *            the image to return. Must not be used anymore by the caller.
+	 */
+	public void release( final Img< ? > img )
+	{
+		offer( new Key( img.firstElement().getClass(), Intervals.dimensionsAsLongArray( img ) ), img );
+	}
+
+	/**
+	 * Empties the pool.
+	 */
+	public void clear()
+	{
+		pool.clear();
+	}
+
+	private Object poll( final Key key )
+	{
+		final ConcurrentLinkedQueue< SoftReference< Object > > queue = pool.get( key );
+		if ( null == queue )
+		{
+			return null;
+		}
+		SoftReference< Object > ref;
+		while ( ( ref = queue.poll() ) != null )
+		{
+			final Object o = ref.get();
+			if ( null != o )
+			{
+				return o;
+			}
+		}
+		// An object offered concurrently can be lost: it is then only not reused.
+		pool.remove( key, queue );
+		return null;
+	}
+
+	private void offer( final Key key, final Object o )
+	{
+		ConcurrentLinkedQueue< SoftReference< Object > > queue = pool.get( key );
+		if ( null == queue )
+		{
+			final ConcurrentLinkedQueue< SoftReference< Object > > newQueue = new ConcurrentLinkedQueue< SoftReference< Object > >();
+			queue = pool.putIfAbsent( key, newQueue );
+			if ( null == queue )
+			{
+				queue = newQueue;
+				trim( key );
+			}
+		}
+		// Approximate bound, size() is not constant-time but queues are short.
+		if ( queue.size() < maxPerKey )
+		{
+			queue.offer( new SoftReference< Object >( o ) );
+		}
+	}
+
+	/**
+	 * Drops arbitrary kinds of objects other than the specified one while
+	 * there are more than {@link #MAX_KEYS}.
+	 */
+	private void trim( final Key keep )
+	{
+		final Iterator< Key > it = pool.keySet().iterator();
+		while ( pool.size() > MAX_KEYS && it.hasNext() )
+		{
+			if ( !keep.equals( it.next() ) )
+			{
+				it.remove();
+			}
+		}
+	}
+
+	private static final class Key
+	{
+		private final Class< ? > type;
+
+		private final long[] dims;
+
+		private Key( final Class< ? > type, final long[] dims )
+		{
+			this.type = type;
+			this.dims = dims;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * type.hashCode() + Arrays.hashCode( dims );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+			{
+				return false;
+			}
+			final Key other = ( Key ) obj;
+			return type.equals( other.type ) && Arrays.equals( dims, other.dims );
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package fr.pasteur.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Size, position, bounding box and summed value of the components of a label
+ * image, as made by
+ * {@link ConnectedComponents#label(RandomAccessibleInterval, RandomAccessibleInterval, int)}
+ * .
+ * <p>
+ * All the statistics are accumulated in primitive arrays indexed by label, in
+ * a single pass over the label image and the value image. Positions are in
+ * pixel coordinates, relative to the image min.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ComponentStatistics
+{
+
+	private final int numDimensions;
+
+	private final long[] count;
+
+	private final double[][] sumPosition;
+
+	private final double[] sumValue;
+
+	private final long[][] min;
+
+	private final long[][] max;
+
+	private ComponentStatistics( final int nLabels, final int numDimensions )
+	{
+		this.numDimensions = numDimensions;
+		this.count = new long[ nLabels + 1 ];
+		this.sumPosition = new double[ numDimensions ][ nLabels + 1 ];
+		this.sumValue = new double[ nLabels + 1 ];
+		this.min = new long[ numDimensions ][ nLabels + 1 ];
+		this.max = new long[ numDimensions ][ nLabels + 1 ];
+	}
+
+	/**
+	 * Computes the statistics of all the components of a label image.
+	 *
+	 * @param labels
+	 *            the label image, with labels from 1 to <code>nLabels</code>
+	 *            and 0 for the background.
+	 * @param nLabels
+	 *            the number of labels.
+	 * @param values
+	 *            the image whose values are summed over each component. Must
+	 *            have the same dimensions than the <code>labels</code>.
+	 * @return a new {@link ComponentStatistics}.
+	 */
+	public static final < T extends RealType< T >> ComponentStatistics compute( final RandomAccessibleInterval< UnsignedIntType > labels, final int nLabels, final RandomAccessibleInterval< T > values )
+	{
+		final int n = labels.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( labels );
+		final ComponentStatistics stats = new ComponentStatistics( nLabels, n );
+
+		final Planes planes = Planes.of( values );
+		final Cursor< UnsignedIntType > lcursor = Views.flatIterable( labels ).cursor();
+		final Cursor< T > cursor = null == planes ? Views.flatIterable( values ).cursor() : null;
+		final long[] pos = new long[ n ];
+		long index = 0;
+		while ( lcursor.hasNext() )
+		{
+			final int label = lcursor.next().getInteger();
+			if ( null != cursor )
+			{
+				cursor.fwd();
+			}
+			if ( label != 0 )
+			{
+				final double value = null == cursor ? planes.getRealDouble( index ) : cursor.get().getRealDouble();
+				stats.add( label, pos, value );
+			}
+
+			index++;
+			for ( int d = 0; d < n; d++ )
+			{
+				if ( ++pos[ d ] < dims[ d ] )
+				{
+					break;
+				}
+				pos[ d ] = 0;
+			}
+		}
+		return stats;
+	}
+
+	private void add( final int label, final long[] pos, final double value )
+	{
+		final boolean first = count[ label ] == 0;
+		count[ label ]++;
+		sumValue[ label ] += value;
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			final long p = pos[ d ];
+			sumPosition[ d ][ label ] += p;
+			if ( first || p < min[ d ][ label ] )
+			{
+				min[ d ][ label ] = p;
+			}
+			if ( first || p > max[ d ][ label ] )
+			{
+				max[ d ][ label ] = p;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of labels.
+	 *
+	 * @return the number of labels.
+	 */
+	public int numLabels()
+	{
+		return count.length - 1;
+	}
+
+	/**
+	 * Returns the number of pixels of a component.
+	 *
+	 * @param label
+	 *            the component label.
+	 * @return the number of pixels.
+	 */
+	public long size( final int label )
+	{
+		return count[ label ];
+	}
+
+	/**
+	 * Returns the mean position of the pixels of a component along a
+	 * dimension. Returns 0 for dimensions the image does not have.
+	 *
+	 * @param label
+	 *            the component label.
+	 * @param d
+	 *            the dimension.
+	 * @return the mean position, in pixel coordinates.
+	 */
+	public double mean( final int label, final int d )
+	{
+		if ( d >= numDimensions )
+		{
+			return 0.;
+		}
+		return sumPosition[ d ][ label ] / count[ label ];
+	}
+
+	/**
+	 * Returns the sum of the values of the pixels of a component.
+	 *
+	 * @param label
+	 *            the component label.
+	 * @return the sum of the values.
+	 */
+	public double sum( final int label )
+	{
+		return sumValue[ label ];
+	}
+
+	/**
+	 * Returns the min of the bounding box of a component along a dimension.
+	 *
+	 * @param label
+	 *            the component label.
+	 * @param d
+	 *            the dimension.
+	 * @return the min position, in pixel coordinates.
+	 */
+	public long min( final int label, final int d )
+	{
+		return min[ d ][ label ];
+	}
+
+	/**
+	 * Returns the max of the bounding box of a component along a dimension.
+	 *
+	 * @param label
+	 *            the component label.
+	 * @param d
+	 *            the dimension.
+	 * @return the max position, in pixel coordinates.
+	 */
+	public long max( final int label, final int d )
+	{
+		return max[ d ][ label ];
+	}
+}
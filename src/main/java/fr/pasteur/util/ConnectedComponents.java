@@ -0,0 +1,370 @@
+package fr.pasteur.util;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Multi-threaded connected component labeling of binary images.
+ * <p>
+ * The image is split in slabs along its last dimension. Each slab is labeled
+ * by its own task with a union-find over the pixel indices, then components
+ * are merged across slab borders. Components are connected through all their
+ * neighbors (8-connectivity in 2D, 26-connectivity in 3D), like in
+ * {@link net.imglib2.algorithm.labeling.AllConnectedComponents}.
+ * <p>
+ * Labels are numbered from 1 in the order of the first pixel of each
+ * component in flat iteration order, whatever the number of threads.
+ * Background pixels are labeled 0.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ConnectedComponents
+{
+
+	private static final int BACKGROUND = -1;
+
+	/**
+	 * Labels the connected components of a binary image.
+	 *
+	 * @param mask
+	 *            the binary image to label.
+	 * @param labels
+	 *            the label image to write to. Must have the same dimensions
+	 *            than the <code>mask</code>. All its pixels are written.
+	 * @param numThreads
+	 *            the maximal number of concurrent tasks to use for
+	 *            processing, on the shared executor of {@link Parallel}.
+	 * @return the number of components found.
+	 */
+	public static final < B extends BooleanType< B >> int label( final RandomAccessibleInterval< B > mask, final RandomAccessibleInterval< UnsignedIntType > labels, final int numThreads )
+	{
+		final int n = mask.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( mask );
+		final long size = Intervals.numElements( dims );
+		if ( size > Integer.MAX_VALUE )
+		{
+			throw new IllegalArgumentException( "Image too large for labeling: " + size + " pixels." );
+		}
+
+		final long[] strides = new long[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; d++ )
+		{
+			strides[ d ] = strides[ d - 1 ] * dims[ d - 1 ];
+		}
+		final int[][] offsets = backwardNeighbors( n );
+
+		// Slabs along the last dimension.
+		final int nSlabs = ( int ) Math.max( 1, Math.min( numThreads, dims[ n - 1 ] ) );
+		final int[] slabStarts = new int[ nSlabs + 1 ];
+		for ( int s = 0; s <= nSlabs; s++ )
+		{
+			slabStarts[ s ] = ( int ) ( s * dims[ n - 1 ] / nSlabs * strides[ n - 1 ] );
+		}
+
+		final int[] parent = new int[ ( int ) size ];
+
+		/*
+		 * 1. Union-find within each slab.
+		 */
+
+		Parallel.run( nSlabs, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int s )
+			{
+				final int start = slabStarts[ s ];
+				final int end = slabStarts[ s + 1 ];
+				final Cursor< B > cursor = Views.flatIterable( mask ).cursor();
+				cursor.jumpFwd( start );
+				for ( int i = start; i < end; i++ )
+				{
+					parent[ i ] = cursor.next().get() ? i : BACKGROUND;
+				}
+
+				final long[] pos = new long[ n ];
+				IntervalIndexer.indexToPosition( start, dims, pos );
+				final long minLast = pos[ n - 1 ];
+				for ( int i = start; i < end; i++ )
+				{
+					if ( parent[ i ] != BACKGROUND )
+					{
+						for ( final int[] offset : offsets )
+						{
+							final int j = neighbor( i, pos, offset, dims, strides, minLast );
+							if ( j >= 0 && parent[ j ] != BACKGROUND )
+							{
+								union( parent, i, j );
+							}
+						}
+					}
+					increment( pos, dims );
+				}
+			}
+		} );
+
+		/*
+		 * 2. Merge across slab borders, recording the roots linked to
+		 * another slab.
+		 */
+
+		int[] linked = new int[ 16 ];
+		int nLinked = 0;
+		final long[] pos = new long[ n ];
+		for ( int s = 1; s < nSlabs; s++ )
+		{
+			final int start = slabStarts[ s ];
+			final int end = ( int ) Math.min( slabStarts[ s + 1 ], start + strides[ n - 1 ] );
+			IntervalIndexer.indexToPosition( start, dims, pos );
+			for ( int i = start; i < end; i++ )
+			{
+				if ( parent[ i ] != BACKGROUND )
+				{
+					for ( final int[] offset : offsets )
+					{
+						if ( offset[ n - 1 ] != -1 )
+						{
+							continue;
+						}
+						final int j = neighbor( i, pos, offset, dims, strides, 0 );
+						if ( j >= 0 && parent[ j ] != BACKGROUND )
+						{
+							final int child = union( parent, i, j );
+							if ( child >= 0 )
+							{
+								if ( nLinked == linked.length )
+								{
+									linked = Arrays.copyOf( linked, 2 * nLinked );
+								}
+								linked[ nLinked++ ] = child;
+							}
+						}
+					}
+				}
+				increment( pos, dims );
+			}
+		}
+
+		/*
+		 * 3. Flatten: point each pixel to the root of its component.
+		 */
+
+		// Roots linked across slabs point to the root of their component.
+		Arrays.sort( linked, 0, nLinked );
+		for ( int k = 0; k < nLinked; k++ )
+		{
+			parent[ linked[ k ] ] = find( parent, linked[ k ] );
+		}
+
+		/*
+		 * Within slabs, in flat order, so that parents are already resolved.
+		 * Pixels then point to a root, or to a root linked across slabs.
+		 */
+		Parallel.run( nSlabs, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int s )
+			{
+				final int start = slabStarts[ s ];
+				final int end = slabStarts[ s + 1 ];
+				for ( int i = start; i < end; i++ )
+				{
+					final int p = parent[ i ];
+					if ( p != BACKGROUND && p != i && p >= start )
+					{
+						parent[ i ] = parent[ p ];
+					}
+				}
+			}
+		} );
+
+		// Last hop for pixels pointing to a root linked across slabs.
+		Parallel.run( nSlabs, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int s )
+			{
+				for ( int i = slabStarts[ s ]; i < slabStarts[ s + 1 ]; i++ )
+				{
+					final int p = parent[ i ];
+					if ( p != BACKGROUND )
+					{
+						parent[ i ] = parent[ p ];
+					}
+				}
+			}
+		} );
+
+		/*
+		 * 4. Number roots in flat order. Roots are the first pixel of their
+		 * component, since unions always link to the smallest index.
+		 */
+
+		final int[] rootCounts = new int[ nSlabs ];
+		Parallel.run( nSlabs, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int s )
+			{
+				int count = 0;
+				for ( int i = slabStarts[ s ]; i < slabStarts[ s + 1 ]; i++ )
+				{
+					if ( parent[ i ] == i )
+					{
+						count++;
+					}
+				}
+				rootCounts[ s ] = count;
+			}
+		} );
+		final int[] firstLabels = new int[ nSlabs ];
+		int nLabels = 0;
+		for ( int s = 0; s < nSlabs; s++ )
+		{
+			firstLabels[ s ] = nLabels + 1;
+			nLabels += rootCounts[ s ];
+		}
+
+		// Roots store their label, encoded as a value below BACKGROUND.
+		Parallel.run( nSlabs, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int s )
+			{
+				int label = firstLabels[ s ];
+				for ( int i = slabStarts[ s ]; i < slabStarts[ s + 1 ]; i++ )
+				{
+					if ( parent[ i ] == i )
+					{
+						parent[ i ] = BACKGROUND - label;
+						label++;
+					}
+				}
+			}
+		} );
+
+		/*
+		 * 5. Write labels.
+		 */
+
+		Parallel.run( nSlabs, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int s )
+			{
+				final Cursor< UnsignedIntType > cursor = Views.flatIterable( labels ).cursor();
+				cursor.jumpFwd( slabStarts[ s ] );
+				for ( int i = slabStarts[ s ]; i < slabStarts[ s + 1 ]; i++ )
+				{
+					final int p = parent[ i ];
+					final int code = p < BACKGROUND ? p : p == BACKGROUND ? BACKGROUND : parent[ p ];
+					cursor.next().set( BACKGROUND - code );
+				}
+			}
+		} );
+
+		return nLabels;
+	}
+
+	/**
+	 * Returns the index of the neighbor of pixel <code>i</code> at the
+	 * specified offset, or -1 if it is outside the image or before
+	 * <code>minLast</code> along the last dimension.
+	 */
+	private static final int neighbor( final int i, final long[] pos, final int[] offset, final long[] dims, final long[] strides, final long minLast )
+	{
+		final int n = pos.length;
+		long j = i;
+		for ( int d = 0; d < n; d++ )
+		{
+			final long p = pos[ d ] + offset[ d ];
+			if ( p < 0 || p >= dims[ d ] )
+			{
+				return -1;
+			}
+			j += offset[ d ] * strides[ d ];
+		}
+		if ( pos[ n - 1 ] + offset[ n - 1 ] < minLast )
+		{
+			return -1;
+		}
+		return ( int ) j;
+	}
+
+	private static final void increment( final long[] pos, final long[] dims )
+	{
+		for ( int d = 0; d < pos.length; d++ )
+		{
+			if ( ++pos[ d ] < dims[ d ] )
+			{
+				return;
+			}
+			pos[ d ] = 0;
+		}
+	}
+
+	private static final int find( final int[] parent, final int i )
+	{
+		int x = i;
+		while ( parent[ x ] != x )
+		{
+			parent[ x ] = parent[ parent[ x ] ];
+			x = parent[ x ];
+		}
+		return x;
+	}
+
+	/**
+	 * Merges the components of two pixels, linking the root with the largest
+	 * index to the other one. Returns the root that was linked, or -1 if the
+	 * two pixels were already in the same component.
+	 */
+	private static final int union( final int[] parent, final int i, final int j )
+	{
+		final int ri = find( parent, i );
+		final int rj = find( parent, j );
+		if ( ri == rj )
+		{
+			return -1;
+		}
+		if ( ri < rj )
+		{
+			parent[ rj ] = ri;
+			return rj;
+		}
+		parent[ ri ] = rj;
+		return ri;
+	}
+
+	/**
+	 * Returns the offsets of all the neighbors that come before a pixel in
+	 * flat iteration order.
+	 */
+	private static final int[][] backwardNeighbors( final int n )
+	{
+		int total = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			total *= 3;
+		}
+		// Codes below the center are exactly the neighbors before it.
+		final int[][] offsets = new int[ total / 2 ][ n ];
+		for ( int code = 0; code < total / 2; code++ )
+		{
+			int c = code;
+			for ( int d = 0; d < n; d++ )
+			{
+				offsets[ code ][ d ] = c % 3 - 1;
+				c /= 3;
+			}
+		}
+		return offsets;
+	}
+}
@@ -0,0 +1,229 @@
+package fr.pasteur.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Copies the frames of a two-channel movie into contiguous buffers on a
+ * dedicated I/O thread, ahead of the workers processing them.
+ * <p>
+ * Reading a frame through the views of a wrapped {@link ij.ImagePlus} can be
+ * slow, in particular for virtual stacks that read planes from disk. The
+ * prefetcher reads frame <code>t + 1</code> while frame <code>t</code> is
+ * processed, and hands out frames backed by primitive arrays (see
+ * {@link Planes}), so that processing runs on flat memory.
+ * <p>
+ * Frames are handed out in order by {@link #take()}. A fixed number of buffer
+ * pairs is recycled: a frame must be given back with
+ * {@link #release(Frame)} once processed. With one buffer pair more than the
+ * number of workers, each worker has its next frame ready when it finishes
+ * the current one.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class FramePrefetcher< T extends NativeType< T >>
+{
+
+	/**
+	 * The two channels of a frame, copied in contiguous buffers.
+	 */
+	public static class Frame< T >
+	{
+		/** The frame index. */
+		public final int index;
+
+		/** The first channel. */
+		public final Img< T > channel1;
+
+		/** The second channel. */
+		public final Img< T > channel2;
+
+		private Frame( final int index, final Img< T > channel1, final Img< T > channel2 )
+		{
+			this.index = index;
+			this.channel1 = channel1;
+			this.channel2 = channel2;
+		}
+	}
+
+	private final RandomAccessibleInterval< T > im1;
+
+	private final RandomAccessibleInterval< T > im2;
+
+	private final int timeDim;
+
+	private final int nFrames;
+
+	private final int nBuffers;
+
+	private final BlockingQueue< Frame< T > > ready;
+
+	private final BlockingQueue< Frame< T > > free;
+
+	private final AtomicInteger taken = new AtomicInteger( 0 );
+
+	private Thread thread;
+
+	private volatile Throwable failure;
+
+	/**
+	 * Creates a prefetcher.
+	 *
+	 * @param im1
+	 *            the first channel of the movie.
+	 * @param im2
+	 *            the second channel of the movie.
+	 * @param timeDim
+	 *            the index of the time dimension, or -1 if the channels are
+	 *            a single frame.
+	 * @param nFrames
+	 *            the number of frames.
+	 * @param nBuffers
+	 *            the number of buffer pairs, at least 2.
+	 */
+	public FramePrefetcher( final RandomAccessibleInterval< T > im1, final RandomAccessibleInterval< T > im2, final int timeDim, final int nFrames, final int nBuffers )
+	{
+		this.im1 = im1;
+		this.im2 = im2;
+		this.timeDim = timeDim;
+		this.nFrames = timeDim < 0 ? 1 : nFrames;
+		this.nBuffers = Math.max( 2, nBuffers );
+		this.ready = new ArrayBlockingQueue< Frame< T > >( this.nBuffers );
+		this.free = new ArrayBlockingQueue< Frame< T > >( this.nBuffers );
+	}
+
+	/**
+	 * Starts reading frames on the I/O thread.
+	 */
+	public synchronized void start()
+	{
+		if ( null != thread )
+		{
+			return;
+		}
+		thread = new Thread( "CCCT frame prefetch" )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					int allocated = 0;
+					for ( int frame = 0; frame < nFrames; frame++ )
+					{
+						Frame< T > buffers = free.poll();
+						if ( null == buffers )
+						{
+							if ( allocated < nBuffers )
+							{
+								buffers = allocate();
+								allocated++;
+							}
+							else
+							{
+								buffers = free.take();
+							}
+						}
+						copy( frameOf( im1, frame ), buffers.channel1 );
+						copy( frameOf( im2, frame ), buffers.channel2 );
+						ready.put( new Frame< T >( frame, buffers.channel1, buffers.channel2 ) );
+					}
+				}
+				catch ( final InterruptedException e )
+				{
+					return;
+				}
+				catch ( final Throwable t )
+				{
+					failure = t;
+				}
+			}
+		};
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Returns the next frame, waiting for it to be read if needed.
+	 *
+	 * @return the next frame, or <code>null</code> if all the frames have
+	 *         been taken.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public Frame< T > take() throws InterruptedException
+	{
+		if ( taken.getAndIncrement() >= nFrames )
+		{
+			return null;
+		}
+		Frame< T > frame;
+		while ( null == ( frame = ready.poll( 100, TimeUnit.MILLISECONDS ) ) )
+		{
+			if ( null != failure )
+			{
+				throw new RuntimeException( "Reading frames failed.", failure );
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Gives back the buffers of a processed frame, so that they can be reused
+	 * for a next frame.
+	 *
+	 * @param frame
+	 *            the processed frame.
+	 */
+	public void release( final Frame< T > frame )
+	{
+		free.offer( frame );
+	}
+
+	/**
+	 * Stops the I/O thread, for instance if processing is aborted.
+	 */
+	public synchronized void stop()
+	{
+		if ( null != thread )
+		{
+			thread.interrupt();
+		}
+	}
+
+	private RandomAccessibleInterval< T > frameOf( final RandomAccessibleInterval< T > img, final int frame )
+	{
+		return timeDim < 0 ? img : Views.hyperSlice( img, timeDim, frame );
+	}
+
+	private Frame< T > allocate()
+	{
+		final RandomAccessibleInterval< T > frame = frameOf( im1, 0 );
+		final T type = Util.getTypeFromInterval( frame );
+		final ImgFactory< T > factory = Intervals.numElements( frame ) < Integer.MAX_VALUE ? new ArrayImgFactory< T >() : new PlanarImgFactory< T >();
+		return new Frame< T >( -1, factory.create( frame, type ), factory.create( frame, type ) );
+	}
+
+	private static final < T extends NativeType< T >> void copy( final RandomAccessibleInterval< T > source, final Img< T > target )
+	{
+		final Cursor< T > in = Views.flatIterable( source ).cursor();
+		final Cursor< T > out = target.cursor();
+		while ( in.hasNext() )
+		{
+			out.next().set( in.next() );
+		}
+	}
+}
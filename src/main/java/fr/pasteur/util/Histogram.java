@@ -0,0 +1,401 @@
+package fr.pasteur.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Histogram of the pixel values of an image, computed in parallel on the
+ * shared executor of {@link Parallel}. Each task counts a chunk of the image
+ * in its own partial histogram, and partial histograms are merged at the end.
+ * <p>
+ * Integer types with at most 65536 possible values, such as 8-bit and 16-bit
+ * images, get exact bins of width 1, counted in a single pass. The histogram
+ * is then cropped to the range of the data. Other types are binned in a fixed
+ * number of bins spanning the data range, found in a first pass.
+ * <p>
+ * Images backed by primitive arrays (see {@link Planes}) are read directly
+ * from these arrays.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class Histogram
+{
+
+	/**
+	 * Largest number of values of an integer type counted in exact bins.
+	 */
+	private static final long MAX_EXACT_BINS = 65536;
+
+	/**
+	 * Images smaller than this number of pixels are not split in parallel
+	 * chunks.
+	 */
+	private static final long MIN_PIXELS_PER_TASK = 65536;
+
+	private final long[] counts;
+
+	private final double min;
+
+	private final double max;
+
+	private final double binWidth;
+
+	private final boolean exact;
+
+	private Histogram( final long[] counts, final double min, final double max, final double binWidth, final boolean exact )
+	{
+		this.counts = counts;
+		this.min = min;
+		this.max = max;
+		this.binWidth = binWidth;
+		this.exact = exact;
+	}
+
+	/**
+	 * Computes the histogram of an image.
+	 *
+	 * @param src
+	 *            the image.
+	 * @param nBins
+	 *            the number of bins for types that are not counted in exact
+	 *            bins.
+	 * @param numThreads
+	 *            the maximal number of concurrent tasks to use for
+	 *            processing, on the shared executor of {@link Parallel}.
+	 * @return a new histogram.
+	 */
+	public static final < T extends RealType< T >> Histogram compute( final RandomAccessibleInterval< T > src, final int nBins, final int numThreads )
+	{
+		final T type = Util.getTypeFromInterval( src );
+		if ( type instanceof IntegerType && type.getMaxValue() - type.getMinValue() < MAX_EXACT_BINS )
+		{
+			return computeExact( src, ( long ) type.getMinValue(), ( int ) ( type.getMaxValue() - type.getMinValue() ) + 1, numThreads );
+		}
+		return computeBinned( src, nBins, numThreads );
+	}
+
+	/**
+	 * Returns the number of bins.
+	 *
+	 * @return the number of bins.
+	 */
+	public int numBins()
+	{
+		return counts.length;
+	}
+
+	/**
+	 * Returns the bin counts. The array is not copied.
+	 *
+	 * @return the bin counts.
+	 */
+	public long[] counts()
+	{
+		return counts;
+	}
+
+	/**
+	 * Returns the smallest pixel value.
+	 *
+	 * @return the smallest pixel value, or 0 if the image is empty.
+	 */
+	public double min()
+	{
+		return min;
+	}
+
+	/**
+	 * Returns the largest pixel value.
+	 *
+	 * @return the largest pixel value, or 0 if the image is empty.
+	 */
+	public double max()
+	{
+		return max;
+	}
+
+	/**
+	 * Returns <code>true</code> if each bin counts a single integer value.
+	 *
+	 * @return whether bins are exact.
+	 */
+	public boolean isExact()
+	{
+		return exact;
+	}
+
+	/**
+	 * Returns the value at the center of a bin. For exact bins, this is the
+	 * value counted in the bin.
+	 *
+	 * @param bin
+	 *            the bin index.
+	 * @return the center value.
+	 */
+	public double center( final int bin )
+	{
+		if ( exact )
+		{
+			return min + bin;
+		}
+		return min + ( bin + 0.5 ) * binWidth;
+	}
+
+	/*
+	 * EXACT BINS.
+	 */
+
+	private static final < T extends RealType< T >> Histogram computeExact( final RandomAccessibleInterval< T > src, final long typeMin, final int range, final int numThreads )
+	{
+		final Planes planes = Planes.of( src );
+		final IterableInterval< T > flat = Views.flatIterable( src );
+		final long size = flat.size();
+		final int nChunks = numChunks( size, numThreads );
+		final long[][] partials = new long[ nChunks ][];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Parallel.run( nChunks, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				for ( int c = ai.getAndIncrement(); c < nChunks; c = ai.getAndIncrement() )
+				{
+					final long[] counts = new long[ range ];
+					final long start = c * size / nChunks;
+					final long end = ( c + 1 ) * size / nChunks;
+					if ( null != planes && ( planes.type() == Planes.PixelType.UNSIGNED_BYTE || planes.type() == Planes.PixelType.UNSIGNED_SHORT ) )
+					{
+						final long planeSize = planes.planeSize();
+						long i = start;
+						while ( i < end )
+						{
+							final int plane = ( int ) ( i / planeSize );
+							final int from = planes.offset( plane ) + ( int ) ( i % planeSize );
+							final int length = ( int ) Math.min( end - i, planeSize - i % planeSize );
+							if ( planes.type() == Planes.PixelType.UNSIGNED_BYTE )
+							{
+								final byte[] array = ( byte[] ) planes.array( plane );
+								for ( int k = from; k < from + length; k++ )
+								{
+									counts[ array[ k ] & 0xff ]++;
+								}
+							}
+							else
+							{
+								final short[] array = ( short[] ) planes.array( plane );
+								for ( int k = from; k < from + length; k++ )
+								{
+									counts[ array[ k ] & 0xffff ]++;
+								}
+							}
+							i += length;
+						}
+					}
+					else
+					{
+						final Cursor< T > cursor = flat.cursor();
+						cursor.jumpFwd( start );
+						for ( long i = start; i < end; i++ )
+						{
+							counts[ ( int ) ( ( ( IntegerType< ? > ) cursor.next() ).getIntegerLong() - typeMin ) ]++;
+						}
+					}
+					partials[ c ] = counts;
+				}
+			}
+		} );
+
+		// Merge and crop to the data range.
+		final long[] counts = merge( partials, range );
+		int first = 0;
+		while ( first < range && counts[ first ] == 0 )
+		{
+			first++;
+		}
+		if ( first == range )
+		{
+			return new Histogram( new long[ 1 ], 0., 0., 1., true );
+		}
+		int last = range - 1;
+		while ( counts[ last ] == 0 )
+		{
+			last--;
+		}
+		final long[] cropped = new long[ last - first + 1 ];
+		System.arraycopy( counts, first, cropped, 0, cropped.length );
+		return new Histogram( cropped, typeMin + first, typeMin + last, 1., true );
+	}
+
+	/*
+	 * BINNED.
+	 */
+
+	private static final < T extends RealType< T >> Histogram computeBinned( final RandomAccessibleInterval< T > src, final int nBins, final int numThreads )
+	{
+		final Planes planes = Planes.of( src );
+		final boolean floats = null != planes && planes.type() == Planes.PixelType.FLOAT;
+		final IterableInterval< T > flat = Views.flatIterable( src );
+		final long size = flat.size();
+		final int nChunks = numChunks( size, numThreads );
+
+		/*
+		 * 1. Min and max.
+		 */
+
+		final double[] mins = new double[ nChunks ];
+		final double[] maxs = new double[ nChunks ];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		Parallel.run( nChunks, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				for ( int c = ai.getAndIncrement(); c < nChunks; c = ai.getAndIncrement() )
+				{
+					double min = Double.POSITIVE_INFINITY;
+					double max = Double.NEGATIVE_INFINITY;
+					final long start = c * size / nChunks;
+					final long end = ( c + 1 ) * size / nChunks;
+					if ( floats )
+					{
+						final long planeSize = planes.planeSize();
+						long i = start;
+						while ( i < end )
+						{
+							final int plane = ( int ) ( i / planeSize );
+							final int from = planes.offset( plane ) + ( int ) ( i % planeSize );
+							final int length = ( int ) Math.min( end - i, planeSize - i % planeSize );
+							final float[] array = ( float[] ) planes.array( plane );
+							for ( int k = from; k < from + length; k++ )
+							{
+								final float v = array[ k ];
+								if ( v < min )
+								{
+									min = v;
+								}
+								if ( v > max )
+								{
+									max = v;
+								}
+							}
+							i += length;
+						}
+					}
+					else
+					{
+						final Cursor< T > cursor = flat.cursor();
+						cursor.jumpFwd( start );
+						for ( long i = start; i < end; i++ )
+						{
+							final double v = cursor.next().getRealDouble();
+							if ( v < min )
+							{
+								min = v;
+							}
+							if ( v > max )
+							{
+								max = v;
+							}
+						}
+					}
+					mins[ c ] = min;
+					maxs[ c ] = max;
+				}
+			}
+		} );
+
+		double minVal = Double.POSITIVE_INFINITY;
+		double maxVal = Double.NEGATIVE_INFINITY;
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			minVal = Math.min( minVal, mins[ c ] );
+			maxVal = Math.max( maxVal, maxs[ c ] );
+		}
+		if ( minVal > maxVal )
+		{
+			return new Histogram( new long[ nBins ], 0., 0., 0., false );
+		}
+
+		/*
+		 * 2. Counts.
+		 */
+
+		final double min = minVal;
+		final double binWidth = ( maxVal - minVal ) / nBins;
+		final double scale = binWidth > 0 ? 1. / binWidth : 0.;
+		final long[][] partials = new long[ nChunks ][];
+		ai.set( 0 );
+		Parallel.run( nChunks, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				for ( int c = ai.getAndIncrement(); c < nChunks; c = ai.getAndIncrement() )
+				{
+					final long[] counts = new long[ nBins ];
+					final long start = c * size / nChunks;
+					final long end = ( c + 1 ) * size / nChunks;
+					if ( floats )
+					{
+						final long planeSize = planes.planeSize();
+						long i = start;
+						while ( i < end )
+						{
+							final int plane = ( int ) ( i / planeSize );
+							final int from = planes.offset( plane ) + ( int ) ( i % planeSize );
+							final int length = ( int ) Math.min( end - i, planeSize - i % planeSize );
+							final float[] array = ( float[] ) planes.array( plane );
+							for ( int k = from; k < from + length; k++ )
+							{
+								counts[ Math.min( nBins - 1, ( int ) ( ( array[ k ] - min ) * scale ) ) ]++;
+							}
+							i += length;
+						}
+					}
+					else
+					{
+						final Cursor< T > cursor = flat.cursor();
+						cursor.jumpFwd( start );
+						for ( long i = start; i < end; i++ )
+						{
+							counts[ Math.min( nBins - 1, ( int ) ( ( cursor.next().getRealDouble() - min ) * scale ) ) ]++;
+						}
+					}
+					partials[ c ] = counts;
+				}
+			}
+		} );
+
+		return new Histogram( merge( partials, nBins ), minVal, maxVal, binWidth, false );
+	}
+
+	/*
+	 * UTILS.
+	 */
+
+	private static final int numChunks( final long size, final int numThreads )
+	{
+		return ( int ) Math.max( 1l, Math.min( numThreads, size / MIN_PIXELS_PER_TASK ) );
+	}
+
+	private static final long[] merge( final long[][] partials, final int nBins )
+	{
+		final long[] counts = new long[ nBins ];
+		for ( final long[] partial : partials )
+		{
+			for ( int k = 0; k < nBins; k++ )
+			{
+				counts[ k ] += partial[ k ];
+			}
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,188 @@
+package fr.pasteur.util;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Notifies caches keyed by image when an image is closed or when its content
+ * may have changed, so that they can drop the results computed for it.
+ * <p>
+ * ImageJ reports an update for many reasons, for instance when the displayed
+ * slice changes. An update is only forwarded if the dimensions or bit depth
+ * of the image changed since the last update, if the image just became
+ * modified (its {@link ImagePlus#changes} flag was raised), or if the pixels
+ * of the displayed plane changed while this plane stayed displayed. The latter
+ * is checked by comparing the identity of the plane pixel array and a
+ * checksum of its content, so scrolling through an edited image does not
+ * clear the caches.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ImageWatcher
+{
+
+	/**
+	 * Interface for caches that must be told when an image changes.
+	 */
+	public static interface Listener
+	{
+		/**
+		 * Called when an image is closed, or when its pixels may have
+		 * changed.
+		 *
+		 * @param imp
+		 *            the image.
+		 */
+		public void imageChanged( ImagePlus imp );
+	}
+
+	private static final CopyOnWriteArrayList< Listener > LISTENERS = new CopyOnWriteArrayList< Listener >();
+
+	/**
+	 * The last state seen for each image, keyed by image ID.
+	 */
+	private static final Map< Integer, State > STATES = new HashMap< Integer, State >();
+
+	private static final ImageListener IMAGE_LISTENER = new ImageListener()
+	{
+		@Override
+		public void imageOpened( final ImagePlus imp )
+		{}
+
+		@Override
+		public void imageClosed( final ImagePlus imp )
+		{
+			synchronized ( STATES )
+			{
+				STATES.remove( Integer.valueOf( imp.getID() ) );
+			}
+			fire( imp );
+		}
+
+		@Override
+		public void imageUpdated( final ImagePlus imp )
+		{
+			final State state = new State( imp );
+			final State previous;
+			synchronized ( STATES )
+			{
+				previous = STATES.put( Integer.valueOf( imp.getID() ), state );
+			}
+			if ( null != previous && state.isModifiedSince( previous ) )
+			{
+				fire( imp );
+			}
+		}
+	};
+
+	static
+	{
+		ImagePlus.addImageListener( IMAGE_LISTENER );
+	}
+
+	private ImageWatcher()
+	{}
+
+	/**
+	 * Registers a listener, notified of the changes of all images.
+	 *
+	 * @param listener
+	 *            the listener.
+	 */
+	public static void addListener( final Listener listener )
+	{
+		LISTENERS.addIfAbsent( listener );
+	}
+
+	/**
+	 * Records the current state of an image, so that its later modifications
+	 * are reported. Caches should call this when they store results for an
+	 * image.
+	 *
+	 * @param imp
+	 *            the image.
+	 */
+	public static void watch( final ImagePlus imp )
+	{
+		final State state = new State( imp );
+		synchronized ( STATES )
+		{
+			STATES.put( Integer.valueOf( imp.getID() ), state );
+		}
+	}
+
+	private static void fire( final ImagePlus imp )
+	{
+		for ( final Listener listener : LISTENERS )
+		{
+			listener.imageChanged( imp );
+		}
+	}
+
+	/**
+	 * What is compared between two updates of an image.
+	 */
+	private static final class State
+	{
+		private final String structure;
+
+		private final boolean changes;
+
+		private final int slice;
+
+		private final Object pixels;
+
+		private final int checksum;
+
+		private State( final ImagePlus imp )
+		{
+			this.structure = imp.getBitDepth() + "_" + Arrays.toString( imp.getDimensions() );
+			this.changes = imp.changes;
+			this.slice = imp.getCurrentSlice();
+			final ImageProcessor ip = imp.getProcessor();
+			this.pixels = null == ip ? null : ip.getPixels();
+			this.checksum = checksum( pixels );
+		}
+
+		private boolean isModifiedSince( final State previous )
+		{
+			if ( !structure.equals( previous.structure ) )
+			{
+				return true;
+			}
+			if ( changes && !previous.changes )
+			{
+				return true;
+			}
+			// Another plane is displayed: the update is a slice change.
+			return slice == previous.slice && ( pixels != previous.pixels || checksum != previous.checksum );
+		}
+
+		private static int checksum( final Object pixels )
+		{
+			if ( pixels instanceof byte[] )
+			{
+				return Arrays.hashCode( ( byte[] ) pixels );
+			}
+			if ( pixels instanceof short[] )
+			{
+				return Arrays.hashCode( ( short[] ) pixels );
+			}
+			if ( pixels instanceof float[] )
+			{
+				return Arrays.hashCode( ( float[] ) pixels );
+			}
+			if ( pixels instanceof int[] )
+			{
+				return Arrays.hashCode( ( int[] ) pixels );
+			}
+			return 0;
+		}
+	}
+}
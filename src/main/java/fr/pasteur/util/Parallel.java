@@ -0,0 +1,234 @@
+package fr.pasteur.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shared work-stealing executor all the processors of this plugin submit
+ * their parallel work to.
+ * <p>
+ * Frame-level loops and intra-frame loops (tiles, thresholding, labeling)
+ * are all executed on the same {@link ForkJoinPool}, sized after the number
+ * of processors. Nested parallel loops do not create new threads: a worker
+ * that waits for sub-tasks executes pending tasks meanwhile. The total
+ * number of running threads is therefore bounded by the number of
+ * processors, whatever the nesting.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class Parallel
+{
+
+	/**
+	 * Frames smaller than this number of pixels are not worth splitting in
+	 * parallel intra-frame tasks.
+	 */
+	private static final long MIN_PIXELS_PER_INTRA_FRAME_TASK = 65536;
+
+	private static final ForkJoinPool POOL = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+
+	/**
+	 * Executes tasks in the calling thread. It is a {@link ThreadPoolExecutor}
+	 * of one thread because ImgLib2 algorithms may read the maximum pool size
+	 * of the executor they are given to split their work, but it never starts
+	 * a thread.
+	 */
+	private static final ThreadPoolExecutor SAME_THREAD = new ThreadPoolExecutor( 1, 1, 0l, TimeUnit.MILLISECONDS, new LinkedBlockingQueue< Runnable >() )
+	{
+		@Override
+		public void execute( final Runnable command )
+		{
+			command.run();
+		}
+	};
+
+	/**
+	 * A task executed by several workers.
+	 */
+	public static interface Worker
+	{
+		/**
+		 * Executes the task.
+		 *
+		 * @param index
+		 *            the index of the worker, from 0 to the number of workers
+		 *            minus 1.
+		 */
+		public void run( int index );
+	}
+
+	private Parallel()
+	{}
+
+	/**
+	 * Returns the shared executor.
+	 *
+	 * @return the shared executor.
+	 */
+	public static ForkJoinPool getExecutor()
+	{
+		return POOL;
+	}
+
+	/**
+	 * Returns an executor that runs the tasks submitted to it in the calling
+	 * thread, for algorithms that require an {@link ExecutorService} and are
+	 * called from a worker of the shared executor. It must not be shut down.
+	 *
+	 * @return the same-thread executor.
+	 */
+	public static ExecutorService getSameThreadExecutor()
+	{
+		return SAME_THREAD;
+	}
+
+	/**
+	 * Returns the maximal number of threads running in the shared executor.
+	 *
+	 * @return the parallelism of the shared executor.
+	 */
+	public static int getParallelism()
+	{
+		return POOL.getParallelism();
+	}
+
+	/**
+	 * Runs the specified task with several workers on the shared executor,
+	 * and returns when all workers are done. Workers are expected to share
+	 * their work items themselves, for instance with an
+	 * {@link java.util.concurrent.atomic.AtomicInteger}.
+	 * <p>
+	 * If a worker throws an exception, it is rethrown by this method.
+	 *
+	 * @param nWorkers
+	 *            the number of workers, that is the maximal number of
+	 *            threads working concurrently on the task.
+	 * @param worker
+	 *            the task.
+	 */
+	public static void run( final int nWorkers, final Worker worker )
+	{
+		if ( nWorkers <= 1 )
+		{
+			worker.run( 0 );
+			return;
+		}
+
+		final List< RecursiveAction > tasks = new ArrayList< RecursiveAction >( nWorkers );
+		for ( int i = 0; i < nWorkers; i++ )
+		{
+			final int index = i;
+			tasks.add( new RecursiveAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute()
+				{
+					worker.run( index );
+				}
+			} );
+		}
+
+		final Thread current = Thread.currentThread();
+		if ( current instanceof ForkJoinWorkerThread && ( ( ForkJoinWorkerThread ) current ).getPool() == POOL )
+		{
+			// Nested call: fork in the current pool and help while joining.
+			RecursiveAction.invokeAll( tasks );
+		}
+		else
+		{
+			POOL.invoke( new RecursiveAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute()
+				{
+					invokeAll( tasks );
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Puts an element in a bounded queue, waiting for space if needed. When
+	 * called from a worker of the shared executor, the executor is told that
+	 * the worker is blocked, so that it can start a spare thread and the
+	 * consumers of the queue can still run parallel tasks.
+	 *
+	 * @param queue
+	 *            the queue.
+	 * @param element
+	 *            the element.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public static < E > void put( final BlockingQueue< E > queue, final E element ) throws InterruptedException
+	{
+		if ( queue.offer( element ) )
+		{
+			return;
+		}
+		ForkJoinPool.managedBlock( new ManagedBlocker()
+		{
+			private boolean done = false;
+
+			@Override
+			public boolean block() throws InterruptedException
+			{
+				if ( !done )
+				{
+					queue.put( element );
+					done = true;
+				}
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable()
+			{
+				if ( !done )
+				{
+					done = queue.offer( element );
+				}
+				return done;
+			}
+		} );
+	}
+
+	/**
+	 * Splits the shared executor threads between frame-level and
+	 * intra-frame parallelism.
+	 * <p>
+	 * Processing frames in parallel is the most efficient, as it needs no
+	 * synchronization. Intra-frame parallelism is used only when there are
+	 * fewer frames than threads, and only if frames are large enough to be
+	 * split.
+	 *
+	 * @param nFrames
+	 *            the number of frames to process.
+	 * @param framePixels
+	 *            the number of pixels in one frame.
+	 * @return a new <code>int[]</code> array containing the number of frames
+	 *         to process concurrently, and the number of threads to use
+	 *         within each frame.
+	 */
+	public static int[] split( final int nFrames, final long framePixels )
+	{
+		final int nThreads = getParallelism();
+		final int frameWorkers = Math.max( 1, Math.min( nThreads, nFrames ) );
+		final int maxIntra = ( int ) Math.max( 1l, Math.min( Integer.MAX_VALUE, framePixels / MIN_PIXELS_PER_INTRA_FRAME_TASK ) );
+		final int intraFrameThreads = Math.max( 1, Math.min( maxIntra, ( nThreads + frameWorkers - 1 ) / frameWorkers ) );
+		return new int[] { frameWorkers, intraFrameThreads };
+	}
+}
@@ -0,0 +1,83 @@
+package fr.pasteur.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Runs the {@link Gauss3} gaussian filter on the shared executor of
+ * {@link Parallel}.
+ * <p>
+ * Given a number of threads, {@link Gauss3} creates a thread pool and shuts
+ * it down at each call. Here the target is instead split in slabs along its
+ * last dimension, each filtered by {@link Gauss3} with the same-thread
+ * executor of {@link Parallel#getSameThreadExecutor()}, as concurrent tasks
+ * of the shared executor. Callers that already run in parallel, for instance
+ * one task per tile, use a single slab and no thread is involved.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ParallelGauss
+{
+
+	private ParallelGauss()
+	{}
+
+	/**
+	 * Filters the source over the target interval.
+	 *
+	 * @param sigmas
+	 *            the gaussian sigma along each dimension.
+	 * @param source
+	 *            the source, must be defined over the target expanded by the
+	 *            kernel size, typically an extended image.
+	 * @param target
+	 *            the target.
+	 * @param numTasks
+	 *            the maximal number of slabs filtered concurrently.
+	 * @throws IncompatibleTypeException
+	 *             if {@link Gauss3} fails.
+	 */
+	public static final < S extends NumericType< S >, T extends NumericType< T >> void gauss( final double[] sigmas, final RandomAccessible< S > source, final RandomAccessibleInterval< T > target, final int numTasks ) throws IncompatibleTypeException
+	{
+		final int last = target.numDimensions() - 1;
+		final long size = target.dimension( last );
+		final int nSlabs = ( int ) Math.max( 1, Math.min( numTasks, size ) );
+		if ( nSlabs == 1 )
+		{
+			Gauss3.gauss( sigmas, source, target, Parallel.getSameThreadExecutor() );
+			return;
+		}
+
+		final AtomicReference< IncompatibleTypeException > failure = new AtomicReference< IncompatibleTypeException >();
+		Parallel.run( nSlabs, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				final long[] min = Intervals.minAsLongArray( target );
+				final long[] max = Intervals.maxAsLongArray( target );
+				min[ last ] = target.min( last ) + index * size / nSlabs;
+				max[ last ] = target.min( last ) + ( index + 1 ) * size / nSlabs - 1;
+				try
+				{
+					Gauss3.gauss( sigmas, source, Views.interval( target, min, max ), Parallel.getSameThreadExecutor() );
+				}
+				catch ( final IncompatibleTypeException e )
+				{
+					failure.compareAndSet( null, e );
+				}
+			}
+		} );
+		if ( null != failure.get() )
+		{
+			throw failure.get();
+		}
+	}
+}
@@ -0,0 +1,504 @@
+package fr.pasteur.util;
+
+import java.util.Arrays;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+/**
+ * Direct access to the primitive arrays backing an {@link ArrayImg} or a
+ * {@link PlanarImg} of a common pixel type.
+ * <p>
+ * Hot loops use it to bypass the generic cursors and
+ * {@link net.imglib2.type.numeric.RealType#getRealDouble()} calls, which
+ * become megamorphic when images of several types are processed in the same
+ * JVM. Pixels are seen as a sequence of planes in flat iteration order:
+ * plane <code>k</code> starts at index <code>offset(k)</code> in the array
+ * <code>array(k)</code>, and holds {@link #planeSize()} consecutive pixels.
+ * Rows along dimension 0 never cross a plane boundary.
+ * <p>
+ * {@link BitType} pixels are packed in <code>long[]</code> arrays, 64 pixels
+ * per word starting from the least significant bit. Their offsets are
+ * expressed in bits.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public final class Planes
+{
+
+	/**
+	 * The pixel types with a fast path.
+	 */
+	public static enum PixelType
+	{
+		/** {@link UnsignedByteType}, backed by <code>byte[]</code>. */
+		UNSIGNED_BYTE,
+		/** {@link UnsignedShortType}, backed by <code>short[]</code>. */
+		UNSIGNED_SHORT,
+		/** {@link FloatType}, backed by <code>float[]</code>. */
+		FLOAT,
+		/** {@link BitType}, backed by <code>long[]</code>. */
+		BIT;
+	}
+
+	private final PixelType type;
+
+	private final long[] dims;
+
+	private final Object[] arrays;
+
+	private final int[] offsets;
+
+	private final int planeSize;
+
+	private Planes( final PixelType type, final long[] dims, final Object[] arrays, final int[] offsets, final int planeSize )
+	{
+		this.type = type;
+		this.dims = dims;
+		this.arrays = arrays;
+		this.offsets = offsets;
+		this.planeSize = planeSize;
+	}
+
+	/**
+	 * Returns the planes backing the specified image, or <code>null</code> if
+	 * the image is not an {@link ArrayImg}, a {@link PlanarImg} or a view made
+	 * by {@link #hyperSliceLast(RandomAccessibleInterval, long)}, or if its
+	 * pixel type has no fast path.
+	 *
+	 * @param img
+	 *            the image.
+	 * @return the planes, or <code>null</code>.
+	 */
+	public static Planes of( final RandomAccessibleInterval< ? > img )
+	{
+		if ( img instanceof PlanesView )
+		{
+			return ( ( PlanesView< ? > ) img ).getPlanes();
+		}
+		if ( img.numDimensions() == 0 )
+		{
+			return null;
+		}
+		final PixelType type = pixelType( img );
+		if ( null == type )
+		{
+			return null;
+		}
+
+		final long[] dims = Intervals.dimensionsAsLongArray( img );
+		final long planeSize = img.numDimensions() < 2 ? dims[ 0 ] : dims[ 0 ] * dims[ 1 ];
+		final long nPlanes = Intervals.numElements( dims ) / planeSize;
+		if ( planeSize > Integer.MAX_VALUE || nPlanes > Integer.MAX_VALUE )
+		{
+			return null;
+		}
+		final Object[] arrays = new Object[ ( int ) nPlanes ];
+		final int[] offsets = new int[ ( int ) nPlanes ];
+
+		if ( img instanceof ArrayImg )
+		{
+			if ( Intervals.numElements( dims ) > Integer.MAX_VALUE )
+			{
+				return null;
+			}
+			final Object access = ( ( ArrayImg< ?, ? > ) img ).update( null );
+			if ( !( access instanceof ArrayDataAccess ) )
+			{
+				return null;
+			}
+			final Object array = ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray();
+			for ( int k = 0; k < nPlanes; k++ )
+			{
+				arrays[ k ] = array;
+				offsets[ k ] = ( int ) ( k * planeSize );
+			}
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planar = ( PlanarImg< ?, ? > ) img;
+			for ( int k = 0; k < nPlanes; k++ )
+			{
+				arrays[ k ] = planar.getPlane( k ).getCurrentStorageArray();
+			}
+		}
+		else
+		{
+			return null;
+		}
+		return new Planes( type, dims, arrays, offsets, ( int ) planeSize );
+	}
+
+	/**
+	 * Returns the hyperslice of an image along its last dimension, like
+	 * {@link Views#hyperSlice(RandomAccessibleInterval, int, long)}. If the
+	 * image has a fast path, so does the returned view.
+	 *
+	 * @param img
+	 *            the image to slice.
+	 * @param pos
+	 *            the position along the last dimension.
+	 * @return a new view.
+	 */
+	public static < T > IntervalView< T > hyperSliceLast( final RandomAccessibleInterval< T > img, final long pos )
+	{
+		final IntervalView< T > slice = Views.hyperSlice( img, img.numDimensions() - 1, pos );
+		final Planes planes = of( img );
+		if ( null == planes )
+		{
+			return slice;
+		}
+		final Planes slicePlanes = planes.hyperSliceLast( pos );
+		if ( null == slicePlanes )
+		{
+			return slice;
+		}
+		return new PlanesView< T >( slice, slicePlanes );
+	}
+
+	private Planes hyperSliceLast( final long pos )
+	{
+		final int n = dims.length;
+		if ( n < 2 )
+		{
+			return null;
+		}
+		final long[] sliceDims = new long[ n - 1 ];
+		System.arraycopy( dims, 0, sliceDims, 0, n - 1 );
+		if ( n == 2 )
+		{
+			// Planes become rows.
+			final int row = ( int ) pos;
+			final int rowLength = ( int ) dims[ 0 ];
+			final int plane = ( int ) ( ( long ) row * rowLength / planeSize );
+			final int offset = offsets[ plane ] + ( int ) ( ( long ) row * rowLength % planeSize );
+			return new Planes( type, sliceDims, new Object[] { arrays[ plane ] }, new int[] { offset }, rowLength );
+		}
+		final int planesPerSlice = arrays.length / ( int ) dims[ n - 1 ];
+		final Object[] sliceArrays = new Object[ planesPerSlice ];
+		final int[] sliceOffsets = new int[ planesPerSlice ];
+		System.arraycopy( arrays, ( int ) pos * planesPerSlice, sliceArrays, 0, planesPerSlice );
+		System.arraycopy( offsets, ( int ) pos * planesPerSlice, sliceOffsets, 0, planesPerSlice );
+		return new Planes( type, sliceDims, sliceArrays, sliceOffsets, planeSize );
+	}
+
+	private static PixelType pixelType( final RandomAccessibleInterval< ? > img )
+	{
+		final Object t = Views.iterable( img ).firstElement();
+		if ( t instanceof UnsignedByteType )
+		{
+			return PixelType.UNSIGNED_BYTE;
+		}
+		if ( t instanceof UnsignedShortType )
+		{
+			return PixelType.UNSIGNED_SHORT;
+		}
+		if ( t instanceof FloatType )
+		{
+			return PixelType.FLOAT;
+		}
+		if ( t instanceof BitType )
+		{
+			return PixelType.BIT;
+		}
+		return null;
+	}
+
+	public PixelType type()
+	{
+		return type;
+	}
+
+	public int numPlanes()
+	{
+		return arrays.length;
+	}
+
+	public int planeSize()
+	{
+		return planeSize;
+	}
+
+	public Object array( final int plane )
+	{
+		return arrays[ plane ];
+	}
+
+	public int offset( final int plane )
+	{
+		return offsets[ plane ];
+	}
+
+	/**
+	 * Returns the value of the pixel at the specified index, in flat
+	 * iteration order.
+	 *
+	 * @param index
+	 *            the flat index of the pixel.
+	 * @return the pixel value.
+	 */
+	public double getRealDouble( final long index )
+	{
+		final int plane = ( int ) ( index / planeSize );
+		final int i = offsets[ plane ] + ( int ) ( index % planeSize );
+		switch ( type )
+		{
+		case UNSIGNED_BYTE:
+			return ( ( byte[] ) arrays[ plane ] )[ i ] & 0xff;
+		case UNSIGNED_SHORT:
+			return ( ( short[] ) arrays[ plane ] )[ i ] & 0xffff;
+		case BIT:
+			return ( ( ( long[] ) arrays[ plane ] )[ i >>> 6 ] >>> ( i & 63 ) ) & 1l;
+		case FLOAT:
+		default:
+			return ( ( float[] ) arrays[ plane ] )[ i ];
+		}
+	}
+
+	/**
+	 * Writes the values of a row of pixels, rounding them for integer types.
+	 * <p>
+	 * {@link BitType} pixels are written with a read-modify-write of their
+	 * word: concurrent callers must not write rows that share a word.
+	 *
+	 * @param index
+	 *            the flat index of the first pixel of the row. The row must
+	 *            not cross a plane boundary.
+	 * @param values
+	 *            the values to write.
+	 * @param length
+	 *            the number of pixels to write.
+	 */
+	public void setRow( final long index, final double[] values, final int length )
+	{
+		final int plane = ( int ) ( index / planeSize );
+		final int start = offsets[ plane ] + ( int ) ( index % planeSize );
+		switch ( type )
+		{
+		case UNSIGNED_BYTE:
+		{
+			final byte[] array = ( byte[] ) arrays[ plane ];
+			for ( int i = 0; i < length; i++ )
+			{
+				array[ start + i ] = ( byte ) ( int ) ( values[ i ] + 0.5 );
+			}
+			break;
+		}
+		case UNSIGNED_SHORT:
+		{
+			final short[] array = ( short[] ) arrays[ plane ];
+			for ( int i = 0; i < length; i++ )
+			{
+				array[ start + i ] = ( short ) ( int ) ( values[ i ] + 0.5 );
+			}
+			break;
+		}
+		case BIT:
+		{
+			final long[] array = ( long[] ) arrays[ plane ];
+			for ( int i = 0; i < length; i++ )
+			{
+				final int k = start + i;
+				if ( ( int ) ( values[ i ] + 0.5 ) != 0 )
+				{
+					array[ k >>> 6 ] |= 1l << ( k & 63 );
+				}
+				else
+				{
+					array[ k >>> 6 ] &= ~( 1l << ( k & 63 ) );
+				}
+			}
+			break;
+		}
+		case FLOAT:
+		default:
+		{
+			final float[] array = ( float[] ) arrays[ plane ];
+			for ( int i = 0; i < length; i++ )
+			{
+				array[ start + i ] = ( float ) values[ i ];
+			}
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Writes a row of {@link BitType} pixels, true where the value is at
+	 * least the specified minimal value. Bits are packed in a register and
+	 * stored 64 at a time, instead of a read-modify-write per pixel. The
+	 * words at the ends of the row can be shared with adjacent rows, and are
+	 * updated with an unsynchronized read-modify-write: concurrent writers
+	 * must use {@link #setMaskRow(long, double[], int, double, PartialWords)}
+	 * instead.
+	 *
+	 * @param index
+	 *            the flat index of the first pixel of the row. The row must
+	 *            not cross a plane boundary.
+	 * @param values
+	 *            the values to compare.
+	 * @param length
+	 *            the number of pixels to write.
+	 * @param minValue
+	 *            the minimal value for a pixel to be true.
+	 */
+	public void setMaskRow( final long index, final double[] values, final int length, final double minValue )
+	{
+		setMaskRow( index, values, length, minValue, null );
+	}
+
+	/**
+	 * Writes a row of {@link BitType} pixels, true where the value is at
+	 * least the specified minimal value, as
+	 * {@link #setMaskRow(long, double[], int, double)}. The words the row
+	 * only partly covers are not written but added to the specified
+	 * collector, so that concurrent callers writing distinct rows never
+	 * write the same word. The collected words must be applied once all
+	 * the writers are done.
+	 *
+	 * @param index
+	 *            the flat index of the first pixel of the row. The row must
+	 *            not cross a plane boundary.
+	 * @param values
+	 *            the values to compare.
+	 * @param length
+	 *            the number of pixels to write.
+	 * @param minValue
+	 *            the minimal value for a pixel to be true.
+	 * @param partialWords
+	 *            the collector of partly covered words, or
+	 *            <code>null</code> to write them directly.
+	 */
+	public void setMaskRow( final long index, final double[] values, final int length, final double minValue, final PartialWords partialWords )
+	{
+		final int plane = ( int ) ( index / planeSize );
+		final long[] words = ( long[] ) arrays[ plane ];
+		final int start = offsets[ plane ] + ( int ) ( index % planeSize );
+		int w = start >>> 6;
+		int firstBit = start & 63;
+		int bit = firstBit;
+		long word = 0l;
+		for ( int i = 0; i < length; i++ )
+		{
+			if ( values[ i ] >= minValue )
+			{
+				word |= 1l << bit;
+			}
+			if ( ++bit == 64 )
+			{
+				store( words, w, firstBit, bit, word, partialWords );
+				w++;
+				firstBit = 0;
+				bit = 0;
+				word = 0l;
+			}
+		}
+		if ( bit > firstBit )
+		{
+			store( words, w, firstBit, bit, word, partialWords );
+		}
+	}
+
+	/**
+	 * Stores the bits <code>firstBit</code> (inclusive) to
+	 * <code>endBit</code> (exclusive) of a word, keeping its other bits, or
+	 * defers it if it is partial and a collector is specified.
+	 */
+	private static final void store( final long[] words, final int w, final int firstBit, final int endBit, final long word, final PartialWords partialWords )
+	{
+		if ( firstBit == 0 && endBit == 64 )
+		{
+			words[ w ] = word;
+			return;
+		}
+		final long covered = ( endBit == 64 ? -1l : ( 1l << endBit ) - 1 ) & ~( ( 1l << firstBit ) - 1 );
+		if ( null != partialWords )
+		{
+			partialWords.add( words, w, covered, word );
+		}
+		else
+		{
+			words[ w ] = ( words[ w ] & ~covered ) | word;
+		}
+	}
+
+	/**
+	 * Collects the {@link BitType} words that a writer only partly covers,
+	 * so that concurrent writers of distinct rows do not need a lock. Each
+	 * writer fills its own collector, and the collectors are applied one
+	 * after the other once all the writers are done.
+	 */
+	public static final class PartialWords
+	{
+		private long[][] arrays = new long[ 16 ][];
+
+		private int[] indices = new int[ 16 ];
+
+		private long[] covered = new long[ 16 ];
+
+		private long[] bits = new long[ 16 ];
+
+		private int size;
+
+		private void add( final long[] words, final int w, final long mask, final long word )
+		{
+			if ( size == indices.length )
+			{
+				final int capacity = 2 * size;
+				arrays = Arrays.copyOf( arrays, capacity );
+				indices = Arrays.copyOf( indices, capacity );
+				covered = Arrays.copyOf( covered, capacity );
+				bits = Arrays.copyOf( bits, capacity );
+			}
+			arrays[ size ] = words;
+			indices[ size ] = w;
+			covered[ size ] = mask;
+			bits[ size ] = word;
+			size++;
+		}
+
+		/**
+		 * Writes the collected bits, keeping the other bits of their words,
+		 * and empties this collector. Must not run concurrently with the
+		 * writers of the same words.
+		 */
+		public void apply()
+		{
+			for ( int i = 0; i < size; i++ )
+			{
+				final long[] words = arrays[ i ];
+				words[ indices[ i ] ] = ( words[ indices[ i ] ] & ~covered[ i ] ) | bits[ i ];
+				arrays[ i ] = null;
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * An {@link IntervalView} that remembers the planes backing it.
+	 */
+	private static final class PlanesView< T > extends IntervalView< T >
+	{
+		private final Planes planes;
+
+		private PlanesView( final IntervalView< T > view, final Planes planes )
+		{
+			super( view.getSource(), view );
+			this.planes = planes;
+		}
+
+		private Planes getPlanes()
+		{
+			return planes;
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package fr.pasteur.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Recursive gaussian filter, after Deriche, <i>Recursively implementing the
+ * Gaussian and its derivatives</i>, INRIA RR-1893 (1993).
+ * <p>
+ * Each line is filtered by the sum of a fourth-order causal filter and of a
+ * fourth-order anti-causal filter, so the number of operations per pixel
+ * does not depend on sigma, unlike the convolution of {@link Gauss3} whose
+ * kernel grows with sigma. The result approximates the gaussian filter
+ * within about 1e-4 of the image range. The kernel of {@link Gauss3} is
+ * truncated at about 3 sigma, so the two filters differ by about 1e-3 of the
+ * image range.
+ * <p>
+ * The infinite response of the filter is truncated to {@link #getMargin(double)}
+ * pixels: the target is computed from the source over the target interval
+ * expanded by this margin. Boundary conditions are therefore the ones of the
+ * source, for instance mirror boundaries with
+ * {@link Views#extendMirrorDouble(RandomAccessibleInterval)}, as for
+ * {@link Gauss3}.
+ * <p>
+ * Sigmas below {@link #MIN_SIGMA}, where the approximation does not hold,
+ * are filtered with {@link Gauss3}.
+ * <p>
+ * The two scratch buffers of each call are borrowed from the shared
+ * {@link BufferPool}, so that filtering the tiles of many frames does not
+ * allocate new memory for each tile.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class RecursiveGaussian
+{
+
+	/**
+	 * The smallest sigma the recursive approximation is used for.
+	 */
+	public static final double MIN_SIGMA = 0.5;
+
+	private RecursiveGaussian()
+	{}
+
+	/**
+	 * Returns the number of source pixels read on each side of the target
+	 * along a dimension, for the specified sigma.
+	 *
+	 * @param sigma
+	 *            the gaussian sigma.
+	 * @return the margin in pixels.
+	 */
+	public static final int getMargin( final double sigma )
+	{
+		return ( int ) Math.ceil( 4 * sigma ) + 3;
+	}
+
+	/**
+	 * Filters the source over the target interval.
+	 *
+	 * @param sigmas
+	 *            the gaussian sigma along each dimension.
+	 * @param source
+	 *            the source, must be defined over the target expanded by the
+	 *            margin, typically an extended image.
+	 * @param target
+	 *            the target.
+	 * @throws IncompatibleTypeException
+	 *             if {@link Gauss3} is used and fails.
+	 */
+	public static final < T extends RealType< T >> void gauss( final double[] sigmas, final RandomAccessible< T > source, final RandomAccessibleInterval< FloatType > target ) throws IncompatibleTypeException
+	{
+		final int n = target.numDimensions();
+		for ( int d = 0; d < n; d++ )
+		{
+			if ( sigmas[ d ] < MIN_SIGMA )
+			{
+				Gauss3.gauss( sigmas, source, target, Parallel.getSameThreadExecutor() );
+				return;
+			}
+		}
+
+		final long[] margin = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			margin[ d ] = getMargin( sigmas[ d ] );
+		}
+		final Interval region = Intervals.expand( target, margin );
+		final int[] dims = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			dims[ d ] = ( int ) region.dimension( d );
+		}
+
+		// Each dimension is filtered in one buffer, then cropped in the other.
+		final BufferPool pool = BufferPool.getShared();
+		final int length = ( int ) Intervals.numElements( region );
+		float[] buffer = pool.borrowFloats( length );
+		float[] cropped = pool.borrowFloats( length );
+		try
+		{
+			final Cursor< T > in = Views.flatIterable( Views.interval( source, region ) ).cursor();
+			int i = 0;
+			while ( in.hasNext() )
+			{
+				buffer[ i++ ] = in.next().getRealFloat();
+			}
+
+			final double[] line = new double[ maxOf( dims ) ];
+			for ( int d = 0; d < n; d++ )
+			{
+				filter( buffer, dims, d, coefficients( sigmas[ d ] ), line );
+				crop( buffer, cropped, dims, d, ( int ) margin[ d ], ( int ) target.dimension( d ) );
+				dims[ d ] = ( int ) target.dimension( d );
+				final float[] tmp = buffer;
+				buffer = cropped;
+				cropped = tmp;
+			}
+
+			final Cursor< FloatType > out = Views.flatIterable( target ).cursor();
+			i = 0;
+			while ( out.hasNext() )
+			{
+				out.next().set( buffer[ i++ ] );
+			}
+		}
+		finally
+		{
+			pool.release( buffer );
+			pool.release( cropped );
+		}
+	}
+
+	/**
+	 * Returns the filter coefficients for the specified sigma:
+	 * <code>{ n0, n1, n2, n3, m1, m2, m3, m4, d1, d2, d3, d4 }</code>, with
+	 * the causal and anti-causal numerators normalized for a unit gain.
+	 */
+	private static final double[] coefficients( final double sigma )
+	{
+		final double a0 = 1.680;
+		final double a1 = 3.735;
+		final double b0 = 1.783;
+		final double b1 = 1.723;
+		final double w0 = 0.6318;
+		final double w1 = 1.997;
+		final double c0 = -0.6803;
+		final double c1 = -0.2598;
+
+		final double cos0 = Math.cos( w0 / sigma );
+		final double sin0 = Math.sin( w0 / sigma );
+		final double cos1 = Math.cos( w1 / sigma );
+		final double sin1 = Math.sin( w1 / sigma );
+		final double e0 = Math.exp( -b0 / sigma );
+		final double e1 = Math.exp( -b1 / sigma );
+
+		final double n0 = a0 + c0;
+		final double n1 = e1 * ( c1 * sin1 - ( c0 + 2 * a0 ) * cos1 ) + e0 * ( a1 * sin0 - ( 2 * c0 + a0 ) * cos0 );
+		final double n2 = 2 * e0 * e1 * ( ( a0 + c0 ) * cos1 * cos0 - a1 * cos1 * sin0 - c1 * cos0 * sin1 ) + c0 * e0 * e0 + a0 * e1 * e1;
+		final double n3 = e1 * e0 * e0 * ( c1 * sin1 - c0 * cos1 ) + e0 * e1 * e1 * ( a1 * sin0 - a0 * cos0 );
+
+		final double d1 = -2 * e1 * cos1 - 2 * e0 * cos0;
+		final double d2 = 4 * cos1 * cos0 * e0 * e1 + e1 * e1 + e0 * e0;
+		final double d3 = -2 * cos0 * e0 * e1 * e1 - 2 * cos1 * e1 * e0 * e0;
+		final double d4 = e0 * e0 * e1 * e1;
+
+		final double m1 = n1 - d1 * n0;
+		final double m2 = n2 - d2 * n0;
+		final double m3 = n3 - d3 * n0;
+		final double m4 = -d4 * n0;
+
+		final double gain = ( n0 + n1 + n2 + n3 + m1 + m2 + m3 + m4 ) / ( 1 + d1 + d2 + d3 + d4 );
+		return new double[] { n0 / gain, n1 / gain, n2 / gain, n3 / gain, m1 / gain, m2 / gain, m3 / gain, m4 / gain, d1, d2, d3, d4 };
+	}
+
+	/**
+	 * Filters all the lines of a flat buffer along a dimension. The filter
+	 * is started with the value at each end of the line, as if the line was
+	 * extended by its border values: the margin makes this negligible over
+	 * the target. Only the first elements of the buffer, as many as the
+	 * product of the dimensions, are used.
+	 */
+	private static final void filter( final float[] buffer, final int[] dims, final int d, final double[] c, final double[] line )
+	{
+		final double n0 = c[ 0 ];
+		final double n1 = c[ 1 ];
+		final double n2 = c[ 2 ];
+		final double n3 = c[ 3 ];
+		final double m1 = c[ 4 ];
+		final double m2 = c[ 5 ];
+		final double m3 = c[ 6 ];
+		final double m4 = c[ 7 ];
+		final double d1 = c[ 8 ];
+		final double d2 = c[ 9 ];
+		final double d3 = c[ 10 ];
+		final double d4 = c[ 11 ];
+		// Steady-state responses to a constant input.
+		final double denominator = 1 + d1 + d2 + d3 + d4;
+		final double causalGain = ( n0 + n1 + n2 + n3 ) / denominator;
+		final double antiCausalGain = ( m1 + m2 + m3 + m4 ) / denominator;
+
+		int inner = 1;
+		for ( int k = 0; k < d; k++ )
+		{
+			inner *= dims[ k ];
+		}
+		final int length = dims[ d ];
+		final int outer = outerSize( dims, d );
+
+		for ( int o = 0; o < outer; o++ )
+		{
+			for ( int j = 0; j < inner; j++ )
+			{
+				final int base = o * length * inner + j;
+
+				// Causal pass.
+				double x1 = buffer[ base ];
+				double x2 = x1;
+				double x3 = x1;
+				double y1 = causalGain * x1;
+				double y2 = y1;
+				double y3 = y1;
+				double y4 = y1;
+				for ( int k = 0; k < length; k++ )
+				{
+					final double x0 = buffer[ base + k * inner ];
+					final double y = n0 * x0 + n1 * x1 + n2 * x2 + n3 * x3 - d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+					line[ k ] = y;
+					x3 = x2;
+					x2 = x1;
+					x1 = x0;
+					y4 = y3;
+					y3 = y2;
+					y2 = y1;
+					y1 = y;
+				}
+
+				// Anti-causal pass, added to the causal one.
+				x1 = buffer[ base + ( length - 1 ) * inner ];
+				x2 = x1;
+				x3 = x1;
+				double x4 = x1;
+				y1 = antiCausalGain * x1;
+				y2 = y1;
+				y3 = y1;
+				y4 = y1;
+				for ( int k = length - 1; k >= 0; k-- )
+				{
+					final double x0 = buffer[ base + k * inner ];
+					final double y = m1 * x1 + m2 * x2 + m3 * x3 + m4 * x4 - d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+					buffer[ base + k * inner ] = ( float ) ( line[ k ] + y );
+					x4 = x3;
+					x3 = x2;
+					x2 = x1;
+					x1 = x0;
+					y4 = y3;
+					y3 = y2;
+					y2 = y1;
+					y1 = y;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the specified range along one dimension of a flat buffer in the
+	 * first elements of another buffer.
+	 */
+	private static final void crop( final float[] buffer, final float[] cropped, final int[] dims, final int d, final int from, final int size )
+	{
+		int inner = 1;
+		for ( int k = 0; k < d; k++ )
+		{
+			inner *= dims[ k ];
+		}
+		final int length = dims[ d ];
+		final int outer = outerSize( dims, d );
+
+		for ( int o = 0; o < outer; o++ )
+		{
+			System.arraycopy( buffer, ( o * length + from ) * inner, cropped, o * size * inner, size * inner );
+		}
+	}
+
+	/**
+	 * Returns the product of the dimensions after the specified one.
+	 */
+	private static final int outerSize( final int[] dims, final int d )
+	{
+		int outer = 1;
+		for ( int k = d + 1; k < dims.length; k++ )
+		{
+			outer *= dims[ k ];
+		}
+		return outer;
+	}
+
+	private static final int maxOf( final int[] values )
+	{
+		int max = 0;
+		for ( final int value : values )
+		{
+			max = Math.max( max, value );
+		}
+		return max;
+	}
+}
@@ -0,0 +1,375 @@
+package fr.pasteur.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Grey dilation by an approximation of a disk, with a cost per pixel that does
+ * not depend on the disk radius.
+ * <p>
+ * The disk is decomposed in a sequence of line segments along the axes and
+ * the diagonals of the pixel grid. Their Minkowski sum is a polygon (an
+ * octagon in 2D) whose extent along the axes and diagonals is as close as
+ * possible to the disk radius. Each segment is processed with the van Herk /
+ * Gil-Werman running max algorithm, which takes 3 comparisons per pixel
+ * whatever the segment length.
+ * <p>
+ * Data is processed in place, on a flat <code>float[]</code> array laid out
+ * with dimension 0 varying fastest. Pixels outside of the array are ignored.
+ * Because segments are processed one after the other, the result is exact
+ * only for pixels that are at least {@link #getExtent()} away from the array
+ * border. Callers should pad the data with this margin, filled with
+ * {@link Float#NEGATIVE_INFINITY} where there is no data.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class RunningMaxDilation
+{
+
+	private final int[][] directions;
+
+	private final int[] halfLengths;
+
+	private final int numDimensions;
+
+	/**
+	 * Creates a dilation by a polygon approximating a disk.
+	 *
+	 * @param radius
+	 *            the radius of the disk, must be positive.
+	 * @param numDimensions
+	 *            the number of dimensions of the data to process.
+	 */
+	public RunningMaxDilation( final int radius, final int numDimensions )
+	{
+		this.numDimensions = numDimensions;
+		final List< int[] > dirs = directions( numDimensions );
+		final int[] groupLengths = decompose( radius, numDimensions, dirs );
+		this.directions = dirs.toArray( new int[ dirs.size() ][] );
+		this.halfLengths = new int[ directions.length ];
+		for ( int i = 0; i < directions.length; i++ )
+		{
+			halfLengths[ i ] = groupLengths[ nonZeros( directions[ i ] ) - 1 ];
+		}
+	}
+
+	private RunningMaxDilation( final int[][] directions, final int[] halfLengths, final int numDimensions )
+	{
+		this.directions = directions;
+		this.halfLengths = halfLengths;
+		this.numDimensions = numDimensions;
+	}
+
+	/**
+	 * Returns the dilation that, applied after the specified smaller one,
+	 * gives this dilation. The Minkowski sum of two segments along the same
+	 * direction is a segment whose half-length is the sum of theirs, so the
+	 * increment dilates by the difference of the half-lengths. This lets a
+	 * dilation by a larger radius be built from the result of a smaller one.
+	 *
+	 * @param smaller
+	 *            a dilation with the same number of dimensions.
+	 * @return the increment, or <code>null</code> if a segment of this
+	 *         dilation is shorter than in the smaller one.
+	 */
+	public RunningMaxDilation increment( final RunningMaxDilation smaller )
+	{
+		final int[] increments = new int[ halfLengths.length ];
+		for ( int i = 0; i < halfLengths.length; i++ )
+		{
+			increments[ i ] = halfLengths[ i ] - smaller.halfLengths[ i ];
+			if ( increments[ i ] < 0 )
+			{
+				return null;
+			}
+		}
+		return new RunningMaxDilation( directions, increments, numDimensions );
+	}
+
+	/**
+	 * Returns how far, along each dimension, the dilation reads pixels from
+	 * the one it is computed for. A target region must be surrounded by a
+	 * margin at least this large in the processed array to be exact, even
+	 * outside the image.
+	 *
+	 * @return a new <code>long[]</code> array.
+	 */
+	public long[] getExtent()
+	{
+		final long[] extent = new long[ numDimensions ];
+		for ( int i = 0; i < directions.length; i++ )
+		{
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				extent[ d ] += halfLengths[ i ] * Math.abs( directions[ i ][ d ] );
+			}
+		}
+		return extent;
+	}
+
+	/**
+	 * Dilates in place the specified array.
+	 *
+	 * @param data
+	 *            the data array, with dimension 0 varying fastest. Can be
+	 *            larger than the number of pixels specified by
+	 *            <code>dims</code>.
+	 * @param dims
+	 *            the dimensions of the data.
+	 */
+	public void dilate( final float[] data, final int[] dims )
+	{
+		final int[] strides = new int[ numDimensions ];
+		int size = 1;
+		int maxDim = 0;
+		for ( int d = 0; d < numDimensions; d++ )
+		{
+			strides[ d ] = size;
+			size *= dims[ d ];
+			maxDim = Math.max( maxDim, dims[ d ] );
+		}
+		int maxHalfLength = 0;
+		for ( final int a : halfLengths )
+		{
+			maxHalfLength = Math.max( maxHalfLength, a );
+		}
+
+		final float[] line = new float[ maxDim ];
+		final float[] g = new float[ maxDim + 2 * maxHalfLength ];
+		final float[] h = new float[ maxDim + 2 * maxHalfLength ];
+		final int[] pos = new int[ numDimensions ];
+		final int[] walker = new int[ numDimensions ];
+
+		for ( int i = 0; i < directions.length; i++ )
+		{
+			final int a = halfLengths[ i ];
+			if ( a == 0 )
+			{
+				continue;
+			}
+			final int[] dir = directions[ i ];
+			int offset = 0;
+			for ( int d = 0; d < numDimensions; d++ )
+			{
+				offset += dir[ d ] * strides[ d ];
+			}
+
+			Arrays.fill( pos, 0 );
+			for ( int index = 0; index < size; index++ )
+			{
+				if ( isLineStart( pos, dir, dims ) )
+				{
+					// Gather.
+					int length = 0;
+					int idx = index;
+					System.arraycopy( pos, 0, walker, 0, numDimensions );
+					while ( isInside( walker, dims ) )
+					{
+						line[ length++ ] = data[ idx ];
+						idx += offset;
+						for ( int d = 0; d < numDimensions; d++ )
+						{
+							walker[ d ] += dir[ d ];
+						}
+					}
+
+					runningMax( line, length, a, g, h );
+
+					// Scatter.
+					idx = index;
+					for ( int k = 0; k < length; k++ )
+					{
+						data[ idx ] = line[ k ];
+						idx += offset;
+					}
+				}
+
+				for ( int d = 0; d < numDimensions; d++ )
+				{
+					if ( ++pos[ d ] < dims[ d ] )
+					{
+						break;
+					}
+					pos[ d ] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * van Herk / Gil-Werman running max over a centered window of size
+	 * <code>2a+1</code>. Values outside the line are ignored.
+	 */
+	private static final void runningMax( final float[] line, final int length, final int a, final float[] g, final float[] h )
+	{
+		final int w = 2 * a + 1;
+		final int padded = length + 2 * a;
+		for ( int j = 0; j < padded; j++ )
+		{
+			final float v = valueAt( line, j - a, length );
+			g[ j ] = ( j % w == 0 ) ? v : Math.max( g[ j - 1 ], v );
+		}
+		for ( int j = padded - 1; j >= 0; j-- )
+		{
+			final float v = valueAt( line, j - a, length );
+			h[ j ] = ( j == padded - 1 || ( j + 1 ) % w == 0 ) ? v : Math.max( h[ j + 1 ], v );
+		}
+		for ( int k = 0; k < length; k++ )
+		{
+			line[ k ] = Math.max( h[ k ], g[ k + 2 * a ] );
+		}
+	}
+
+	private static final float valueAt( final float[] line, final int k, final int length )
+	{
+		return ( k < 0 || k >= length ) ? Float.NEGATIVE_INFINITY : line[ k ];
+	}
+
+	private static final boolean isLineStart( final int[] pos, final int[] dir, final int[] dims )
+	{
+		for ( int d = 0; d < pos.length; d++ )
+		{
+			final int p = pos[ d ] - dir[ d ];
+			if ( p < 0 || p >= dims[ d ] )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final boolean isInside( final int[] pos, final int[] dims )
+	{
+		for ( int d = 0; d < pos.length; d++ )
+		{
+			if ( pos[ d ] < 0 || pos[ d ] >= dims[ d ] )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final int nonZeros( final int[] dir )
+	{
+		int k = 0;
+		for ( final int c : dir )
+		{
+			if ( c != 0 )
+			{
+				k++;
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * Returns all the directions of the grid neighborhood, one per pair of
+	 * opposite directions.
+	 */
+	private static final List< int[] > directions( final int n )
+	{
+		int total = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			total *= 3;
+		}
+		final List< int[] > dirs = new ArrayList< int[] >();
+		for ( int code = 0; code < total; code++ )
+		{
+			final int[] dir = new int[ n ];
+			int c = code;
+			for ( int d = 0; d < n; d++ )
+			{
+				dir[ d ] = c % 3 - 1;
+				c /= 3;
+			}
+			// Keep directions whose first non-zero component is positive.
+			for ( int d = 0; d < n; d++ )
+			{
+				if ( dir[ d ] != 0 )
+				{
+					if ( dir[ d ] > 0 )
+					{
+						dirs.add( dir );
+					}
+					break;
+				}
+			}
+		}
+		return dirs;
+	}
+
+	/**
+	 * Computes the half-length of the segments, for each group of directions
+	 * with the same number of non-zero components, so that the extent of the
+	 * polygon along the axes and the diagonals matches the radius.
+	 */
+	private static final int[] decompose( final int radius, final int n, final List< int[] > dirs )
+	{
+		/*
+		 * Support of the polygon along the unit vector with m first
+		 * components equal to 1/sqrt(m), as a linear function of the group
+		 * half-lengths.
+		 */
+		final double[][] support = new double[ n ][ n ];
+		for ( int m = 1; m <= n; m++ )
+		{
+			for ( final int[] dir : dirs )
+			{
+				int dot = 0;
+				for ( int d = 0; d < m; d++ )
+				{
+					dot += dir[ d ];
+				}
+				support[ m - 1 ][ nonZeros( dir ) - 1 ] += Math.abs( dot ) / Math.sqrt( m );
+			}
+		}
+
+		/*
+		 * Best integer half-lengths. Axis segments are needed to reach all
+		 * pixels. Ties on the largest deviation are broken on the sum of
+		 * squared deviations.
+		 */
+		final int[] candidate = new int[ n ];
+		candidate[ 0 ] = 1;
+		final int[] best = candidate.clone();
+		double bestError = Double.POSITIVE_INFINITY;
+		double bestSquares = Double.POSITIVE_INFINITY;
+		while ( true )
+		{
+			double error = 0.;
+			double squares = 0.;
+			for ( int m = 0; m < n; m++ )
+			{
+				double h = 0.;
+				for ( int k = 0; k < n; k++ )
+				{
+					h += support[ m ][ k ] * candidate[ k ];
+				}
+				error = Math.max( error, Math.abs( h - radius ) );
+				squares += ( h - radius ) * ( h - radius );
+			}
+			if ( error < bestError || ( error == bestError && squares < bestSquares ) )
+			{
+				bestError = error;
+				bestSquares = squares;
+				System.arraycopy( candidate, 0, best, 0, n );
+			}
+
+			// Next candidate, each half-length ranging from 0 to radius.
+			int k = 0;
+			while ( k < n && ++candidate[ k ] > radius )
+			{
+				candidate[ k ] = ( k == 0 ) ? 1 : 0;
+				k++;
+			}
+			if ( k == n )
+			{
+				break;
+			}
+		}
+		return best;
+	}
+}
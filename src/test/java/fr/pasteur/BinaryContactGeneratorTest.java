@@ -0,0 +1,70 @@
+package fr.pasteur;
+
+import static fr.pasteur.TestImages.assertMasksEqual;
+import static fr.pasteur.TestImages.blobs;
+import static org.junit.Assert.assertTrue;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+
+/**
+ * Checks that {@link BinaryContactGenerator} gives the same mask as the grey
+ * contact image of {@link ContactImgGenerator}, with the same filter and the
+ * running max dilation.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class BinaryContactGeneratorTest
+{
+
+	private static final double THRESHOLD = 60.;
+
+	@Test
+	public void test2D()
+	{
+		// Rows longer than a word and more than one slab of rows.
+		check( new long[] { 157, 93 } );
+	}
+
+	@Test
+	public void test3D()
+	{
+		check( new long[] { 131, 37, 19 } );
+	}
+
+	private static void check( final long[] dims )
+	{
+		final Img< FloatType > img1 = blobs( dims, 12, 1l );
+		final Img< FloatType > img2 = blobs( dims, 12, 2l );
+		for ( final BlurMethod blurMethod : BlurMethod.values() )
+		{
+			for ( final int contactSensitivity : new int[] { 1, 3, 6 } )
+			{
+				final Img< BitType > expected = ArrayImgs.bits( dims );
+				final ContactImgGenerator< FloatType > reference = new ContactImgGenerator< FloatType >( img1, img2, null, THRESHOLD, THRESHOLD, contactSensitivity, 1.5 );
+				reference.setMask( expected );
+				reference.setBlurMethod( blurMethod );
+				reference.setDilationMethod( DilationMethod.RUNNING_MAX );
+				assertTrue( reference.getErrorMessage(), reference.checkInput() && reference.process() );
+
+				for ( final int numThreads : new int[] { 1, 4 } )
+				{
+					final Img< BitType > mask = ArrayImgs.bits( dims );
+					final BinaryContactGenerator< FloatType > generator = new BinaryContactGenerator< FloatType >( img1, img2, mask, THRESHOLD, THRESHOLD, contactSensitivity, 1.5 );
+					generator.setBlurMethod( blurMethod );
+					generator.setNumThreads( numThreads );
+					assertTrue( generator.getErrorMessage(), generator.checkInput() && generator.process() );
+
+					assertMasksEqual( expected, mask );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package fr.pasteur;
+
+import static fr.pasteur.TestImages.assertImagesEqual;
+import static fr.pasteur.TestImages.assertMaskOf;
+import static fr.pasteur.TestImages.assertMasksEqual;
+import static fr.pasteur.TestImages.baselineContacts;
+import static fr.pasteur.TestImages.blobs;
+import static fr.pasteur.TestImages.blurAndDilate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.StructuringElements;
+import net.imglib2.algorithm.neighborhood.Shape;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+
+/**
+ * Checks that the tiled {@link ContactImgGenerator} computes the same
+ * contact image as the whole-image ImgLib2 baseline.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ContactImgGeneratorTest
+{
+
+	private static final double TOLERANCE = 1e-3;
+
+	private static final double THRESHOLD = 60.;
+
+	@Test
+	public void testTiled2D() throws IncompatibleTypeException
+	{
+		checkAgainstBaseline( new long[] { 197, 83 }, 3, 1.5, 256 );
+	}
+
+	@Test
+	public void testTiled3D() throws IncompatibleTypeException
+	{
+		checkAgainstBaseline( new long[] { 70, 37, 23 }, 2, 1., 512 );
+	}
+
+	@Test
+	public void testSingleTile() throws IncompatibleTypeException
+	{
+		checkAgainstBaseline( new long[] { 67, 41 }, 4, 2., ContactImgGenerator.DEFAULT_TILE_SIZE );
+	}
+
+	@Test
+	public void testPaddingLargerThanImage() throws IncompatibleTypeException
+	{
+		checkAgainstBaseline( new long[] { 30, 25 }, 10, 3., 64 );
+	}
+
+	@Test
+	public void testTranslatedSources() throws IncompatibleTypeException
+	{
+		final long[] dims = new long[] { 131, 59 };
+		final Img< FloatType > img1 = blobs( dims, 12, 1l );
+		final Img< FloatType > img2 = blobs( dims, 12, 2l );
+		final RandomAccessibleInterval< FloatType > source1 = Views.translate( img1, 10, -5 );
+		final RandomAccessibleInterval< FloatType > source2 = Views.translate( img2, 10, -5 );
+
+		final Img< FloatType > out = ArrayImgs.floats( dims );
+		final Img< BitType > mask = ArrayImgs.bits( dims );
+		final ContactImgGenerator< FloatType > generator = new ContactImgGenerator< FloatType >( source1, source2, out, THRESHOLD, THRESHOLD, 3, 1.5 );
+		generator.setMask( mask );
+		generator.setTileSize( 256 );
+		generator.setNumThreads( 4 );
+		assertTrue( generator.getErrorMessage(), generator.checkInput() && generator.process() );
+
+		assertImagesEqual( baselineContacts( img1, img2, THRESHOLD, THRESHOLD, 3, 1.5 ), out, TOLERANCE );
+		assertMaskOf( out, mask );
+	}
+
+	@Test
+	public void testMaskOnly() throws IncompatibleTypeException
+	{
+		// Rows not a multiple of 64 pixels: tiles share the mask words.
+		for ( final long[] dims : new long[][] { new long[] { 157, 93 }, new long[] { 99, 45, 13 } } )
+		{
+			final Img< FloatType > img1 = blobs( dims, 12, 1l );
+			final Img< FloatType > img2 = blobs( dims, 12, 2l );
+			final Img< BitType > mask = ArrayImgs.bits( dims );
+			final ContactImgGenerator< FloatType > generator = new ContactImgGenerator< FloatType >( img1, img2, null, THRESHOLD, THRESHOLD, 2, 1. );
+			generator.setMask( mask );
+			generator.setTileSize( 256 );
+			generator.setNumThreads( 8 );
+			assertTrue( generator.getErrorMessage(), generator.checkInput() && generator.process() );
+
+			assertMaskOf( baselineContacts( img1, img2, THRESHOLD, THRESHOLD, 2, 1. ), mask );
+		}
+	}
+
+	@Test
+	public void testDilatedChannels() throws IncompatibleTypeException
+	{
+		for ( final long[] dims : new long[][] { new long[] { 131, 59 }, new long[] { 70, 37, 19 } } )
+		{
+			final Img< FloatType > img1 = blobs( dims, 12, 1l );
+			final Img< FloatType > img2 = blobs( dims, 12, 2l );
+			final long[] translation = new long[ dims.length ];
+			for ( int d = 0; d < dims.length; d++ )
+			{
+				translation[ d ] = 3 + 2 * d;
+			}
+			final RandomAccessibleInterval< FloatType > source1 = Views.translate( img1, translation );
+			final RandomAccessibleInterval< FloatType > source2 = Views.translate( img2, translation );
+			for ( final DilationMethod dilationMethod : DilationMethod.values() )
+			{
+				final Img< FloatType > expected = ArrayImgs.floats( dims );
+				final Img< BitType > expectedMask = ArrayImgs.bits( dims );
+				final ContactImgGenerator< FloatType > reference = new ContactImgGenerator< FloatType >( source1, source2, expected, THRESHOLD, THRESHOLD, 3, 1.5 );
+				reference.setMask( expectedMask );
+				reference.setDilationMethod( dilationMethod );
+				reference.setTileSize( 512 );
+				assertTrue( reference.getErrorMessage(), reference.checkInput() && reference.process() );
+
+				final Img< FloatType > out = ArrayImgs.floats( dims );
+				final Img< BitType > mask = ArrayImgs.bits( dims );
+				final ContactImgGenerator< FloatType > generator = new ContactImgGenerator< FloatType >( source1, source2, out, THRESHOLD, THRESHOLD, 3, 1.5 );
+				generator.setMask( mask );
+				generator.setDilationMethod( dilationMethod );
+				generator.setTileSize( 512 );
+				assertTrue( generator.getErrorMessage(), generator.checkInput() );
+				final Img< FloatType > dilated1 = generator.dilatedChannel( 1 );
+				final Img< FloatType > dilated2 = generator.dilatedChannel( 2 );
+				assertTrue( generator.getErrorMessage(), null != dilated1 && null != dilated2 );
+				assertTrue( generator.getErrorMessage(), generator.combine( dilated1, dilated2 ) );
+
+				assertImagesEqual( expected, out, 1e-6 );
+				assertMasksEqual( expectedMask, mask );
+				if ( dilationMethod == DilationMethod.DISK )
+				{
+					final List< Shape > strel = StructuringElements.disk( 3, dims.length );
+					assertImagesEqual( blurAndDilate( img1, 1.5, strel ), dilated1, TOLERANCE );
+					assertImagesEqual( blurAndDilate( img2, 1.5, strel ), dilated2, TOLERANCE );
+					assertImagesEqual( baselineContacts( img1, img2, THRESHOLD, THRESHOLD, 3, 1.5 ), out, TOLERANCE );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSkipEmptyTiles() throws IncompatibleTypeException
+	{
+		for ( final long[] dims : new long[][] { new long[] { 301, 203 }, new long[] { 97, 71, 29 } } )
+		{
+			// A few blobs over a dark background: most tiles are skipped.
+			final Img< FloatType > img1 = blobs( dims, 3, 1l );
+			final Img< FloatType > img2 = blobs( dims, 3, 2l );
+			for ( final BlurMethod blurMethod : BlurMethod.values() )
+			{
+				for ( final DilationMethod dilationMethod : DilationMethod.values() )
+				{
+					checkSkipEmptyTiles( img1, img2, THRESHOLD, blurMethod, dilationMethod );
+				}
+			}
+			assertImagesEqual( baselineContacts( img1, img2, THRESHOLD, THRESHOLD, 3, 1.5 ), checkSkipEmptyTiles( img1, img2, THRESHOLD, BlurMethod.GAUSS3, DilationMethod.DISK ), TOLERANCE );
+		}
+	}
+
+	@Test
+	public void testSkipFlatTilesAtThreshold()
+	{
+		final long[] dims = new long[] { 211, 157 };
+		final float threshold = 60f;
+		for ( final float value : new float[] { threshold, Math.nextUp( threshold ), Math.nextAfter( threshold, 0. ), threshold * ( 1f + 1e-6f ), threshold * ( 1f - 1e-6f ) } )
+		{
+			final Img< FloatType > flat = ArrayImgs.floats( dims );
+			for ( final FloatType t : flat )
+			{
+				t.set( value );
+			}
+			for ( final BlurMethod blurMethod : BlurMethod.values() )
+			{
+				checkSkipEmptyTiles( flat, flat, threshold, blurMethod, DilationMethod.DISK );
+			}
+		}
+	}
+
+	/**
+	 * Checks that skipping tiles does not change the contact image nor the
+	 * mask, and returns the contact image.
+	 */
+	private static Img< FloatType > checkSkipEmptyTiles( final Img< FloatType > img1, final Img< FloatType > img2, final double threshold, final BlurMethod blurMethod, final DilationMethod dilationMethod )
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( img1 );
+		final Img< FloatType > expected = ArrayImgs.floats( dims );
+		final Img< BitType > expectedMask = ArrayImgs.bits( dims );
+		final ContactImgGenerator< FloatType > reference = new ContactImgGenerator< FloatType >( img1, img2, expected, threshold, threshold, 3, 1.5 );
+		reference.setMask( expectedMask );
+		reference.setBlurMethod( blurMethod );
+		reference.setDilationMethod( dilationMethod );
+		reference.setTileSize( 256 );
+		reference.setSkipEmptyTiles( false );
+		assertTrue( reference.getErrorMessage(), reference.checkInput() && reference.process() );
+
+		final Img< FloatType > out = ArrayImgs.floats( dims );
+		final Img< BitType > mask = ArrayImgs.bits( dims );
+		final ContactImgGenerator< FloatType > generator = new ContactImgGenerator< FloatType >( img1, img2, out, threshold, threshold, 3, 1.5 );
+		generator.setMask( mask );
+		generator.setBlurMethod( blurMethod );
+		generator.setDilationMethod( dilationMethod );
+		generator.setTileSize( 256 );
+		generator.setSkipEmptyTiles( true );
+		assertTrue( generator.getErrorMessage(), generator.checkInput() && generator.process() );
+
+		assertImagesEqual( expected, out, 0. );
+		assertMasksEqual( expectedMask, mask );
+		return out;
+	}
+
+	@Test
+	public void testTileDimensions()
+	{
+		final Interval interval = new FinalInterval( 1000, 700 );
+		final long[] padding = new long[] { 5, 5 };
+		final long[] dims = ContactImgGenerator.tileDimensions( interval, 4096, padding );
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			assertTrue( dims[ d ] >= ContactImgGenerator.MIN_TILE_TO_PADDING * 2 * padding[ d ] );
+		}
+		assertEquals( 0, dims[ 0 ] % 64 );
+
+		final List< Interval > tiles = ContactImgGenerator.tiles( interval, dims );
+		long total = 0;
+		for ( final Interval tile : tiles )
+		{
+			assertTrue( Intervals.contains( interval, tile ) );
+			total += Intervals.numElements( tile );
+		}
+		assertEquals( Intervals.numElements( interval ), total );
+	}
+
+	private static void checkAgainstBaseline( final long[] dims, final int contactSensitivity, final double sigma, final int tileSize ) throws IncompatibleTypeException
+	{
+		final Img< FloatType > img1 = blobs( dims, 12, 1l );
+		final Img< FloatType > img2 = blobs( dims, 12, 2l );
+
+		final Img< FloatType > out = ArrayImgs.floats( dims );
+		final Img< BitType > mask = ArrayImgs.bits( dims );
+		final ContactImgGenerator< FloatType > generator = new ContactImgGenerator< FloatType >( img1, img2, out, THRESHOLD, THRESHOLD, contactSensitivity, sigma );
+		generator.setMask( mask );
+		generator.setTileSize( tileSize );
+		generator.setNumThreads( 4 );
+		assertTrue( generator.getErrorMessage(), generator.checkInput() && generator.process() );
+
+		assertImagesEqual( baselineContacts( img1, img2, THRESHOLD, THRESHOLD, contactSensitivity, sigma ), out, TOLERANCE );
+		assertMaskOf( out, mask );
+	}
+}
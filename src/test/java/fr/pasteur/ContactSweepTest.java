@@ -0,0 +1,108 @@
+package fr.pasteur;
+
+import static fr.pasteur.TestImages.blobs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import ij.measure.ResultsTable;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.util.ComponentStatistics;
+import fr.pasteur.util.ConnectedComponents;
+
+/**
+ * Checks that each row of a {@link ContactSweep} matches the contacts
+ * computed by {@link ContactImgGenerator} for the same parameters, with the
+ * running max dilation.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ContactSweepTest
+{
+
+	private static final double[] SIGMAS = new double[] { 1., 2. };
+
+	// Unsorted, with a duplicate.
+	private static final int[] CONTACT_SENSITIVITIES = new int[] { 4, 1, 4, 2 };
+
+	private static final int[] SORTED_SENSITIVITIES = new int[] { 1, 2, 4 };
+
+	private static final double[] THRESHOLDS_1 = new double[] { 50., 80. };
+
+	private static final double[] THRESHOLDS_2 = new double[] { 40., 70., 100. };
+
+	@Test
+	public void test2D()
+	{
+		check( new long[] { 131, 97 } );
+	}
+
+	@Test
+	public void test3D()
+	{
+		check( new long[] { 67, 41, 17 } );
+	}
+
+	private static void check( final long[] dims )
+	{
+		final Img< FloatType > img1 = blobs( dims, 12, 1l );
+		final Img< FloatType > img2 = blobs( dims, 12, 2l );
+		for ( final BlurMethod blurMethod : BlurMethod.values() )
+		{
+			final ContactSweep< FloatType > sweep = new ContactSweep< FloatType >( img1, img2, SIGMAS, CONTACT_SENSITIVITIES, THRESHOLDS_1, THRESHOLDS_2 );
+			sweep.setBlurMethod( blurMethod );
+			assertTrue( sweep.getErrorMessage(), sweep.checkInput() && sweep.process() );
+			final ResultsTable results = sweep.getResults();
+			assertEquals( SIGMAS.length * SORTED_SENSITIVITIES.length * THRESHOLDS_1.length * THRESHOLDS_2.length, results.getCounter() );
+
+			int row = 0;
+			for ( final double sigma : SIGMAS )
+			{
+				for ( final int contactSensitivity : SORTED_SENSITIVITIES )
+				{
+					for ( final double threshold1 : THRESHOLDS_1 )
+					{
+						for ( final double threshold2 : THRESHOLDS_2 )
+						{
+							final String msg = "σ = " + sigma + ", r = " + contactSensitivity + ", t1 = " + threshold1 + ", t2 = " + threshold2 + ": ";
+							assertEquals( msg, sigma, results.getValue( ContactSweep.SIGMA, row ), 0. );
+							assertEquals( msg, contactSensitivity, results.getValue( ContactSweep.CONTACT_SENSITIVITY, row ), 0. );
+							assertEquals( msg, threshold1, results.getValue( ContactSweep.THRESHOLD_C1, row ), 0. );
+							assertEquals( msg, threshold2, results.getValue( ContactSweep.THRESHOLD_C2, row ), 0. );
+
+							final Img< BitType > mask = ArrayImgs.bits( dims );
+							final ContactImgGenerator< FloatType > generator = new ContactImgGenerator< FloatType >( img1, img2, null, threshold1, threshold2, contactSensitivity, sigma );
+							generator.setMask( mask );
+							generator.setBlurMethod( blurMethod );
+							generator.setDilationMethod( DilationMethod.RUNNING_MAX );
+							assertTrue( generator.getErrorMessage(), generator.checkInput() && generator.process() );
+
+							final Img< UnsignedIntType > labels = ArrayImgs.unsignedInts( dims );
+							final int nLabels = ConnectedComponents.label( mask, labels, 1 );
+							final ComponentStatistics stats = ComponentStatistics.compute( labels, nLabels, mask );
+							long total = 0;
+							long max = 0;
+							for ( int label = 1; label <= nLabels; label++ )
+							{
+								total += stats.size( label );
+								max = Math.max( max, stats.size( label ) );
+							}
+							assertEquals( msg, nLabels, results.getValue( ContactSweep.N_CONTACTS, row ), 0. );
+							assertEquals( msg, total, results.getValue( ContactSweep.TOTAL_AREA, row ), 0. );
+							assertEquals( msg, max, results.getValue( ContactSweep.MAX_AREA, row ), 0. );
+							assertEquals( msg, nLabels > 0 ? ( double ) total / nLabels : 0., results.getValue( ContactSweep.MEAN_AREA, row ), 1e-9 );
+							row++;
+						}
+					}
+				}
+			}
+		}
+	}
+}
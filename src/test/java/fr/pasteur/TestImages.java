@@ -0,0 +1,187 @@
+package fr.pasteur;
+
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.algorithm.morphology.Dilation;
+import net.imglib2.algorithm.morphology.StructuringElements;
+import net.imglib2.algorithm.neighborhood.Shape;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Test images, and the contact image computed as before the tiled
+ * generator: whole channels filtered with {@link Gauss3} and dilated with
+ * the ImgLib2 {@link Dilation} by a disk.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public final class TestImages
+{
+
+	private TestImages()
+	{}
+
+	/**
+	 * Returns an image of bright gaussian blobs at random positions over a
+	 * uniform noise, with values from 0 to 255.
+	 */
+	public static Img< FloatType > blobs( final long[] dims, final int nBlobs, final long seed )
+	{
+		final Random random = new Random( seed );
+		final int n = dims.length;
+		final double[][] centers = new double[ nBlobs ][ n ];
+		for ( int b = 0; b < nBlobs; b++ )
+		{
+			for ( int d = 0; d < n; d++ )
+			{
+				centers[ b ][ d ] = random.nextDouble() * dims[ d ];
+			}
+		}
+
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double value = 20 * random.nextDouble();
+			for ( int b = 0; b < nBlobs; b++ )
+			{
+				double r2 = 0;
+				for ( int d = 0; d < n; d++ )
+				{
+					final double dx = cursor.getDoublePosition( d ) - centers[ b ][ d ];
+					r2 += dx * dx;
+				}
+				value += 200 * Math.exp( -r2 / 8 );
+			}
+			cursor.get().setReal( Math.min( 255, value ) );
+		}
+		return img;
+	}
+
+	/**
+	 * Filters an image with {@link Gauss3}, with mirror boundaries.
+	 *
+	 * @return a new image with a min at 0.
+	 */
+	public static < T extends RealType< T >> Img< FloatType > blur( final RandomAccessibleInterval< T > img, final double sigma ) throws IncompatibleTypeException
+	{
+		final RandomAccessibleInterval< T > source = Views.zeroMin( img );
+		final Img< FloatType > target = ArrayImgs.floats( Intervals.dimensionsAsLongArray( source ) );
+		Gauss3.gauss( Util.getArrayFromValue( sigma, source.numDimensions() ), Views.extendMirrorDouble( source ), target, 1 );
+		return target;
+	}
+
+	/**
+	 * Filters an image with {@link Gauss3}, then dilates it with the ImgLib2
+	 * {@link Dilation} by the specified structuring element.
+	 *
+	 * @return a new image with a min at 0.
+	 */
+	public static < T extends RealType< T >> Img< FloatType > blurAndDilate( final RandomAccessibleInterval< T > img, final double sigma, final List< Shape > strel ) throws IncompatibleTypeException
+	{
+		final Img< FloatType > blurred = blur( img, sigma );
+		Dilation.dilateInPlace( blurred, blurred, strel, 1 );
+		return blurred;
+	}
+
+	/**
+	 * Computes the contact image of two channels as the generator did before
+	 * tiling: each whole channel is filtered with {@link Gauss3} and dilated
+	 * by {@link StructuringElements#disk(long, int)}, then combined with
+	 * {@link ContactImgGenerator#contact(double, double, double, double)}.
+	 *
+	 * @return a new image with a min at 0.
+	 */
+	public static < T extends RealType< T >> Img< FloatType > baselineContacts( final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< T > img2,
+			final double threshold1, final double threshold2, final int contactSensitivity, final double sigma ) throws IncompatibleTypeException
+	{
+		final List< Shape > strel = StructuringElements.disk( contactSensitivity, img1.numDimensions() );
+		return combine( blurAndDilate( img1, sigma, strel ), blurAndDilate( img2, sigma, strel ), threshold1, threshold2 );
+	}
+
+	/**
+	 * Combines two dilated channels into a contact image.
+	 *
+	 * @return a new image with a min at 0.
+	 */
+	public static Img< FloatType > combine( final RandomAccessibleInterval< FloatType > dilated1, final RandomAccessibleInterval< FloatType > dilated2, final double threshold1, final double threshold2 )
+	{
+		final Img< FloatType > out = ArrayImgs.floats( Intervals.dimensionsAsLongArray( dilated1 ) );
+		final Cursor< FloatType > c1 = Views.flatIterable( dilated1 ).cursor();
+		final Cursor< FloatType > c2 = Views.flatIterable( dilated2 ).cursor();
+		final Cursor< FloatType > co = Views.flatIterable( out ).cursor();
+		while ( co.hasNext() )
+		{
+			co.next().setReal( ContactImgGenerator.contact( c1.next().get(), threshold1, c2.next().get(), threshold2 ) );
+		}
+		return out;
+	}
+
+	/**
+	 * Fails if two images differ by more than the tolerance somewhere. They
+	 * are compared in flat iteration order, whatever their min.
+	 */
+	public static < A extends RealType< A >, B extends RealType< B >> void assertImagesEqual( final RandomAccessibleInterval< A > expected, final RandomAccessibleInterval< B > actual, final double tolerance )
+	{
+		final Cursor< A > ce = Views.flatIterable( expected ).localizingCursor();
+		final Cursor< B > ca = Views.flatIterable( actual ).cursor();
+		while ( ce.hasNext() )
+		{
+			final double e = ce.next().getRealDouble();
+			final double a = ca.next().getRealDouble();
+			if ( Math.abs( e - a ) > tolerance )
+			{
+				fail( "At " + Util.printCoordinates( ce ) + ", expected " + e + " but was " + a + "." );
+			}
+		}
+	}
+
+	/**
+	 * Fails if a mask is not true exactly where an image is strictly
+	 * positive.
+	 */
+	public static < A extends RealType< A >> void assertMaskOf( final RandomAccessibleInterval< A > values, final RandomAccessibleInterval< BitType > mask )
+	{
+		final Cursor< A > cv = Views.flatIterable( values ).localizingCursor();
+		final Cursor< BitType > cm = Views.flatIterable( mask ).cursor();
+		while ( cv.hasNext() )
+		{
+			final boolean expected = cv.next().getRealDouble() > 0;
+			if ( cm.next().get() != expected )
+			{
+				fail( "At " + Util.printCoordinates( cv ) + ", expected the mask to be " + expected + "." );
+			}
+		}
+	}
+
+	/**
+	 * Fails if two masks differ somewhere.
+	 */
+	public static void assertMasksEqual( final RandomAccessibleInterval< BitType > expected, final RandomAccessibleInterval< BitType > actual )
+	{
+		final Cursor< BitType > ce = Views.flatIterable( expected ).localizingCursor();
+		final Cursor< BitType > ca = Views.flatIterable( actual ).cursor();
+		while ( ce.hasNext() )
+		{
+			final boolean e = ce.next().get();
+			if ( ca.next().get() != e )
+			{
+				fail( "At " + Util.printCoordinates( ce ) + ", expected " + e + "." );
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package fr.pasteur.trackmate;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+import fr.pasteur.ContactImgGenerator.BlurMethod;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+
+/**
+ * Checks that {@link DilatedChannelCache} only returns channels computed
+ * with the same parameters, and evicts the least recently used ones.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DilatedChannelCacheTest
+{
+
+	@Test
+	public void testKeys()
+	{
+		final DilatedChannelCache cache = new DilatedChannelCache( 16 );
+		final Img< FloatType > dilated = ArrayImgs.floats( 4, 4 );
+		cache.put( 1, 0, 1, BlurMethod.GAUSS3, 1.5, DilationMethod.DISK, 3, dilated );
+
+		assertSame( dilated, cache.get( 1, 0, 1, BlurMethod.GAUSS3, 1.5, DilationMethod.DISK, 3 ) );
+		assertNull( cache.get( 2, 0, 1, BlurMethod.GAUSS3, 1.5, DilationMethod.DISK, 3 ) );
+		assertNull( cache.get( 1, 1, 1, BlurMethod.GAUSS3, 1.5, DilationMethod.DISK, 3 ) );
+		assertNull( cache.get( 1, 0, 2, BlurMethod.GAUSS3, 1.5, DilationMethod.DISK, 3 ) );
+		assertNull( cache.get( 1, 0, 1, BlurMethod.RECURSIVE, 1.5, DilationMethod.DISK, 3 ) );
+		assertNull( cache.get( 1, 0, 1, BlurMethod.GAUSS3, 2., DilationMethod.DISK, 3 ) );
+		assertNull( cache.get( 1, 0, 1, BlurMethod.GAUSS3, 1.5, DilationMethod.RUNNING_MAX, 3 ) );
+		assertNull( cache.get( 1, 0, 1, BlurMethod.GAUSS3, 1.5, DilationMethod.DISK, 4 ) );
+
+		cache.clear();
+		assertNull( cache.get( 1, 0, 1, BlurMethod.GAUSS3, 1.5, DilationMethod.DISK, 3 ) );
+	}
+
+	@Test
+	public void testLeastRecentlyUsed()
+	{
+		final DilatedChannelCache cache = new DilatedChannelCache( 2 );
+		final Img< FloatType > frame0 = ArrayImgs.floats( 4, 4 );
+		final Img< FloatType > frame1 = ArrayImgs.floats( 4, 4 );
+		final Img< FloatType > frame2 = ArrayImgs.floats( 4, 4 );
+		cache.put( 1, 0, 1, BlurMethod.GAUSS3, 1., DilationMethod.DISK, 3, frame0 );
+		cache.put( 1, 1, 1, BlurMethod.GAUSS3, 1., DilationMethod.DISK, 3, frame1 );
+
+		// Using frame 0 makes frame 1 the eldest.
+		assertSame( frame0, cache.get( 1, 0, 1, BlurMethod.GAUSS3, 1., DilationMethod.DISK, 3 ) );
+		cache.put( 1, 2, 1, BlurMethod.GAUSS3, 1., DilationMethod.DISK, 3, frame2 );
+
+		assertSame( frame0, cache.get( 1, 0, 1, BlurMethod.GAUSS3, 1., DilationMethod.DISK, 3 ) );
+		assertNull( cache.get( 1, 1, 1, BlurMethod.GAUSS3, 1., DilationMethod.DISK, 3 ) );
+		assertSame( frame2, cache.get( 1, 2, 1, BlurMethod.GAUSS3, 1., DilationMethod.DISK, 3 ) );
+	}
+}
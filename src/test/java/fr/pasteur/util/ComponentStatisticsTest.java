@@ -0,0 +1,133 @@
+package fr.pasteur.util;
+
+import static fr.pasteur.TestImages.blobs;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.labeling.AllConnectedComponents;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.labeling.NativeImgLabeling;
+import net.imglib2.roi.IterableRegionOfInterest;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+/**
+ * Checks the one-pass component labeling and statistics against the ImgLib2
+ * labeling and the per-label region iteration they replace.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ComponentStatisticsTest
+{
+
+	@Test
+	public void test2D()
+	{
+		check( new long[] { 131, 97 }, 1 );
+		check( new long[] { 131, 97 }, 4 );
+	}
+
+	@Test
+	public void test3D()
+	{
+		check( new long[] { 67, 41, 23 }, 1 );
+		check( new long[] { 67, 41, 23 }, 4 );
+	}
+
+	private static void check( final long[] dims, final int numThreads )
+	{
+		final int n = dims.length;
+		final Img< FloatType > values = blobs( dims, 20, 1l );
+		final Img< BitType > mask = ArrayImgs.bits( dims );
+		final Cursor< FloatType > cv = values.cursor();
+		final Cursor< BitType > cm = mask.cursor();
+		while ( cv.hasNext() )
+		{
+			cm.next().set( cv.next().get() > 80f );
+		}
+
+		/*
+		 * Baseline.
+		 */
+
+		final Img< UnsignedIntType > lbl = ArrayImgs.unsignedInts( dims );
+		final NativeImgLabeling< Integer, UnsignedIntType > labeling = new NativeImgLabeling< Integer, UnsignedIntType >( lbl );
+		AllConnectedComponents.labelAllConnectedComponents( labeling, mask, AllConnectedComponents.getIntegerNames( 0 ) );
+		final Collection< Integer > baselineLabels = labeling.getLabels();
+
+		/*
+		 * One pass.
+		 */
+
+		final Img< UnsignedIntType > labels = ArrayImgs.unsignedInts( dims );
+		final int nLabels = ConnectedComponents.label( mask, labels, numThreads );
+		final ComponentStatistics stats = ComponentStatistics.compute( labels, nLabels, values );
+		assertEquals( baselineLabels.size(), nLabels );
+		assertEquals( nLabels, stats.numLabels() );
+
+		final RandomAccess< UnsignedIntType > ra = labels.randomAccess();
+		final long[] pos = new long[ n ];
+		for ( final Integer label : baselineLabels )
+		{
+			final IterableRegionOfInterest roi = labeling.getIterableRegionOfInterest( label );
+			final Cursor< FloatType > cursor = roi.getIterableIntervalOverROI( values ).cursor();
+			final double[] sumPosition = new double[ n ];
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			Arrays.fill( min, Long.MAX_VALUE );
+			Arrays.fill( max, Long.MIN_VALUE );
+			double sum = 0.;
+			int l = 0;
+			while ( cursor.hasNext() )
+			{
+				sum += cursor.next().getRealDouble();
+				cursor.localize( pos );
+				for ( int d = 0; d < n; d++ )
+				{
+					sumPosition[ d ] += pos[ d ];
+					min[ d ] = Math.min( min[ d ], pos[ d ] );
+					max[ d ] = Math.max( max[ d ], pos[ d ] );
+				}
+				ra.setPosition( pos );
+				if ( l == 0 )
+				{
+					l = ra.get().getInteger();
+				}
+				// The whole region has the same label.
+				assertEquals( l, ra.get().getInteger() );
+			}
+
+			final long size = labeling.getArea( label );
+			assertEquals( size, stats.size( l ) );
+			assertEquals( sum, stats.sum( l ), 1e-6 * Math.abs( sum ) );
+			for ( int d = 0; d < n; d++ )
+			{
+				assertEquals( sumPosition[ d ] / size, stats.mean( l, d ), 1e-9 );
+				assertEquals( min[ d ], stats.min( l, d ) );
+				assertEquals( max[ d ], stats.max( l, d ) );
+			}
+		}
+
+		// Labels are numbered in the order of their first pixel.
+		int last = 0;
+		for ( final UnsignedIntType t : Views.flatIterable( labels ) )
+		{
+			final int l = t.getInteger();
+			if ( l > last )
+			{
+				assertEquals( last + 1, l );
+				last = l;
+			}
+		}
+		assertEquals( nLabels, last );
+	}
+}
@@ -0,0 +1,294 @@
+package fr.pasteur.util;
+
+import static fr.pasteur.TestImages.assertImagesEqual;
+import static fr.pasteur.TestImages.assertMasksEqual;
+import static fr.pasteur.TestImages.baselineContacts;
+import static fr.pasteur.TestImages.blobs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+import fr.pasteur.ContactImgGenerator;
+
+/**
+ * Checks that the primitive array fast path of {@link Planes} reads and
+ * writes the same pixels as the generic ImgLib2 cursors, and that the
+ * contact images computed through it do not change.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PlanesTest
+{
+
+	private static final long[] DIMS_2D = new long[] { 67, 41 };
+
+	private static final long[] DIMS_3D = new long[] { 70, 37, 5 };
+
+	@Test
+	public void testGetRealDouble()
+	{
+		for ( final long[] dims : new long[][] { DIMS_2D, DIMS_3D } )
+		{
+			checkGetRealDouble( copy( blobs( dims, 8, 1l ), new ArrayImgFactory< UnsignedByteType >(), new UnsignedByteType() ), Planes.PixelType.UNSIGNED_BYTE );
+			checkGetRealDouble( copy( blobs( dims, 8, 1l ), new PlanarImgFactory< UnsignedByteType >(), new UnsignedByteType() ), Planes.PixelType.UNSIGNED_BYTE );
+			checkGetRealDouble( copy( blobs( dims, 8, 1l ), new ArrayImgFactory< UnsignedShortType >(), new UnsignedShortType() ), Planes.PixelType.UNSIGNED_SHORT );
+			checkGetRealDouble( copy( blobs( dims, 8, 1l ), new PlanarImgFactory< UnsignedShortType >(), new UnsignedShortType() ), Planes.PixelType.UNSIGNED_SHORT );
+			checkGetRealDouble( copy( blobs( dims, 8, 1l ), new ArrayImgFactory< FloatType >(), new FloatType() ), Planes.PixelType.FLOAT );
+			checkGetRealDouble( copy( blobs( dims, 8, 1l ), new PlanarImgFactory< FloatType >(), new FloatType() ), Planes.PixelType.FLOAT );
+		}
+	}
+
+	@Test
+	public void testSetRow()
+	{
+		for ( final long[] dims : new long[][] { DIMS_2D, DIMS_3D } )
+		{
+			checkSetRow( dims, new ArrayImgFactory< UnsignedByteType >(), new UnsignedByteType() );
+			checkSetRow( dims, new PlanarImgFactory< UnsignedByteType >(), new UnsignedByteType() );
+			checkSetRow( dims, new ArrayImgFactory< UnsignedShortType >(), new UnsignedShortType() );
+			checkSetRow( dims, new PlanarImgFactory< UnsignedShortType >(), new UnsignedShortType() );
+			checkSetRow( dims, new ArrayImgFactory< FloatType >(), new FloatType() );
+			checkSetRow( dims, new PlanarImgFactory< FloatType >(), new FloatType() );
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void testHyperSliceLast()
+	{
+		final Img< UnsignedShortType > planar = copy( blobs( DIMS_3D, 8, 1l ), new PlanarImgFactory< UnsignedShortType >(), new UnsignedShortType() );
+		final Img< UnsignedShortType > array = copy( blobs( DIMS_3D, 8, 1l ), new ArrayImgFactory< UnsignedShortType >(), new UnsignedShortType() );
+		for ( final Img< UnsignedShortType > img : new Img[] { planar, array } )
+		{
+			for ( long z = 0; z < DIMS_3D[ 2 ]; z++ )
+			{
+				final RandomAccessibleInterval< UnsignedShortType > slice = Planes.hyperSliceLast( img, z );
+				checkGetRealDouble( slice, Planes.PixelType.UNSIGNED_SHORT );
+				assertImagesEqual( Views.hyperSlice( img, 2, z ), slice, 0. );
+
+				// Rows of a slice.
+				for ( long y = 0; y < DIMS_3D[ 1 ]; y++ )
+				{
+					checkGetRealDouble( Planes.hyperSliceLast( slice, y ), Planes.PixelType.UNSIGNED_SHORT );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentMaskRows()
+	{
+		for ( final long[] dims : new long[][] { DIMS_2D, DIMS_3D, new long[] { 200, 9 } } )
+		{
+			for ( int repeat = 0; repeat < 10; repeat++ )
+			{
+				checkConcurrentMaskRows( dims, 37, 4, repeat );
+			}
+		}
+	}
+
+	@Test
+	public void testMaskRows()
+	{
+		for ( final long[] dims : new long[][] { DIMS_2D, DIMS_3D } )
+		{
+			final Img< FloatType > values = blobs( dims, 8, 4l );
+			final Img< BitType > actual = ArrayImgs.bits( dims );
+			final Planes planes = Planes.of( actual );
+			final int rowLength = ( int ) dims[ 0 ];
+			final double[] row = new double[ rowLength ];
+			final Cursor< FloatType > cursor = Views.flatIterable( values ).cursor();
+			for ( long index = 0; cursor.hasNext(); index += rowLength )
+			{
+				for ( int i = 0; i < rowLength; i++ )
+				{
+					row[ i ] = cursor.next().get();
+				}
+				planes.setMaskRow( index, row, rowLength, 100. );
+			}
+			assertMasksEqual( threshold( values, 100. ), actual );
+		}
+	}
+
+	@Test
+	public void testNoFastPath()
+	{
+		final Img< FloatType > img = blobs( DIMS_2D, 8, 1l );
+		assertNull( Planes.of( Views.translate( img, 1, 2 ) ) );
+		assertNull( Planes.of( Views.interval( img, img ) ) );
+		assertNull( Planes.of( ArrayImgs.doubles( DIMS_2D ) ) );
+		assertNotNull( Planes.of( img ) );
+	}
+
+	@Test
+	public void testContacts() throws IncompatibleTypeException
+	{
+		for ( final long[] dims : new long[][] { DIMS_2D, DIMS_3D } )
+		{
+			checkContacts( dims, new ArrayImgFactory< UnsignedByteType >(), new UnsignedByteType() );
+			checkContacts( dims, new PlanarImgFactory< UnsignedByteType >(), new UnsignedByteType() );
+			checkContacts( dims, new ArrayImgFactory< UnsignedShortType >(), new UnsignedShortType() );
+			checkContacts( dims, new PlanarImgFactory< UnsignedShortType >(), new UnsignedShortType() );
+			checkContacts( dims, new ArrayImgFactory< FloatType >(), new FloatType() );
+			checkContacts( dims, new PlanarImgFactory< FloatType >(), new FloatType() );
+		}
+	}
+
+	/**
+	 * Computes the contacts of fast path images, and of the same images
+	 * seen through views without fast path. Both must match the baseline,
+	 * up to the rounding of integer types.
+	 */
+	private static < T extends RealType< T > & NativeType< T >> void checkContacts( final long[] dims, final ImgFactory< T > factory, final T type ) throws IncompatibleTypeException
+	{
+		final double threshold = 60.;
+		final Img< T > img1 = copy( blobs( dims, 8, 1l ), factory, type );
+		final Img< T > img2 = copy( blobs( dims, 8, 2l ), factory, type );
+
+		final Img< T > fast = factory.create( dims, type );
+		final ContactImgGenerator< T > fastGenerator = new ContactImgGenerator< T >( img1, img2, fast, threshold, threshold, 3, 1.5 );
+		assertNotNull( Planes.of( fast ) );
+		assertTrue( fastGenerator.getErrorMessage(), fastGenerator.checkInput() && fastGenerator.process() );
+
+		final Img< T > slow = factory.create( dims, type );
+		final RandomAccessibleInterval< T > slowView = Views.interval( slow, slow );
+		final ContactImgGenerator< T > slowGenerator = new ContactImgGenerator< T >( Views.interval( img1, img1 ), Views.interval( img2, img2 ), slowView, threshold, threshold, 3, 1.5 );
+		assertNull( Planes.of( slowView ) );
+		assertTrue( slowGenerator.getErrorMessage(), slowGenerator.checkInput() && slowGenerator.process() );
+
+		assertImagesEqual( slow, fast, 0. );
+		final double tolerance = type instanceof FloatType ? 1e-3 : 0.5 + 1e-3;
+		assertImagesEqual( baselineContacts( img1, img2, threshold, threshold, 3, 1.5 ), fast, tolerance );
+	}
+
+	/**
+	 * Writes a mask by chunks of rows, from concurrent workers that defer
+	 * the words they share, and compares it to the mask written with a
+	 * {@link BitType} cursor.
+	 */
+	private static void checkConcurrentMaskRows( final long[] dims, final int chunkLength, final int nWorkers, final long seed )
+	{
+		final double minValue = 100.;
+		final Img< FloatType > values = blobs( dims, 8, seed );
+		final Img< BitType > actual = ArrayImgs.bits( dims );
+		final Planes planes = Planes.of( actual );
+		final Planes valuePlanes = Planes.of( values );
+
+		final int rowLength = ( int ) dims[ 0 ];
+		final int chunksPerRow = ( rowLength + chunkLength - 1 ) / chunkLength;
+		final long nChunks = Intervals.numElements( dims ) / rowLength * chunksPerRow;
+		final Planes.PartialWords[] partialWords = new Planes.PartialWords[ nWorkers ];
+		for ( int i = 0; i < nWorkers; i++ )
+		{
+			partialWords[ i ] = new Planes.PartialWords();
+		}
+		final AtomicLong ai = new AtomicLong( 0 );
+		Parallel.run( nWorkers, new Parallel.Worker()
+		{
+			@Override
+			public void run( final int index )
+			{
+				final double[] row = new double[ chunkLength ];
+				for ( long c = ai.getAndIncrement(); c < nChunks; c = ai.getAndIncrement() )
+				{
+					final long start = ( c / chunksPerRow ) * rowLength + ( c % chunksPerRow ) * chunkLength;
+					final int length = ( int ) Math.min( chunkLength, rowLength - ( c % chunksPerRow ) * chunkLength );
+					for ( int i = 0; i < length; i++ )
+					{
+						row[ i ] = valuePlanes.getRealDouble( start + i );
+					}
+					planes.setMaskRow( start, row, length, minValue, partialWords[ index ] );
+				}
+			}
+		} );
+		for ( final Planes.PartialWords pw : partialWords )
+		{
+			pw.apply();
+		}
+
+		assertMasksEqual( threshold( values, minValue ), actual );
+	}
+
+	private static Img< BitType > threshold( final Img< FloatType > values, final double minValue )
+	{
+		final Img< BitType > mask = ArrayImgs.bits( Intervals.dimensionsAsLongArray( values ) );
+		final Cursor< FloatType > cv = Views.flatIterable( values ).cursor();
+		final Cursor< BitType > cm = Views.flatIterable( mask ).cursor();
+		while ( cv.hasNext() )
+		{
+			cm.next().set( cv.next().get() >= minValue );
+		}
+		return mask;
+	}
+
+	private static < T extends RealType< T > & NativeType< T >> void checkSetRow( final long[] dims, final ImgFactory< T > factory, final T type )
+	{
+		final Img< FloatType > values = blobs( dims, 8, 3l );
+		final Img< T > expected = copy( values, factory, type );
+
+		final Img< T > actual = factory.create( dims, type );
+		final Planes planes = Planes.of( actual );
+		final int rowLength = ( int ) dims[ 0 ];
+		final double[] row = new double[ rowLength ];
+		final Cursor< FloatType > cursor = Views.flatIterable( values ).cursor();
+		for ( long index = 0; cursor.hasNext(); index += rowLength )
+		{
+			for ( int i = 0; i < rowLength; i++ )
+			{
+				row[ i ] = cursor.next().get();
+			}
+			planes.setRow( index, row, rowLength );
+		}
+		assertImagesEqual( expected, actual, 0. );
+	}
+
+	private static < T extends RealType< T >> void checkGetRealDouble( final RandomAccessibleInterval< T > img, final Planes.PixelType type )
+	{
+		final Planes planes = Planes.of( img );
+		assertNotNull( planes );
+		assertEquals( type, planes.type() );
+		final Cursor< T > cursor = Views.flatIterable( img ).cursor();
+		for ( long index = 0; cursor.hasNext(); index++ )
+		{
+			assertEquals( cursor.next().getRealDouble(), planes.getRealDouble( index ), 0. );
+		}
+	}
+
+	/**
+	 * Copies an image to the specified container and type, rounding the
+	 * values as {@link RealType#setReal(double)} does.
+	 */
+	private static < T extends RealType< T > & NativeType< T >> Img< T > copy( final Img< FloatType > source, final ImgFactory< T > factory, final T type )
+	{
+		final Img< T > target = factory.create( source, type );
+		final Cursor< FloatType > cs = Views.flatIterable( source ).cursor();
+		final Cursor< T > ct = Views.flatIterable( target ).cursor();
+		while ( cs.hasNext() )
+		{
+			ct.next().setReal( cs.next().get() );
+		}
+		return target;
+	}
+}
@@ -0,0 +1,129 @@
+package fr.pasteur.util;
+
+import static fr.pasteur.TestImages.assertImagesEqual;
+import static fr.pasteur.TestImages.blur;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+/**
+ * Checks the recursive gaussian filter against the convolution of
+ * {@link net.imglib2.algorithm.gauss3.Gauss3}, on a random image and on an
+ * image of bright disks, for several sigmas.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class RecursiveGaussianTest
+{
+
+	/**
+	 * Max difference with Gauss3, relative to the image range. Gauss3
+	 * truncates its kernel at about 3 sigma, the recursive filter does not.
+	 */
+	private static final double TOLERANCE = 2e-3;
+
+	@Test
+	public void test2D() throws IncompatibleTypeException
+	{
+		final long[] dims = new long[] { 128, 96 };
+		for ( final double sigma : new double[] { 0.5, 1, 2, 3, 5, 8 } )
+		{
+			check( noise( dims ), sigma );
+			check( disks( dims ), sigma );
+		}
+	}
+
+	@Test
+	public void test3D() throws IncompatibleTypeException
+	{
+		final long[] dims = new long[] { 48, 40, 32 };
+		for ( final double sigma : new double[] { 0.5, 1, 2, 4 } )
+		{
+			check( noise( dims ), sigma );
+			check( disks( dims ), sigma );
+		}
+	}
+
+	@Test
+	public void testSmallSigma() throws IncompatibleTypeException
+	{
+		// Below MIN_SIGMA, Gauss3 is used.
+		final Img< FloatType > img = noise( new long[] { 64, 48 } );
+		final double sigma = 0.7 * RecursiveGaussian.MIN_SIGMA;
+		final Img< FloatType > target = ArrayImgs.floats( 64, 48 );
+		RecursiveGaussian.gauss( Util.getArrayFromValue( sigma, 2 ), Views.extendMirrorDouble( img ), target );
+		assertImagesEqual( blur( img, sigma ), target, 1e-6 );
+	}
+
+	@Test
+	public void testTile() throws IncompatibleTypeException
+	{
+		// A tile filtered on its own matches the same region of the whole image.
+		final Img< FloatType > img = disks( new long[] { 128, 96 } );
+		final double[] sigmas = new double[] { 3., 2. };
+		final Img< FloatType > whole = ArrayImgs.floats( 128, 96 );
+		RecursiveGaussian.gauss( sigmas, Views.extendMirrorDouble( img ), whole );
+
+		final FinalInterval tile = new FinalInterval( new long[] { 40, 0 }, new long[] { 87, 31 } );
+		final RandomAccessibleInterval< FloatType > target = Views.translate( ArrayImgs.floats( 48, 32 ), 40, 0 );
+		RecursiveGaussian.gauss( sigmas, Views.extendMirrorDouble( img ), target );
+		assertImagesEqual( Views.interval( whole, tile ), target, 1e-5 );
+	}
+
+	private static void check( final Img< FloatType > img, final double sigma ) throws IncompatibleTypeException
+	{
+		final int n = img.numDimensions();
+		final Img< FloatType > target = ArrayImgs.floats( Intervals.dimensionsAsLongArray( img ) );
+		RecursiveGaussian.gauss( Util.getArrayFromValue( sigma, n ), Views.extendMirrorDouble( img ), target );
+
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for ( final FloatType pixel : img )
+		{
+			min = Math.min( min, pixel.get() );
+			max = Math.max( max, pixel.get() );
+		}
+		assertImagesEqual( blur( img, sigma ), target, TOLERANCE * ( max - min ) );
+	}
+
+	private static Img< FloatType > noise( final long[] dims )
+	{
+		final Random random = new Random( 1l );
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		for ( final FloatType pixel : img )
+		{
+			pixel.set( random.nextFloat() );
+		}
+		return img;
+	}
+
+	private static Img< FloatType > disks( final long[] dims )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dims );
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			long r2 = 0;
+			for ( int d = 0; d < dims.length; d++ )
+			{
+				final long x = cursor.getLongPosition( d ) % 32 - 16;
+				r2 += x * x;
+			}
+			cursor.get().set( r2 < 100 ? 1f : 0f );
+		}
+		return img;
+	}
+}
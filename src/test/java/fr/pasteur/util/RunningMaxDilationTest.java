@@ -0,0 +1,278 @@
+package fr.pasteur.util;
+
+import static fr.pasteur.TestImages.assertImagesEqual;
+import static fr.pasteur.TestImages.blobs;
+import static fr.pasteur.TestImages.blur;
+import static fr.pasteur.TestImages.combine;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+import fr.pasteur.ContactImgGenerator;
+import fr.pasteur.ContactImgGenerator.DilationMethod;
+import fr.pasteur.trackmate.CellContactDetectorFactory;
+
+/**
+ * Checks the running max dilation against a brute-force max over its
+ * footprint, and the contact images it gives against the ImgLib2 gaussian
+ * followed by this brute-force dilation.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class RunningMaxDilationTest
+{
+
+	@Test
+	public void testBruteForce2D()
+	{
+		for ( final int radius : new int[] { 1, 2, 3, 5, 8 } )
+		{
+			checkBruteForce( new RunningMaxDilation( radius, 2 ), new int[] { 47, 31 } );
+		}
+	}
+
+	@Test
+	public void testBruteForce3D()
+	{
+		for ( final int radius : new int[] { 1, 2, 4 } )
+		{
+			checkBruteForce( new RunningMaxDilation( radius, 3 ), new int[] { 23, 19, 17 } );
+		}
+	}
+
+	@Test
+	public void testFootprintApproximatesDisk()
+	{
+		for ( int n = 2; n <= 3; n++ )
+		{
+			for ( final int radius : new int[] { 1, 2, 3, 5, 8, 13 } )
+			{
+				final List< long[] > footprint = footprint( new RunningMaxDilation( radius, n ) );
+				boolean reachesAxis = false;
+				for ( final long[] offset : footprint )
+				{
+					double r2 = 0;
+					for ( int d = 0; d < n; d++ )
+					{
+						r2 += offset[ d ] * offset[ d ];
+					}
+					assertTrue( "Radius " + radius + " in " + n + "D.", Math.sqrt( r2 ) <= 1.1 * radius + 1 );
+					reachesAxis |= offset[ 0 ] >= radius;
+				}
+				assertTrue( "Radius " + radius + " in " + n + "D.", reachesAxis );
+			}
+		}
+	}
+
+	@Test
+	public void testIncrement()
+	{
+		final int[] dims = new int[] { 41, 37 };
+		final RunningMaxDilation smaller = new RunningMaxDilation( 3, 2 );
+		final RunningMaxDilation larger = new RunningMaxDilation( 7, 2 );
+		final RunningMaxDilation increment = larger.increment( smaller );
+		assertNotNull( increment );
+
+		final float[] expected = randomData( dims, 1l );
+		final float[] actual = expected.clone();
+		larger.dilate( expected, dims );
+		smaller.dilate( actual, dims );
+		increment.dilate( actual, dims );
+
+		// Only the pixels far enough from the border are exact.
+		final long[] extent = larger.getExtent();
+		final Img< FloatType > e = ArrayImgs.floats( expected, dims[ 0 ], dims[ 1 ] );
+		final Img< FloatType > a = ArrayImgs.floats( actual, dims[ 0 ], dims[ 1 ] );
+		final long[] min = extent.clone();
+		final long[] max = new long[] { dims[ 0 ] - 1 - extent[ 0 ], dims[ 1 ] - 1 - extent[ 1 ] };
+		assertImagesEqual( Views.interval( e, min, max ), Views.interval( a, min, max ), 0. );
+
+		assertNull( smaller.increment( larger ) );
+	}
+
+	@Test
+	public void testContacts2D() throws IncompatibleTypeException
+	{
+		checkContacts( new long[] { 131, 67 }, 4, 1.5 );
+	}
+
+	@Test
+	public void testContacts3D() throws IncompatibleTypeException
+	{
+		checkContacts( new long[] { 70, 37, 19 }, 2, 1. );
+	}
+
+	@Test
+	public void testDefaultDilationMethod()
+	{
+		final Map< String, Object > settings = new CellContactDetectorFactory< FloatType >().getDefaultSettings();
+		assertEquals( DilationMethod.DISK, CellContactDetectorFactory.getDilationMethod( settings ) );
+
+		final Map< String, Object > binary = new HashMap< String, Object >();
+		binary.put( CellContactDetectorFactory.KEY_BINARY_MODE, Boolean.TRUE );
+		assertEquals( DilationMethod.RUNNING_MAX, CellContactDetectorFactory.getDilationMethod( binary ) );
+		binary.put( CellContactDetectorFactory.KEY_DILATION_METHOD, DilationMethod.DISK.name() );
+		assertEquals( DilationMethod.DISK, CellContactDetectorFactory.getDilationMethod( binary ) );
+	}
+
+	private static void checkBruteForce( final RunningMaxDilation dilation, final int[] dims )
+	{
+		final List< long[] > footprint = footprint( dilation );
+		final float[] data = randomData( dims, 1l );
+		final Img< FloatType > source = ArrayImgs.floats( data, toLong( dims ) );
+		final Img< FloatType > expected = bruteForce( source, footprint );
+
+		// Pad with -∞ so that the dilation is exact up to the image border.
+		final long[] extent = dilation.getExtent();
+		final int[] padded = new int[ dims.length ];
+		final long[] offset = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			padded[ d ] = dims[ d ] + 2 * ( int ) extent[ d ];
+			offset[ d ] = -extent[ d ];
+		}
+		final float[] array = new float[ ( int ) Intervals.numElements( toLong( padded ) ) ];
+		Arrays.fill( array, Float.NEGATIVE_INFINITY );
+		final RandomAccessibleInterval< FloatType > inner = Views.interval( Views.translate( ArrayImgs.floats( array, toLong( padded ) ), offset ), source );
+		final Cursor< FloatType > cs = Views.flatIterable( source ).cursor();
+		final Cursor< FloatType > ci = Views.flatIterable( inner ).cursor();
+		while ( cs.hasNext() )
+		{
+			ci.next().set( cs.next() );
+		}
+
+		dilation.dilate( array, padded );
+		assertImagesEqual( expected, inner, 0. );
+	}
+
+	private static void checkContacts( final long[] dims, final int radius, final double sigma ) throws IncompatibleTypeException
+	{
+		final double threshold = 60.;
+		final Img< FloatType > img1 = blobs( dims, 12, 1l );
+		final Img< FloatType > img2 = blobs( dims, 12, 2l );
+		final Img< FloatType > out = ArrayImgs.floats( dims );
+		final ContactImgGenerator< FloatType > generator = new ContactImgGenerator< FloatType >( img1, img2, out, threshold, threshold, radius, sigma );
+		generator.setDilationMethod( DilationMethod.RUNNING_MAX );
+		generator.setTileSize( 512 );
+		generator.setNumThreads( 4 );
+		assertTrue( generator.getErrorMessage(), generator.checkInput() && generator.process() );
+
+		final List< long[] > footprint = footprint( new RunningMaxDilation( radius, dims.length ) );
+		final Img< FloatType > dilated1 = bruteForce( blur( img1, sigma ), footprint );
+		final Img< FloatType > dilated2 = bruteForce( blur( img2, sigma ), footprint );
+		assertImagesEqual( combine( dilated1, dilated2, threshold, threshold ), out, 1e-3 );
+	}
+
+	/**
+	 * Returns the offsets reached by the dilation of a single pixel.
+	 */
+	private static List< long[] > footprint( final RunningMaxDilation dilation )
+	{
+		final long[] extent = dilation.getExtent();
+		final int n = extent.length;
+		final int[] dims = new int[ n ];
+		int center = 0;
+		int stride = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			dims[ d ] = 4 * ( int ) extent[ d ] + 1;
+			center += 2 * extent[ d ] * stride;
+			stride *= dims[ d ];
+		}
+		final float[] data = new float[ stride ];
+		Arrays.fill( data, Float.NEGATIVE_INFINITY );
+		data[ center ] = 1f;
+		dilation.dilate( data, dims );
+
+		final List< long[] > footprint = new ArrayList< long[] >();
+		final Cursor< FloatType > cursor = ArrayImgs.floats( data, toLong( dims ) ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			if ( cursor.next().get() == 1f )
+			{
+				final long[] offset = new long[ n ];
+				for ( int d = 0; d < n; d++ )
+				{
+					offset[ d ] = cursor.getLongPosition( d ) - 2 * extent[ d ];
+				}
+				footprint.add( offset );
+			}
+		}
+		return footprint;
+	}
+
+	/**
+	 * Grey dilation by the specified footprint, ignoring the pixels outside
+	 * of the image.
+	 */
+	private static Img< FloatType > bruteForce( final RandomAccessibleInterval< FloatType > source, final List< long[] > footprint )
+	{
+		final int n = source.numDimensions();
+		final Img< FloatType > target = ArrayImgs.floats( Intervals.dimensionsAsLongArray( source ) );
+		final RandomAccess< FloatType > ra = Views.extendValue( source, new FloatType( Float.NEGATIVE_INFINITY ) ).randomAccess();
+		final Cursor< FloatType > cursor = Views.translate( target, Intervals.minAsLongArray( source ) ).localizingCursor();
+		final long[] pos = new long[ n ];
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			float max = Float.NEGATIVE_INFINITY;
+			for ( final long[] offset : footprint )
+			{
+				for ( int d = 0; d < n; d++ )
+				{
+					pos[ d ] = cursor.getLongPosition( d ) - offset[ d ];
+				}
+				ra.setPosition( pos );
+				max = Math.max( max, ra.get().get() );
+			}
+			cursor.get().set( max );
+		}
+		return target;
+	}
+
+	private static float[] randomData( final int[] dims, final long seed )
+	{
+		final Random random = new Random( seed );
+		int size = 1;
+		for ( final int dim : dims )
+		{
+			size *= dim;
+		}
+		final float[] data = new float[ size ];
+		for ( int i = 0; i < size; i++ )
+		{
+			data[ i ] = random.nextFloat();
+		}
+		return data;
+	}
+
+	private static long[] toLong( final int[] dims )
+	{
+		final long[] l = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			l[ d ] = dims[ d ];
+		}
+		return l;
+	}
+}